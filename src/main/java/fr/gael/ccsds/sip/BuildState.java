@@ -0,0 +1,210 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The state of the previous builds of a project, allowing incremental
+ * builds: the fingerprints of the transfer objects already packaged, and
+ * the last indexes allocated to the SIP and object identifiers.
+ * <p>
+ * A transfer object is identified by its descriptor identifier and the
+ * instance paths of its content, and its fingerprint covers the paths,
+ * sizes and modification times of its data object files (see
+ * {@link ContentUnit#getFingerprint()}).
+ * <p>
+ * The state is stored as a properties file, replaced atomically when saved.
+ */
+public class BuildState
+{
+   /**
+    * Prefixes of the stored properties.
+    */
+   private static final String INDEX_PREFIX = "index.";
+   private static final String OBJECT_PREFIX = "object.";
+
+   /**
+    * The state file.
+    */
+   private final File file;
+
+   private final Properties properties = new Properties();
+
+   /**
+    * Opens a state file, or starts an empty state if it does not exist.
+    * 
+    * @param file the state file.
+    * @throws IOException if the existing state file cannot be read.
+    */
+   public BuildState(final File file) throws IOException
+   {
+      this.file = file;
+
+      if (file.exists())
+      {
+         InputStream input = new FileInputStream(file);
+         try
+         {
+            this.properties.load(input);
+         }
+         finally
+         {
+            input.close();
+         }
+      }
+   }
+
+   /**
+    * @return the state file.
+    */
+   public File getFile()
+   {
+      return this.file;
+   }
+
+   /**
+    * Returns the fingerprint of a transfer object when it was last
+    * packaged.
+    * 
+    * @param transfer_object the transfer object.
+    * @return the stored fingerprint, or null if never packaged.
+    */
+   public synchronized String getFingerprint(
+         final ContentUnit transfer_object)
+   {
+      return this.properties.getProperty(getObjectKey(transfer_object));
+   }
+
+   /**
+    * Records a packaged transfer object.
+    * 
+    * @param transfer_object the transfer object.
+    */
+   public synchronized void putFingerprint(final ContentUnit transfer_object)
+   {
+      this.properties.setProperty(getObjectKey(transfer_object),
+         transfer_object.getFingerprint());
+   }
+
+   /**
+    * Checks whether a transfer object changed since it was last packaged.
+    * 
+    * @param transfer_object the transfer object.
+    * @return true if the transfer object is new or modified.
+    */
+   public boolean isChanged(final ContentUnit transfer_object)
+   {
+      return !transfer_object.getFingerprint().equals(
+         this.getFingerprint(transfer_object));
+   }
+
+   /**
+    * Continues the numbering of the previous builds.
+    * 
+    * @param index_manager the index manager to initialize.
+    */
+   public synchronized void restoreIndexes(final IndexManager index_manager)
+   {
+      for (String name : this.properties.stringPropertyNames())
+      {
+         if (name.startsWith(INDEX_PREFIX))
+         {
+            index_manager.setIndex(name.substring(INDEX_PREFIX.length()),
+               Integer.parseInt(this.properties.getProperty(name)));
+         }
+      }
+   }
+
+   /**
+    * Records the last allocated indexes.
+    * 
+    * @param index_manager the index manager used by the build.
+    */
+   public synchronized void storeIndexes(final IndexManager index_manager)
+   {
+      for (Map.Entry<String, Integer> index :
+              index_manager.getIndexes().entrySet())
+      {
+         this.properties.setProperty(INDEX_PREFIX + index.getKey(),
+            index.getValue().toString());
+      }
+   }
+
+   /**
+    * Saves the state, replacing the state file.
+    * 
+    * @throws IOException if the state cannot be written.
+    */
+   public synchronized void save() throws IOException
+   {
+      final File parent = this.file.getAbsoluteFile().getParentFile();
+      if ((parent != null) && !parent.exists())
+      {
+         parent.mkdirs();
+      }
+
+      final File temporary = new File(this.file.getPath() + ".tmp");
+
+      OutputStream output = new FileOutputStream(temporary);
+      try
+      {
+         this.properties.store(output, "SIP Builder state");
+      }
+      finally
+      {
+         output.close();
+      }
+
+      try
+      {
+         Files.move(temporary.toPath(), this.file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (final AtomicMoveNotSupportedException exception)
+      {
+         Files.move(temporary.toPath(), this.file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+      }
+   }
+
+   /**
+    * @return the property key of a transfer object.
+    */
+   private static String getObjectKey(final ContentUnit transfer_object)
+   {
+      return OBJECT_PREFIX + transfer_object.getId() + "|" +
+         transfer_object.getInstanceKey();
+   }
+
+} // End BuildState class
@@ -0,0 +1,253 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ccsds.pais.xml.DataObjectType;
+import org.ccsds.pais.xml.TransferObjectGroupType;
+import org.codehaus.plexus.util.DirectoryScanner;
+
+/**
+ * A plan collecting in a single walk the files of all the collectors of a
+ * tree of group types. The collectors of the sub-group and data object
+ * types of a group type are run within each directory included by the
+ * group type collector, during the walk of the enclosing directory, instead
+ * of a separate scan per collected directory. The collected files are
+ * recorded in the collectors result caches, from which
+ * {@link Project#getContentUnits(TransferObjectGroupType, File)} builds the
+ * Content Unit hierarchy.
+ * <p>
+ * Collectors with their own base directory, and the types of groups without
+ * any collected directory, are left to be scanned on demand.
+ */
+class CollectionPlan
+{
+   /**
+    * The collector of the planned type.
+    */
+   private final Collector collector;
+
+   /**
+    * The plans to be run within each directory included by the collector.
+    */
+   private final List<CollectionPlan> nestedPlans;
+
+   private CollectionPlan(Collector collector, List<CollectionPlan> nested_plans)
+   {
+      this.collector = collector;
+      this.nestedPlans = nested_plans;
+   }
+
+   /**
+    * Builds the plans of a list of group and data object types of the same
+    * level.
+    * @param project the project providing the collectors.
+    * @param group_types the group types (may be null).
+    * @param data_types the data object types (may be null).
+    * @return the plans of the types having a collector.
+    */
+   static List<CollectionPlan> create(Project project,
+         List<TransferObjectGroupType> group_types,
+         List<DataObjectType> data_types)
+   {
+      List<CollectionPlan> plans = new ArrayList<CollectionPlan>();
+
+      if (group_types != null)
+      {
+         for (TransferObjectGroupType group_type : group_types)
+         {
+            Collector collector =
+               project.getCollector(group_type.getGroupTypeID());
+
+            List<CollectionPlan> nested_plans = create(project,
+                  group_type.getGroupType(), group_type.getDataObjectType());
+
+            if (collector != null)
+            {
+               plans.add(new CollectionPlan(collector, nested_plans));
+            }
+            else
+            {
+               // Without collector, the group content is collected from
+               // the same base directory
+               plans.addAll(nested_plans);
+            }
+         }
+      }
+
+      if (data_types != null)
+      {
+         for (DataObjectType data_type : data_types)
+         {
+            Collector collector =
+               project.getCollector(data_type.getDataObjectTypeID());
+
+            if (collector != null)
+            {
+               plans.add(new CollectionPlan(collector,
+                     Collections.<CollectionPlan> emptyList()));
+            }
+         }
+      }
+
+      return plans;
+
+   } // End create(Project, List, List)
+
+   /**
+    * Runs plans from a base directory: each directory resolved by the plan
+    * collectors is walked once.
+    * @param base_directory the base directory.
+    * @param plans the plans to run.
+    */
+   static void collect(File base_directory, List<CollectionPlan> plans)
+   {
+      // Group the plans without results by scanned directory
+      Map<File, List<CollectionPlan>> scanned_plans =
+         new LinkedHashMap<File, List<CollectionPlan>>();
+
+      for (CollectionPlan plan : plans)
+      {
+         if (plan.collector.hasIncludedFiles(base_directory))
+         {
+            continue;
+         }
+
+         File directory = plan.collector.resolveBaseDirectory(
+               base_directory).getAbsoluteFile();
+
+         // Let the collector report missing directories
+         if (!directory.isDirectory())
+         {
+            continue;
+         }
+
+         List<CollectionPlan> directory_plans = scanned_plans.get(directory);
+
+         if (directory_plans == null)
+         {
+            directory_plans = new ArrayList<CollectionPlan>();
+            scanned_plans.put(directory, directory_plans);
+         }
+
+         directory_plans.add(plan);
+      }
+
+      // Walk each directory once for all its plans
+      for (Map.Entry<File, List<CollectionPlan>> entry :
+              scanned_plans.entrySet())
+      {
+         List<CollectionPlan> directory_plans = entry.getValue();
+
+         PlannedScanner[] scanners =
+            new PlannedScanner[directory_plans.size()];
+
+         for (int index = 0; index < scanners.length; index++)
+         {
+            scanners[index] = new PlannedScanner(directory_plans.get(index));
+            scanners[index].setBasedir(entry.getKey());
+         }
+
+         DirectoryScanner.scan(scanners);
+
+         for (PlannedScanner scanner : scanners)
+         {
+            scanner.store(base_directory);
+         }
+      }
+
+   } // End collect(File, List<CollectionPlan>)
+
+   /**
+    * A scanner of a plan collector, running the nested plans within the
+    * directories it includes.
+    */
+   private static class PlannedScanner extends DirectoryScanner
+   {
+      private final CollectionPlan plan;
+
+      /**
+       * The files included by this scanner.
+       */
+      private final Collector.IncludedFiles includedFiles;
+
+      /**
+       * The scanners run within the included directories.
+       */
+      private final List<PlannedScanner> nestedScanners =
+         new ArrayList<PlannedScanner>();
+
+      PlannedScanner(CollectionPlan plan)
+      {
+         this.plan = plan;
+         this.includedFiles = plan.collector.new IncludedFiles();
+         plan.collector.configureScanner(this);
+         this.setConsumer(this.includedFiles);
+      }
+
+      @Override
+      protected DirectoryScanner[] getNestedScanners(String name, File dir)
+      {
+         List<PlannedScanner> scanners = new ArrayList<PlannedScanner>();
+
+         for (CollectionPlan nested_plan : this.plan.nestedPlans)
+         {
+            if (!nested_plan.collector.hasBaseDirectory() &&
+                !nested_plan.collector.hasIncludedFiles(dir))
+            {
+               scanners.add(new PlannedScanner(nested_plan));
+            }
+         }
+
+         // Directories may be scanned by parallel tasks
+         synchronized (this.nestedScanners)
+         {
+            this.nestedScanners.addAll(scanners);
+         }
+
+         return scanners.toArray(new DirectoryScanner[scanners.size()]);
+      }
+
+      /**
+       * Records the collected files of this scanner and of its nested
+       * scanners in their collectors.
+       * @param base_directory the base directory given to the collector.
+       */
+      void store(File base_directory)
+      {
+         // Kept until read by the collector, whatever the cache capacity
+         this.includedFiles.put(base_directory, true);
+
+         for (PlannedScanner nested_scanner : this.nestedScanners)
+         {
+            nested_scanner.store(nested_scanner.getBasedir());
+         }
+      }
+   }
+
+} // End CollectionPlan class
@@ -22,12 +22,15 @@
 package fr.gael.ccsds.sip;
 
 import java.io.File;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.codehaus.plexus.util.DirectorySnapshot;
 import org.codehaus.plexus.util.DirectoryScanner;
+import org.codehaus.plexus.util.ScanConsumer;
 
 public class Collector
 {
@@ -45,10 +48,20 @@ public class Collector
     * Scanner result cache. The results are hashed according to the base
     * directory.
     */
-   private final HashMap<String, String []> resultCache;
+   private final CollectorCache resultCache;
    
    private File baseDirectory;
 
+   /**
+    * Snapshot of the directories scanned by previous runs (may be null).
+    */
+   private DirectorySnapshot snapshot = null;
+
+   /**
+    * Checksum types of the collected data objects.
+    */
+   private List<String> checksumTypes = null;
+
    /**
     * Build a data collector based on a given definition.
     * @param xml_collector definition from the project file.
@@ -60,42 +73,130 @@ public class Collector
 
       // Create the directory scanner
       this.scanner = new DirectoryScanner();
+      this.configureScanner(this.scanner);
+
+      // Initialize result cache
+      this.resultCache =
+         new CollectorCache(xml_collector.getResultCacheSize());
 
+      // Set local base directory
+      if (xml_collector.getBaseDirectory() != null)
+      {
+         this.baseDirectory = new File(xml_collector.getBaseDirectory());
+      }
+      else
+      {
+         this.baseDirectory = null;
+      }
+
+   } // End Collector(fr.gael.ccsds.sip.xml.Collector)
+
+   /**
+    * Configures a scanner from the collector definition.
+    * @param scanner the scanner to configure.
+    */
+   void configureScanner(DirectoryScanner scanner)
+   {
       // Configure include patterns of the scanner from the definition
-      if ((xml_collector.getInclude() != null) &&
-          (xml_collector.getInclude().size() > 0))
+      if ((this.xmlCollector.getInclude() != null) &&
+          (this.xmlCollector.getInclude().size() > 0))
       {
-         List<String> includes = xml_collector.getInclude();
-         this.scanner.setIncludes(
-               includes.toArray(new String[includes.size()]));
+         List<String> includes = this.xmlCollector.getInclude();
+         scanner.setIncludes(includes.toArray(new String[includes.size()]));
       }
 
       // Configure exclude patterns of the scanner from the definition
-      if ((xml_collector.getExclude() != null) &&
-          (xml_collector.getExclude().size() > 0))
+      if ((this.xmlCollector.getExclude() != null) &&
+          (this.xmlCollector.getExclude().size() > 0))
       {
-         List<String> excludes = xml_collector.getExclude();
-         this.scanner.setExcludes(
-               excludes.toArray(new String[excludes.size()]));
+         List<String> excludes = this.xmlCollector.getExclude();
+         scanner.setExcludes(excludes.toArray(new String[excludes.size()]));
       }
 
       // Configure case sensitivity of the scanner
-      this.scanner.setCaseSensitive(xml_collector.isCaseSensitive());
+      scanner.setCaseSensitive(this.xmlCollector.isCaseSensitive());
 
-      // Initialize result cache
-      this.resultCache = new HashMap<String, String []>();
+      // Configure the number of threads scanning the directories
+      scanner.setParallelism(this.xmlCollector.getScanParallelism());
 
-      // Set local base directory
-      if (xml_collector.getBaseDirectory() != null)
-      {
-         this.baseDirectory = new File(xml_collector.getBaseDirectory());
-      }
-      else
+      // Only list the directories changed since the previous runs
+      scanner.setSnapshot(this.snapshot);
+
+   } // End configureScanner(DirectoryScanner)
+
+   /**
+    * @return true if the collector scans a sub-directory of the directory it
+    *    is given (or another directory).
+    */
+   boolean hasBaseDirectory()
+   {
+      return this.baseDirectory != null;
+   }
+
+   /**
+    * @param base_directory a base directory.
+    * @return true if the files collected from this base directory are
+    *    already known.
+    */
+   boolean hasIncludedFiles(File base_directory)
+   {
+      return this.resultCache.contains(base_directory);
+   }
+
+   /**
+    * @return the cache of the collected files.
+    */
+   public CollectorCache getResultCache()
+   {
+      return this.resultCache;
+   }
+
+   /**
+    * @param snapshot the snapshot of the directories scanned by previous
+    *    runs (may be null).
+    */
+   void setSnapshot(DirectorySnapshot snapshot)
+   {
+      this.snapshot = snapshot;
+      this.scanner.setSnapshot(snapshot);
+   }
+
+   /**
+    * @return the checksum types of the collected data objects.
+    */
+   public List<String> getChecksumTypes()
+   {
+      return checksumTypes;
+   }
+
+   /**
+    * @param checksumTypes the checksum types to set
+    */
+   void setChecksumTypes(List<String> checksumTypes)
+   {
+      this.checksumTypes = checksumTypes;
+   }
+
+   /**
+    * @return the size from which the collected data objects are hashed by
+    *    chunks, or -1 if they are always hashed as a whole.
+    */
+   public long getChunkedChecksumThreshold()
+   {
+      if (this.xmlCollector.getChunkedChecksumThreshold() == null)
       {
-         this.baseDirectory = null;
+         return -1;
       }
+      return this.xmlCollector.getChunkedChecksumThreshold();
+   }
 
-   } // End Collector(fr.gael.ccsds.sip.xml.Collector)
+   /**
+    * @return the size of the chunks hashed in parallel.
+    */
+   public int getChecksumChunkSize()
+   {
+      return this.xmlCollector.getChecksumChunkSize();
+   }
 
    /**
     * @return the resolve base directory.
@@ -126,7 +227,7 @@ public class Collector
    public String [] getIncludedFiles(File base_directory)
    {
       // Attempt to get previously computed results
-      String [] results = this.resultCache.get(base_directory.getAbsolutePath());
+      String [] results = this.resultCache.get(base_directory);
       
       // Return immediately if a result was already processed
       if (results != null)
@@ -134,27 +235,119 @@ public class Collector
          return results;
       }
 
-      // Configure scanner base directory
-      this.scanner.setBasedir(this.resolveBaseDirectory(base_directory));
+      IncludedFiles included_files = new IncludedFiles();
 
-      // Scan the files
-      this.scanner.scan();
+      // The scanner is shared by the threads using this collector
+      synchronized (this.scanner)
+      {
+         // Configure scanner base directory
+         this.scanner.setBasedir(this.resolveBaseDirectory(base_directory));
 
-      // Gather results (either files and directories)
-      List<String> files = new ArrayList<String>();
-      files.addAll(Arrays.asList(this.scanner.getIncludedFiles()));
-      files.addAll(Arrays.asList(this.scanner.getIncludedDirectories()));
-      results = files.toArray(new String[files.size()]);
+         // Scan the files, streaming the included ones
+         this.scanner.setConsumer(included_files);
+         this.scanner.scan();
+      }
 
-      // Cache the resulting files
-      if (results != null)
+      // Cache and return results (either files and directories)
+      return included_files.put(base_directory, false);
+
+   } // End getIncludedFiles(File)
+
+   /**
+    * Returns the attributes of a collected file, as read when scanning its
+    * base directory.
+    * @param base_directory the base directory the file was collected from.
+    * @param file_path the path of the file returned by
+    *    {@link #getIncludedFiles(File)}.
+    * @return the attributes of the file, or null if unknown.
+    */
+   public BasicFileAttributes getIncludedAttributes(File base_directory,
+         String file_path)
+   {
+      return this.resultCache.getAttributes(base_directory, file_path);
+
+   } // End getIncludedAttributes(File, String)
+
+   /**
+    * Gathers the files and directories streamed by a scanner configured by
+    * this collector, without keeping the other scan results.
+    */
+   class IncludedFiles implements ScanConsumer
+   {
+      private final List<String> files = new ArrayList<String>();
+
+      private final List<String> directories = new ArrayList<String>();
+
+      private final Map<String, BasicFileAttributes> attributes =
+         new HashMap<String, BasicFileAttributes>();
+
+      private final List<String> walkedDirectories = new ArrayList<String>();
+
+      private final List<Long> walkedTimes = new ArrayList<Long>();
+
+      @Override
+      public void accept(String name, boolean directory,
+            BasicFileAttributes file_attributes)
       {
-         this.resultCache.put(base_directory.getAbsolutePath(), results);
+         if (directory)
+         {
+            this.directories.add(name);
+         }
+         else
+         {
+            this.files.add(name);
+         }
+
+         if (file_attributes != null)
+         {
+            this.attributes.put(name, file_attributes);
+         }
       }
 
-      // Return result
-      return results;
+      @Override
+      public void walked(String name, BasicFileAttributes file_attributes)
+      {
+         this.walkedDirectories.add(name);
+         this.walkedTimes.add(file_attributes.lastModifiedTime().toMillis());
+      }
 
-   } // End getIncludedFiles(File)
+      /**
+       * Records the gathered files, then directories, as the results of the
+       * collector for a base directory.
+       * @param base_directory the base directory.
+       * @param ahead true if the files are gathered ahead of their use: they
+       *    are kept in the cache until read.
+       * @return the recorded results.
+       */
+      String [] put(File base_directory, boolean ahead)
+      {
+         String [] results =
+            new String [this.files.size() + this.directories.size()];
+
+         int index = 0;
+         for (String file : this.files)
+         {
+            results[index++] = file;
+         }
+         for (String directory : this.directories)
+         {
+            results[index++] = directory;
+         }
+
+         long [] walked_times = new long [this.walkedTimes.size()];
+         for (index = 0; index < walked_times.length; index++)
+         {
+            walked_times[index] = this.walkedTimes.get(index);
+         }
+
+         resultCache.put(base_directory, new CollectorCache.Results(results,
+               this.attributes, resolveBaseDirectory(base_directory),
+               this.walkedDirectories.toArray(
+                  new String [this.walkedDirectories.size()]),
+               walked_times), ahead);
+
+         return results;
+      }
+   }
 
 } // End Collector class
@@ -0,0 +1,349 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip;
+
+import java.io.File;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of the files collected by a {@link Collector}, hashed
+ * according to the base directory they were collected from.
+ * <p>
+ * The least recently used base directories are evicted first once the
+ * capacity is reached. Every cached entry keeps the modification times of
+ * the directories listed by its scan: an entry cached by a previous build
+ * (see {@link #revalidate()}) is only reused if none of these directories
+ * changed since, otherwise it is discarded and the directory is scanned
+ * again. The cache can be used by concurrent threads.
+ * <p>
+ * The entries collected ahead of their use (e.g. by a walk collecting the
+ * nested directories of a whole tree at once) are pinned: they are kept
+ * whatever the capacity until first read, or until the next build.
+ */
+public class CollectorCache
+{
+   /**
+    * The cached entries, in access order.
+    */
+   private final LinkedHashMap<String, Results> results;
+
+   /**
+    * The entries of the current build not read yet, in insertion order,
+    * not bounded by the capacity.
+    */
+   private final Map<String, Results> pinned =
+      new LinkedHashMap<String, Results>();
+
+   /**
+    * The maximum number of cached entries.
+    */
+   private final int capacity;
+
+   /**
+    * The current build, entries of previous ones have to be checked.
+    */
+   private long generation = 0;
+
+   private long hits = 0;
+   private long misses = 0;
+   private long invalidations = 0;
+   private long evictions = 0;
+
+   /**
+    * Build an empty cache.
+    * @param capacity the maximum number of cached base directories.
+    */
+   public CollectorCache(final int capacity)
+   {
+      this.capacity = Math.max(1, capacity);
+      this.results = new LinkedHashMap<String, Results>(16, 0.75f, true)
+      {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, Results> eldest)
+         {
+            if (size() > CollectorCache.this.capacity)
+            {
+               CollectorCache.this.evictions += 1;
+               return true;
+            }
+            return false;
+         }
+      };
+   }
+
+   /**
+    * Starts a new build: the entries cached so far will be checked against
+    * the file system when first reused.
+    */
+   public synchronized void revalidate()
+   {
+      // The entries never read are now bounded by the capacity
+      for (final Map.Entry<String, Results> entry : this.pinned.entrySet())
+      {
+         this.results.put(entry.getKey(), entry.getValue());
+      }
+      this.pinned.clear();
+
+      this.generation += 1;
+   }
+
+   /**
+    * Returns the files collected from a base directory.
+    * @param base_directory the base directory.
+    * @return the collected files, or null if not cached or outdated.
+    */
+   public synchronized String [] get(final File base_directory)
+   {
+      final Results entry = this.lookup(base_directory);
+
+      if (entry == null)
+      {
+         this.misses += 1;
+         return null;
+      }
+
+      // Read at last: the entry is now bounded by the capacity
+      final String key = base_directory.getAbsolutePath();
+      if (this.pinned.remove(key) != null)
+      {
+         this.results.put(key, entry);
+      }
+
+      this.hits += 1;
+      return entry.files;
+   }
+
+   /**
+    * @param base_directory a base directory.
+    * @return true if up-to-date files collected from this base directory
+    *    are cached.
+    */
+   public synchronized boolean contains(final File base_directory)
+   {
+      return this.lookup(base_directory) != null;
+   }
+
+   /**
+    * Returns the attributes of a collected file, if read by the scan that
+    * collected it during the current build.
+    * @param base_directory the base directory.
+    * @param file_path the path of the collected file.
+    * @return the attributes of the file, or null if unknown.
+    */
+   public synchronized BasicFileAttributes getAttributes(
+         final File base_directory, final String file_path)
+   {
+      final String key = base_directory.getAbsolutePath();
+      Results entry = this.pinned.get(key);
+      if (entry == null)
+      {
+         entry = this.results.get(key);
+      }
+
+      if ((entry == null) || (entry.attributes == null))
+      {
+         return null;
+      }
+
+      return entry.attributes.get(file_path);
+   }
+
+   /**
+    * Caches the files collected from a base directory.
+    * @param base_directory the base directory.
+    * @param entry the collected files.
+    * @param pin true if the files are collected ahead of their use: the
+    *    entry is kept until read during the current build.
+    */
+   synchronized void put(final File base_directory, final Results entry,
+         final boolean pin)
+   {
+      final String key = base_directory.getAbsolutePath();
+      entry.generation = this.generation;
+
+      if (pin)
+      {
+         this.results.remove(key);
+         this.pinned.put(key, entry);
+      }
+      else
+      {
+         this.pinned.remove(key);
+         this.results.put(key, entry);
+      }
+   }
+
+   /**
+    * @return the cached entry of a base directory, checked if cached by a
+    *    previous build, or null.
+    */
+   private Results lookup(final File base_directory)
+   {
+      final String key = base_directory.getAbsolutePath();
+
+      // Pinned entries belong to the current build
+      final Results pinned_entry = this.pinned.get(key);
+      if (pinned_entry != null)
+      {
+         return pinned_entry;
+      }
+
+      final Results entry = this.results.get(key);
+
+      if ((entry == null) || (entry.generation == this.generation))
+      {
+         return entry;
+      }
+
+      if (!entry.isUpToDate())
+      {
+         this.results.remove(key);
+         this.invalidations += 1;
+         return null;
+      }
+
+      // The files may have changed since: their attributes will be read
+      // again when needed
+      entry.generation = this.generation;
+      entry.attributes = null;
+      return entry;
+   }
+
+   /**
+    * @return the maximum number of cached base directories, besides the
+    *    pinned ones.
+    */
+   public int getCapacity()
+   {
+      return this.capacity;
+   }
+
+   /**
+    * @return the number of cached base directories.
+    */
+   public synchronized int getSize()
+   {
+      return this.results.size() + this.pinned.size();
+   }
+
+   /**
+    * @return the number of requests answered from the cache.
+    */
+   public synchronized long getHits()
+   {
+      return this.hits;
+   }
+
+   /**
+    * @return the number of requests that required a scan.
+    */
+   public synchronized long getMisses()
+   {
+      return this.misses;
+   }
+
+   /**
+    * @return the number of entries discarded because their directories
+    *    changed.
+    */
+   public synchronized long getInvalidations()
+   {
+      return this.invalidations;
+   }
+
+   /**
+    * @return the number of entries evicted to respect the capacity.
+    */
+   public synchronized long getEvictions()
+   {
+      return this.evictions;
+   }
+
+   /**
+    * The files collected from a base directory, with the modification times
+    * of the directories listed to collect them.
+    */
+   static class Results
+   {
+      /**
+       * The collected files, then directories.
+       */
+      final String [] files;
+
+      /**
+       * The attributes of the collected files (null once outdated).
+       */
+      Map<String, BasicFileAttributes> attributes;
+
+      /**
+       * The scanned directory.
+       */
+      final File directory;
+
+      /**
+       * The listed directories, relative to the scanned directory, and
+       * their modification times.
+       */
+      final String [] walkedDirectories;
+      final long [] walkedTimes;
+
+      /**
+       * The build that collected or last checked these files.
+       */
+      long generation;
+
+      Results(final String [] files,
+            final Map<String, BasicFileAttributes> attributes,
+            final File directory, final String [] walked_directories,
+            final long [] walked_times)
+      {
+         this.files = files;
+         this.attributes = attributes;
+         this.directory = directory;
+         this.walkedDirectories = walked_directories;
+         this.walkedTimes = walked_times;
+      }
+
+      /**
+       * @return true if none of the listed directories changed.
+       */
+      boolean isUpToDate()
+      {
+         for (int index = 0; index < this.walkedDirectories.length; index++)
+         {
+            final File walked_directory = new File(this.directory,
+               this.walkedDirectories[index]);
+
+            if (walked_directory.lastModified() != this.walkedTimes[index])
+            {
+               return false;
+            }
+         }
+         return true;
+      }
+   }
+
+} // End CollectorCache class
@@ -22,16 +22,24 @@
 package fr.gael.ccsds.sip;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
-import org.apache.commons.compress.utils.IOUtils;
+import org.apache.log4j.Logger;
 
+import fr.gael.ccsds.sip.archive.ArchiveSession;
+import fr.gael.ccsds.sip.checksum.ChecksumCache;
+import fr.gael.ccsds.sip.checksum.ChecksumFactory;
+import fr.gael.ccsds.sip.checksum.ChunkedChecksum;
+import fr.gael.ccsds.sip.checksum.MultiDigest;
 import esa.xfdu.header.Extension;
 import esa.xfdu.object.data.ByteStream;
 import esa.xfdu.object.data.DataObject;
@@ -48,6 +56,11 @@ import esa.xfdu.object.metadata.Reference;
  */
 public class ContentUnit extends Vector<ContentUnit>
 {
+   /**
+    * A logger for this class.
+    */
+   private static Logger logger = Logger.getLogger(ContentUnit.class);
+
    /**
     * Identifier of this Content Unit
     */
@@ -65,10 +78,25 @@ public class ContentUnit extends Vector<ContentUnit>
    
    private boolean lastTransferObject = false;
 
+   private List<String> checksumTypes = null;
+
+   private ChecksumCache checksumCache = null;
+
+   private long chunkedChecksumThreshold = -1;
+
+   private int checksumChunkSize = ChunkedChecksum.DEFAULT_CHUNK_SIZE;
+
+   /**
+    * Total size of the data objects of this unit and its children, or -1
+    * if not aggregated yet.
+    */
+   private long size = -1;
+
    @Override
    public boolean add(ContentUnit unit)
    {
       unit.setParent(this);
+      this.resetSize();
       return super.add(unit);
    }
 
@@ -160,6 +188,7 @@ public class ContentUnit extends Vector<ContentUnit>
       }
 
       this.dataObjectFiles.add(dataObjectFile);
+      this.resetSize();
    }
 
    /**
@@ -228,8 +257,91 @@ public class ContentUnit extends Vector<ContentUnit>
       this.lastTransferObject = lastTransferObject;
    }
 
+   /**
+    * @return the checksum types computed for the data objects of this unit
+    *    (MD5 if not set).
+    */
+   public List<String> getChecksumTypes()
+   {
+      if ((this.checksumTypes == null) || this.checksumTypes.isEmpty())
+      {
+         return Collections.singletonList(ChecksumFactory.CHECKSUM_MD5);
+      }
+      return checksumTypes;
+   }
+
+   /**
+    * @param checksumTypes the checksum types to set
+    */
+   public void setChecksumTypes(List<String> checksumTypes)
+   {
+      this.checksumTypes = checksumTypes;
+   }
+
+   /**
+    * @return the cache of the data object checksums (may be null).
+    */
+   public ChecksumCache getChecksumCache()
+   {
+      return checksumCache;
+   }
+
+   /**
+    * @param checksumCache the checksum cache to set
+    */
+   public void setChecksumCache(ChecksumCache checksumCache)
+   {
+      this.checksumCache = checksumCache;
+   }
+
+   /**
+    * @return the size from which the data objects are hashed by chunks in
+    *    parallel, or -1 if they are always hashed as a whole.
+    */
+   public long getChunkedChecksumThreshold()
+   {
+      return chunkedChecksumThreshold;
+   }
+
+   /**
+    * @param chunkedChecksumThreshold the chunked hashing threshold to set
+    */
+   public void setChunkedChecksumThreshold(long chunkedChecksumThreshold)
+   {
+      this.chunkedChecksumThreshold = chunkedChecksumThreshold;
+   }
+
+   /**
+    * @return the size of the chunks hashed in parallel.
+    */
+   public int getChecksumChunkSize()
+   {
+      return checksumChunkSize;
+   }
+
+   /**
+    * @param checksumChunkSize the chunk size to set
+    */
+   public void setChecksumChunkSize(int checksumChunkSize)
+   {
+      this.checksumChunkSize = checksumChunkSize;
+   }
+
+   /**
+    * Returns the total size of the data objects referenced by this unit and
+    * its children. The size is aggregated once per subtree from the file
+    * attributes captured by the collectors, and only computed again if
+    * units or data objects are added below this unit.
+    *
+    * @return the total size in bytes.
+    */
    public long getSize()
    {
+      if (this.size >= 0)
+      {
+         return this.size;
+      }
+
       // Initialize the output total size
       long size = 0;
 
@@ -238,12 +350,7 @@ public class ContentUnit extends Vector<ContentUnit>
       {
          for (DataObjectFile current_file : this.dataObjectFiles)
          {
-            File abstract_file = current_file.getFile();
-            
-            if (abstract_file != null)
-            {
-               size += abstract_file.length();
-            }
+            size += current_file.getSize();
          }
       }
 
@@ -253,12 +360,160 @@ public class ContentUnit extends Vector<ContentUnit>
          size += child.getSize();
       }
 
-      // return output size
+      // Keep and return output size
+      this.size = size;
       return size;
    }
 
+   /**
+    * Returns a key identifying this unit among the units of the same type:
+    * its instance path, or the instance keys of its children for the
+    * Transfer Object units.
+    *
+    * @return the instance key.
+    */
+   public String getInstanceKey()
+   {
+      if (this.instancePath != null)
+      {
+         return this.instancePath;
+      }
+
+      String key = "";
+      for (ContentUnit child : this)
+      {
+         if (key.length() > 0)
+         {
+            key += "|";
+         }
+         key += child.getInstanceKey();
+      }
+      return key;
+   }
+
+   /**
+    * Computes a fingerprint of the content of this unit and its children:
+    * the structure of the units, and the path, size and modification time
+    * of their data object files. Files are not read.
+    *
+    * @return the hexadecimal fingerprint.
+    */
+   public String getFingerprint()
+   {
+      MessageDigest digest;
+      try
+      {
+         digest = MessageDigest.getInstance("MD5");
+      }
+      catch (NoSuchAlgorithmException exception)
+      {
+         throw new IllegalStateException(exception);
+      }
+
+      this.updateFingerprint(digest);
+
+      return ChecksumFactory.toHexString(digest.digest());
+   }
+
+   /**
+    * Feeds a fingerprint digest with this unit and its children.
+    */
+   private void updateFingerprint(MessageDigest digest)
+   {
+      final Charset utf8 = Charset.forName("UTF-8");
+
+      digest.update(("[" + this.getId() + "|" + this.getInstancePath() +
+         "\n").getBytes(utf8));
+
+      if (this.dataObjectFiles != null)
+      {
+         for (DataObjectFile current_file : this.dataObjectFiles)
+         {
+            long modification_time = 0;
+            try
+            {
+               modification_time =
+                  current_file.getAttributes().lastModifiedTime().toMillis();
+            }
+            catch (IOException exception)
+            {
+               // Unreadable file: only its path and size are known
+            }
+
+            digest.update((current_file.getInstancePath() + "|" +
+               current_file.getSize() + "|" + modification_time + "\n").
+               getBytes(utf8));
+         }
+      }
+
+      for (ContentUnit child : this)
+      {
+         child.updateFingerprint(digest);
+      }
+
+      digest.update("]\n".getBytes(utf8));
+   }
+
+   /**
+    * Invalidates the aggregated size of this unit and of its ancestors.
+    */
+   private void resetSize()
+   {
+      for (ContentUnit unit = this; unit != null; unit = unit.getParent())
+      {
+         unit.size = -1;
+      }
+   }
+
+   /**
+    * Counts the identifiers allocated by
+    * {@link #toXfduContentUnit(IndexManager, List, String, ArchiveSession)}
+    * for this unit and its children.
+    *
+    * @param counts the number of identifiers by key, incremented.
+    */
+   public void countIds(Map<String, Integer> counts)
+   {
+      if ((this.dataObjectFiles == null) || (this.dataObjectFiles.size() <= 0))
+      {
+         // Transfer object identifier
+         if (this.getParent() == null)
+         {
+            addCount(counts, this.getId(), 1);
+         }
+      }
+      else
+      {
+         // Data object identifiers
+         addCount(counts, "DO-" + this.getId(), this.dataObjectFiles.size());
+      }
+
+      for (ContentUnit child_unit : this)
+      {
+         child_unit.countIds(counts);
+      }
+   }
+
+   private static void addCount(Map<String, Integer> counts, String key,
+         int count)
+   {
+      Integer previous = counts.get(key);
+      counts.put(key, (previous == null) ? count : previous + count);
+   }
+
+   /**
+    * Builds the XFDU content unit of this unit and its children, and writes
+    * the referenced data object files into the output package.
+    *
+    * @param index_manager the manager of the data object identifiers.
+    * @param data_objects the list collecting the built data objects.
+    * @param package_path the path of the SIP directory.
+    * @param session the output package receiving the data object files.
+    * @return the XFDU content unit.
+    */
    public esa.xfdu.map.ContentUnit toXfduContentUnit(IndexManager index_manager,
-         List<DataObject> data_objects, String package_path)
+         List<DataObject> data_objects, String package_path,
+         ArchiveSession session)
    {
       //String current_id = index_manager.getNextId("CU-" + this.getId());
 
@@ -338,7 +593,7 @@ public class ContentUnit extends Vector<ContentUnit>
       for (ContentUnit child_unit : this)
       {
          xfdu_unit.addChild(child_unit.toXfduContentUnit(index_manager,
-               data_objects, package_path));
+               data_objects, package_path, session));
       }
 
       if ((this.dataObjectFiles != null) && (this.dataObjectFiles.size() > 0))
@@ -347,12 +602,11 @@ public class ContentUnit extends Vector<ContentUnit>
          {
 
             // Get size
-            long total_length = current_file.getFile().length();
+            long total_length = current_file.getSize();
 
-            // Create the Data Object
-            DataObject data_object =
-               new DefaultDataObject(index_manager.getNextId("DO-"
-                     + this.getId()), null, null, total_length, null, "MD5");
+            // Allocate the Data Object identifier
+            String data_object_id = index_manager.getNextId("DO-" +
+               this.getId());
 
             String output_file_path = "" + current_file.getInstancePath();
 
@@ -366,6 +620,83 @@ public class ContentUnit extends Vector<ContentUnit>
             output_file_path = output_file_path.replace(File.separatorChar,
                   '/');
 
+            // Stream the file directly into the output package, computing
+            // all its checksums from the bytes read for the copy unless
+            // they are already cached for the current version of the file.
+            // Large files are rather hashed by chunks in parallel.
+            boolean chunked = (this.chunkedChecksumThreshold >= 0) &&
+               (total_length >= this.chunkedChecksumThreshold);
+            List<String> checksum_types = chunked ?
+               ChunkedChecksum.getTypes(this.getChecksumTypes(),
+                  this.checksumChunkSize) :
+               this.getChecksumTypes();
+            String[] checksums = new String[checksum_types.size()];
+            try
+            {
+               BasicFileAttributes attributes = null;
+               String[] cached_checksums = null;
+
+               if (this.checksumCache != null)
+               {
+                  attributes = current_file.getAttributes();
+                  cached_checksums = this.checksumCache.get(
+                     current_file.getFile(), attributes, checksum_types);
+               }
+
+               if (cached_checksums != null)
+               {
+                  session.add(current_file.getFile(), output_file_path);
+                  checksums = cached_checksums;
+               }
+               else
+               {
+                  if (chunked)
+                  {
+                     ChunkedChecksum digest = new ChunkedChecksum(
+                        current_file.getFile(), this.getChecksumTypes(),
+                        this.checksumChunkSize);
+                     try
+                     {
+                        session.add(current_file.getFile(), output_file_path);
+                        checksums = digest.getValues();
+                     }
+                     finally
+                     {
+                        digest.close();
+                     }
+                  }
+                  else
+                  {
+                     MultiDigest digest =
+                        ChecksumFactory.open(checksum_types);
+                     session.add(current_file.getFile(), output_file_path,
+                        digest);
+                     checksums = digest.digestAll();
+                  }
+
+                  if (this.checksumCache != null)
+                  {
+                     this.checksumCache.put(current_file.getFile(),
+                        attributes, checksum_types, checksums);
+                  }
+               }
+            }
+            catch (IOException e)
+            {
+               // A SIP missing a data file must not be considered packaged
+               throw new SipBuilderException("Cannot copy file \"" +
+                  current_file.getFile().getPath() + "\" into package.", e);
+            }
+
+            // The first checksum applies to the Data Object and the second
+            // one (if any) to its Byte Stream
+            int stream_checksum_index = (checksums.length > 1) ? 1 : 0;
+
+            // Create the Data Object
+            DataObject data_object =
+               new DefaultDataObject(data_object_id, null, null,
+                     total_length, checksums[0], checksum_types.get(0));
+
             final Reference reference =
                new Reference(null, "URL", null, null, null, package_path);
 
@@ -379,41 +710,12 @@ public class ContentUnit extends Vector<ContentUnit>
                   null, // identifier
                   null, // mime_type
                   total_length, // size
-                  null, // checksum
-                  "MD5"); // checksum_type);
+                  checksums[stream_checksum_index], // checksum
+                  checksum_types.get(stream_checksum_index)); // checksum_type);
 
             bs.setFileLocation2(flocs);
             data_object.getByteStreams().add(bs);
 
-            // COpying file
-            // TODO: is this the right place ???
-            File output_file = new File(package_path, output_file_path);
-            File output_dir = output_file.getParentFile();
-            output_dir.mkdirs();
-
-            try
-            {
-               FileInputStream input_stream = new FileInputStream(
-                  current_file.getFile());
-               FileOutputStream output_stream =
-                     new FileOutputStream(output_file);
-
-               IOUtils.copy(input_stream, output_stream);
-
-               input_stream.close();
-               output_stream.close();
-            }
-            catch (FileNotFoundException e)
-            {
-               // TODO Auto-generated catch block
-               e.printStackTrace();
-            }
-            catch (IOException e)
-            {
-               // TODO Auto-generated catch block
-               e.printStackTrace();
-            }
-
             // Reference Data Object from the Content Unit
             xfdu_unit.addDataObject(data_object);
 
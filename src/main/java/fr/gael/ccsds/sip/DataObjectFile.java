@@ -22,16 +22,38 @@
 package fr.gael.ccsds.sip;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 
 public class DataObjectFile
 {
    final File file;
    final String instancePath;
 
+   /**
+    * The attributes of the file (size, modification time, file key, type),
+    * read once: either captured by the collector scan or read on first use.
+    */
+   private BasicFileAttributes attributes;
+
    public DataObjectFile(File input_file, String instance_path)
+   {
+      this(input_file, instance_path, null);
+   }
+
+   /**
+    * @param input_file the data object file.
+    * @param instance_path the path of the file in its content unit.
+    * @param attributes the attributes of the file read by the scan that
+    *    collected it (may be null).
+    */
+   public DataObjectFile(File input_file, String instance_path,
+         BasicFileAttributes attributes)
    {
       this.file = input_file;
       this.instancePath = instance_path;
+      this.attributes = attributes;
    }
 
    /**
@@ -49,4 +71,40 @@ public class DataObjectFile
    {
       return instancePath;
    }
+
+   /**
+    * @return the attributes of the file, read from the file system if they
+    *    were not captured by the scan.
+    * @throws IOException if the attributes cannot be read.
+    */
+   public synchronized BasicFileAttributes getAttributes() throws IOException
+   {
+      if (this.attributes == null)
+      {
+         this.attributes =
+            Files.readAttributes(this.file.toPath(), BasicFileAttributes.class);
+      }
+      return this.attributes;
+   }
+
+   /**
+    * @return the size of the file, or 0 if it cannot be read (as
+    *    {@link File#length()}).
+    */
+   public long getSize()
+   {
+      if (this.file == null)
+      {
+         return 0;
+      }
+
+      try
+      {
+         return this.getAttributes().size();
+      }
+      catch (IOException e)
+      {
+         return 0;
+      }
+   }
 }
@@ -21,30 +21,282 @@
  */
 package fr.gael.ccsds.sip;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Allocates the SIP sequence numbers and the identifiers of a build. The
+ * indexes are kept in memory, or in an {@link IndexStore} shared by the
+ * successive runs and by concurrent processes.
+ * <p>
+ * An index manager may be shared by threads packaging SIPs in parallel:
+ * the in-memory indexes are atomic counters allocated without locking. The
+ * identifiers of a SIP are however reserved beforehand (see
+ * {@link #reserve(Map)}), so that they do not depend on the order in which
+ * the concurrent SIPs allocate them.
+ */
 public class IndexManager
 {
-   private Map<String, Integer> indexes = new HashMap<String, Integer>();
+   /**
+    * Number of digits of the formatted indexes (padded with zeros).
+    */
+   private static final int INDEX_DIGITS = 4;
+
+   private final ConcurrentMap<String, AtomicInteger> indexes =
+      new ConcurrentHashMap<String, AtomicInteger>();
+
+   /**
+    * The persistent store of the indexes (may be null).
+    */
+   private final IndexStore store;
+
+   /**
+    * The reserved indexes handed out by this manager, by key (null if the
+    * indexes are allocated on demand).
+    */
+   private final Map<String, Queue<Integer>> reserved;
+
+   /**
+    * The manager the reserved indexes were allocated from (null if none).
+    */
+   private final IndexManager parent;
+
+   public IndexManager()
+   {
+      this(null, null, null);
+   }
+
+   /**
+    * Builds an index manager allocating its indexes from a persistent
+    * store.
+    *
+    * @param store the store of the indexes.
+    */
+   public IndexManager(final IndexStore store)
+   {
+      this(store, null, null);
+   }
+
+   private IndexManager(final IndexStore store,
+         final Map<String, Queue<Integer>> reserved,
+         final IndexManager parent)
+   {
+      this.store = store;
+      this.reserved = reserved;
+      this.parent = parent;
+   }
+
+   /**
+    * Allocates a number of indexes per key, and returns a manager handing
+    * them out in ascending order. The indexes allocated beyond the reserved
+    * ones, as well as the other operations, are delegated to this manager.
+    * <p>
+    * The returned manager is meant to be used by a single thread.
+    *
+    * @param counts the number of indexes to be reserved, by key.
+    * @return the manager of the reserved indexes.
+    */
+   public IndexManager reserve(final Map<String, Integer> counts)
+   {
+      final Map<String, Queue<Integer>> reserved =
+         new HashMap<String, Queue<Integer>>();
+
+      for (Map.Entry<String, Integer> count : counts.entrySet())
+      {
+         final Queue<Integer> indexes =
+            new ArrayDeque<Integer>(count.getValue());
+         for (int index = 0; index < count.getValue(); index++)
+         {
+            indexes.add(this.getNextIndex(count.getKey()));
+         }
+         reserved.put(count.getKey(), indexes);
+      }
+
+      return new IndexManager(null, reserved, this);
+   }
 
    public int getNextIndex(final String key)
    {
-      if (!indexes.containsKey(key))
+      if (this.reserved != null)
       {
-         indexes.put(key, new Integer(0));
+         final Queue<Integer> indexes = this.reserved.get(key);
+         final Integer index = (indexes == null) ? null : indexes.poll();
+         return (index != null) ? index : this.parent.getNextIndex(key);
       }
-      indexes.put(key, new Integer(indexes.get(key).intValue() + 1));
-      return indexes.get(key).intValue();
+
+      if (this.store != null)
+      {
+         try
+         {
+            return this.store.next(key);
+         }
+         catch (IOException exception)
+         {
+            throw new IllegalStateException("Cannot allocate an index for \"" +
+               key + "\" in \"" + this.store.getFile().getPath() + "\".",
+               exception);
+         }
+      }
+
+      return this.getCounter(key).incrementAndGet();
    }
 
    public String getNextId(final String key)
    {
-      return "" + key + "-" + String.format("%04d",this.getNextIndex(key));
+      return formatId(key, this.getNextIndex(key));
+   }
+
+   /**
+    * Formats an identifier as "key-index", the index being padded with
+    * zeros to at least four digits (e.g. "DO-TYPE-0042").
+    *
+    * @param key the key of the identifier.
+    * @param index the index of the identifier.
+    * @return the formatted identifier.
+    */
+   public static String formatId(final String key, final int index)
+   {
+      StringBuilder id = new StringBuilder(key.length() + 1 + INDEX_DIGITS);
+      id.append(key).append('-');
+      return appendIndex(id, index).toString();
+   }
+
+   /**
+    * Appends an index padded with zeros to at least four digits.
+    *
+    * @param buffer the buffer to append to.
+    * @param index the index.
+    * @return the buffer.
+    */
+   public static StringBuilder appendIndex(final StringBuilder buffer,
+         final int index)
+   {
+      if (index < 0)
+      {
+         return buffer.append(String.format("%04d", index));
+      }
+
+      for (int limit = 10, digits = 1; digits < INDEX_DIGITS;
+           limit *= 10, digits++)
+      {
+         if (index < limit)
+         {
+            buffer.append('0');
+         }
+      }
+      return buffer.append(index);
    }
 
    public void resetIndex(final String key)
    {
+      if (this.parent != null)
+      {
+         this.parent.resetIndex(key);
+         return;
+      }
+
+      if (this.store != null)
+      {
+         try
+         {
+            this.store.reset(key);
+         }
+         catch (IOException exception)
+         {
+            throw new IllegalStateException("Cannot reset the index of \"" +
+               key + "\" in \"" + this.store.getFile().getPath() + "\".",
+               exception);
+         }
+         return;
+      }
+
       indexes.remove(key);
    }
+
+   /**
+    * Sets the last index allocated for a key, so that the numbering
+    * continues from it. A persistent index is never lowered, as concurrent
+    * processes may have allocated further indexes.
+    */
+   public void setIndex(final String key, final int index)
+   {
+      if (this.parent != null)
+      {
+         this.parent.setIndex(key, index);
+         return;
+      }
+
+      if (this.store != null)
+      {
+         try
+         {
+            this.store.raise(key, index);
+         }
+         catch (IOException exception)
+         {
+            throw new IllegalStateException("Cannot set the index of \"" +
+               key + "\" in \"" + this.store.getFile().getPath() + "\".",
+               exception);
+         }
+         return;
+      }
+
+      this.getCounter(key).set(index);
+   }
+
+   /**
+    * @return the last index allocated for each key.
+    */
+   public Map<String, Integer> getIndexes()
+   {
+      if (this.parent != null)
+      {
+         return this.parent.getIndexes();
+      }
+
+      if (this.store != null)
+      {
+         try
+         {
+            return this.store.getIndexes();
+         }
+         catch (IOException exception)
+         {
+            throw new IllegalStateException("Cannot read the indexes of \"" +
+               this.store.getFile().getPath() + "\".", exception);
+         }
+      }
+
+      Map<String, Integer> copy = new HashMap<String, Integer>();
+      for (Map.Entry<String, AtomicInteger> index : indexes.entrySet())
+      {
+         copy.put(index.getKey(), index.getValue().get());
+      }
+      return copy;
+   }
+
+   /**
+    * @return the counter of a key, created on first use.
+    */
+   private AtomicInteger getCounter(final String key)
+   {
+      AtomicInteger counter = indexes.get(key);
+
+      if (counter == null)
+      {
+         AtomicInteger new_counter = new AtomicInteger();
+         counter = indexes.putIfAbsent(key, new_counter);
+         if (counter == null)
+         {
+            counter = new_counter;
+         }
+      }
+      return counter;
+   }
 }
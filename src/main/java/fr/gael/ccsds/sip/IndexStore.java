@@ -0,0 +1,513 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A persistent store of the indexes allocated to the SIP sequence numbers
+ * and to the identifiers, shared by the successive runs and by concurrent
+ * processes building the same project.
+ * <p>
+ * The store file starts with a header holding the length of its committed
+ * records, followed by one record per key: the key and the high-water mark
+ * of its reserved indexes. The indexes are reserved by ranges, under an
+ * exclusive lock of the file, and the new mark is forced to the storage
+ * device before any index of the range is returned; the indexes of a range
+ * are then allocated in memory. An index is therefore never allocated
+ * twice, even after a crash (the indexes reserved by a crashed build are
+ * lost, not reused). When the store is closed, the unused end of the last
+ * range of each key is released, unless another process reserved further
+ * indexes meanwhile, so that successive runs allocate contiguous indexes.
+ * <p>
+ * A new record is written after the committed ones before the header is
+ * updated: a record partially written by a crashed process is ignored and
+ * overwritten by the next allocation.
+ */
+public class IndexStore
+{
+   /**
+    * Identification of the store file format.
+    */
+   private static final int MAGIC = 0x53495049;
+   private static final int VERSION = 1;
+
+   /**
+    * Header layout: magic, version, length of the committed records.
+    */
+   private static final int HEADER_SIZE = 16;
+   private static final int END_OFFSET = 8;
+
+   /**
+    * Default number of indexes reserved at once.
+    */
+   public static final int DEFAULT_RANGE_SIZE = 64;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   /**
+    * The store file.
+    */
+   private final File file;
+
+   private final RandomAccessFile access;
+
+   private final FileChannel channel;
+
+   /**
+    * Offsets of the index of each known key in the store file.
+    */
+   private final Map<String, Long> offsets = new HashMap<String, Long>();
+
+   /**
+    * Length of the records already read.
+    */
+   private long end = HEADER_SIZE;
+
+   /**
+    * Number of indexes reserved at once.
+    */
+   private final int rangeSize;
+
+   /**
+    * The indexes reserved by this store and not allocated yet, by key.
+    */
+   private final Map<String, Range> ranges = new HashMap<String, Range>();
+
+   /**
+    * Opens or creates a store file, reserving the indexes by ranges of
+    * {@link #DEFAULT_RANGE_SIZE}.
+    *
+    * @param file the store file.
+    * @throws IOException if the store file could not be opened, or is not
+    *    a store file.
+    */
+   public IndexStore(final File file) throws IOException
+   {
+      this(file, DEFAULT_RANGE_SIZE);
+   }
+
+   /**
+    * Opens or creates a store file.
+    *
+    * @param file the store file.
+    * @param range_size the number of indexes reserved at once (1 to force
+    *    every allocation to the storage device).
+    * @throws IOException if the store file could not be opened, or is not
+    *    a store file.
+    */
+   public IndexStore(final File file, final int range_size)
+         throws IOException
+   {
+      this.file = file;
+      this.rangeSize = Math.max(1, range_size);
+
+      final File parent = file.getAbsoluteFile().getParentFile();
+      if ((parent != null) && !parent.exists())
+      {
+         parent.mkdirs();
+      }
+
+      this.access = new RandomAccessFile(file, "rw");
+      this.channel = this.access.getChannel();
+
+      boolean opened = false;
+      final FileLock lock = this.channel.lock();
+      try
+      {
+         if (this.channel.size() < HEADER_SIZE)
+         {
+            // New (or never initialized) store
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(HEADER_SIZE);
+            header.flip();
+            this.write(header, 0);
+            this.channel.force(false);
+         }
+         else
+         {
+            final ByteBuffer header = this.read(0, END_OFFSET);
+            if ((header.getInt() != MAGIC) || (header.getInt() != VERSION))
+            {
+               throw new IOException("\"" + file.getPath() +
+                  "\" is not an index store.");
+            }
+         }
+
+         this.refresh();
+         opened = true;
+      }
+      finally
+      {
+         lock.release();
+
+         if (!opened)
+         {
+            this.access.close();
+         }
+      }
+   }
+
+   /**
+    * @return the store file.
+    */
+   public File getFile()
+   {
+      return this.file;
+   }
+
+   /**
+    * Allocates the next index of a key.
+    *
+    * @param key the key.
+    * @return the allocated index (starting at 1).
+    * @throws IOException if the store cannot be updated.
+    */
+   public synchronized int next(final String key) throws IOException
+   {
+      Range range = this.ranges.get(key);
+
+      if ((range == null) || (range.next > range.last))
+      {
+         // Reserve a new range after the indexes of all the processes
+         final FileLock lock = this.channel.lock();
+         try
+         {
+            this.refresh();
+
+            final int mark = this.get(key);
+            this.put(key, mark + this.rangeSize);
+
+            range = new Range(mark + 1, mark + this.rangeSize);
+            this.ranges.put(key, range);
+         }
+         finally
+         {
+            lock.release();
+         }
+      }
+
+      return range.next++;
+   }
+
+   /**
+    * Ensures the next allocated index of a key follows a given one. The
+    * stored index is never lowered, as other processes may have allocated
+    * further indexes.
+    *
+    * @param key the key.
+    * @param index the last index known to be allocated.
+    * @throws IOException if the store cannot be updated.
+    */
+   public synchronized void raise(final String key, final int index)
+         throws IOException
+   {
+      final FileLock lock = this.channel.lock();
+      try
+      {
+         this.refresh();
+
+         if (this.get(key) < index)
+         {
+            this.put(key, index);
+         }
+      }
+      finally
+      {
+         lock.release();
+      }
+
+      // Skip the reserved indexes up to the given one
+      final Range range = this.ranges.get(key);
+      if ((range != null) && (range.next <= index))
+      {
+         range.next = index + 1;
+      }
+   }
+
+   /**
+    * Restarts the numbering of a key, for all the processes using the
+    * store. The ranges already reserved by other processes are not
+    * reclaimed: no other process shall be allocating indexes of the key.
+    *
+    * @param key the key.
+    * @throws IOException if the store cannot be updated.
+    */
+   public synchronized void reset(final String key) throws IOException
+   {
+      this.ranges.remove(key);
+
+      final FileLock lock = this.channel.lock();
+      try
+      {
+         this.refresh();
+
+         if (this.offsets.containsKey(key))
+         {
+            this.put(key, 0);
+         }
+      }
+      finally
+      {
+         lock.release();
+      }
+   }
+
+   /**
+    * @return the last index allocated for each key (the reserved indexes
+    *    not allocated yet by this store are not reported, unless another
+    *    process reserved further ones).
+    * @throws IOException if the store cannot be read.
+    */
+   public synchronized Map<String, Integer> getIndexes() throws IOException
+   {
+      final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+      final FileLock lock = this.channel.lock(0, Long.MAX_VALUE, true);
+      try
+      {
+         this.refresh();
+
+         for (String key : this.offsets.keySet())
+         {
+            indexes.put(key, this.getAllocated(key));
+         }
+      }
+      finally
+      {
+         lock.release();
+      }
+
+      return indexes;
+   }
+
+   /**
+    * Releases the unused end of the reserved ranges, and the store file.
+    *
+    * @throws IOException if the store file cannot be updated or closed.
+    */
+   public synchronized void close() throws IOException
+   {
+      try
+      {
+         if (!this.ranges.isEmpty())
+         {
+            final FileLock lock = this.channel.lock();
+            try
+            {
+               this.refresh();
+
+               for (String key : this.ranges.keySet())
+               {
+                  final int allocated = this.getAllocated(key);
+                  if (allocated < this.get(key))
+                  {
+                     this.put(key, allocated);
+                  }
+               }
+               this.ranges.clear();
+            }
+            finally
+            {
+               lock.release();
+            }
+         }
+      }
+      finally
+      {
+         this.access.close();
+      }
+   }
+
+   /**
+    * Reads the records committed by other processes since the last call.
+    * Requires the file lock.
+    */
+   private void refresh() throws IOException
+   {
+      final long committed = this.read(END_OFFSET, 8).getLong();
+
+      if (committed <= this.end)
+      {
+         return;
+      }
+
+      final ByteBuffer records =
+         this.read(this.end, (int) (committed - this.end));
+
+      while (records.hasRemaining())
+      {
+         final byte[] key = new byte[records.getShort() & 0xFFFF];
+         records.get(key);
+
+         this.offsets.put(new String(key, UTF8),
+            this.end + records.position());
+
+         records.getLong();
+      }
+
+      this.end = committed;
+   }
+
+   /**
+    * @return the last index allocated for a key, or 0 if none. Requires
+    *    the file lock.
+    */
+   private int get(final String key) throws IOException
+   {
+      final Long offset = this.offsets.get(key);
+
+      if (offset == null)
+      {
+         return 0;
+      }
+
+      return (int) this.read(offset, 8).getLong();
+   }
+
+   /**
+    * @return the last index allocated for a key: the high-water mark,
+    *    unless it is the end of the current range of this store. Requires
+    *    the file lock.
+    */
+   private int getAllocated(final String key) throws IOException
+   {
+      final int mark = this.get(key);
+      final Range range = this.ranges.get(key);
+
+      if ((range != null) && (range.last == mark))
+      {
+         return range.next - 1;
+      }
+
+      return mark;
+   }
+
+   /**
+    * Stores the high-water mark of a key. Requires the file lock.
+    */
+   private void put(final String key, final int index) throws IOException
+   {
+      final Long offset = this.offsets.get(key);
+
+      // Update the record of a known key in place
+      if (offset != null)
+      {
+         final ByteBuffer value = ByteBuffer.allocate(8);
+         value.putLong(index);
+         value.flip();
+         this.write(value, offset);
+         this.channel.force(false);
+         return;
+      }
+
+      final byte[] name = key.getBytes(UTF8);
+      if (name.length > 0xFFFF)
+      {
+         throw new IOException("Index key too long: \"" + key + "\"");
+      }
+
+      // Append a new record, then commit it
+      final ByteBuffer record = ByteBuffer.allocate(2 + name.length + 8);
+      record.putShort((short) name.length);
+      record.put(name);
+      record.putLong(index);
+      record.flip();
+      this.write(record, this.end);
+      this.channel.force(false);
+
+      final ByteBuffer committed = ByteBuffer.allocate(8);
+      committed.putLong(this.end + record.capacity());
+      committed.flip();
+      this.write(committed, END_OFFSET);
+      this.channel.force(false);
+
+      this.offsets.put(key, this.end + 2 + name.length);
+      this.end += record.capacity();
+   }
+
+   /**
+    * @return the bytes read at an offset of the store file.
+    */
+   private ByteBuffer read(final long offset, final int length)
+         throws IOException
+   {
+      final ByteBuffer buffer = ByteBuffer.allocate(length);
+
+      while (buffer.hasRemaining())
+      {
+         if (this.channel.read(buffer, offset + buffer.position()) < 0)
+         {
+            throw new IOException("Truncated index store \"" +
+               this.file.getPath() + "\".");
+         }
+      }
+
+      buffer.flip();
+      return buffer;
+   }
+
+   /**
+    * Writes bytes at an offset of the store file.
+    */
+   private void write(final ByteBuffer buffer, final long offset)
+         throws IOException
+   {
+      while (buffer.hasRemaining())
+      {
+         this.channel.write(buffer, offset + buffer.position());
+      }
+   }
+
+   /**
+    * A range of indexes reserved by this store.
+    */
+   private static class Range
+   {
+      /**
+       * The next index to be allocated.
+       */
+      int next;
+
+      /**
+       * The last index of the range.
+       */
+      final int last;
+
+      Range(final int next, final int last)
+      {
+         this.next = next;
+         this.last = last;
+      }
+   }
+
+} // End IndexStore class
@@ -22,7 +22,9 @@
 package fr.gael.ccsds.sip;
 
 import java.io.File;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -46,7 +48,10 @@ import org.ccsds.pais.xml.SipConstraints.SipContentType.AuthorizedDescriptor;
 import org.ccsds.pais.xml.TransferObjectGroupType;
 import org.ccsds.pais.xml.TransferObjectTypeDescriptor;
 import org.ccsds.pais.xml.TransferObjectTypeDescriptor.Identification;
+import org.codehaus.plexus.util.DirectorySnapshot;
 
+import fr.gael.ccsds.sip.checksum.ChecksumCache;
+import fr.gael.ccsds.sip.checksum.ChecksumFactory;
 import fr.gael.ccsds.sip.xml.Descriptor;
 
 /**
@@ -86,6 +91,42 @@ public class Project extends fr.gael.ccsds.sip.xml.Project
     */
    private File collectorsBaseDirectory;
 
+   /**
+    * Maximum number of checksums of a Data Object in the XFDU manifest
+    * (Data Object checksum and Byte Stream checksum).
+    */
+   private static final int MAX_CHECKSUM_TYPES = 2;
+
+   /**
+    * Default checksum types of the Data Objects.
+    */
+   private List<String> checksumTypes = null;
+
+   /**
+    * Persistent cache of the Data Object checksums (if configured).
+    */
+   private ChecksumCache checksumCache = null;
+
+   /**
+    * Snapshot of the directories scanned by previous runs (if configured).
+    */
+   private DirectorySnapshot scanSnapshot = null;
+
+   /**
+    * State of the previous builds (if configured).
+    */
+   private BuildState buildState = null;
+
+   /**
+    * Persistent store of the allocated indexes (if configured).
+    */
+   private IndexStore indexStore = null;
+
+   /**
+    * True to package all the transfer objects despite the build state.
+    */
+   private boolean fullBuild = false;
+
    /**
     * Reads a project file and build (bind) the corresponding instance.
     * 
@@ -305,8 +346,15 @@ public class Project extends fr.gael.ccsds.sip.xml.Project
       for (fr.gael.ccsds.sip.xml.Collector xml_collector :
               this.getCollectors().getCollector())
       {
-         this.fileCollectors.put(xml_collector.getTypeId(),
-               new Collector(xml_collector));
+         Collector collector = new Collector(xml_collector);
+
+         collector.setSnapshot(this.getScanSnapshot());
+
+         collector.setChecksumTypes(resolveChecksumTypes(
+               xml_collector.getChecksums(), this.getChecksumTypes(),
+               "collector \"" + xml_collector.getTypeId() + "\""));
+
+         this.fileCollectors.put(xml_collector.getTypeId(), collector);
 
          logger.info("Collector added for type \"" +
                xml_collector.getTypeId() + "\"");
@@ -314,6 +362,480 @@ public class Project extends fr.gael.ccsds.sip.xml.Project
    
    } // End intializeDataObjectCollectors()
 
+   /**
+    * @return the default checksum types of the Data Objects.
+    */
+   public List<String> getChecksumTypes()
+   {
+      if (this.checksumTypes == null)
+      {
+         this.checksumTypes = resolveChecksumTypes(this.getChecksums(),
+               Collections.singletonList(ChecksumFactory.CHECKSUM_MD5),
+               "project");
+      }
+      return this.checksumTypes;
+
+   } // End getChecksumTypes()
+
+   /**
+    * @return the persistent cache of the Data Object checksums, or null if
+    *    not configured or not available.
+    */
+   public synchronized ChecksumCache getChecksumCache()
+   {
+      // Return immediately if no cache is configured or already opened
+      if ((this.checksumCache != null) ||
+          (this.getChecksumCacheFile() == null))
+      {
+         return this.checksumCache;
+      }
+
+      // Resolve the cache file path against the project file directory
+      File cache_file = new File(this.getChecksumCacheFile());
+
+      if (!cache_file.isAbsolute() && (this.configurationFile != null))
+      {
+         cache_file = new File(this.configurationFile.getAbsoluteFile().
+            getParentFile(), cache_file.getPath());
+      }
+
+      try
+      {
+         this.checksumCache = new ChecksumCache(cache_file,
+            this.getChecksumCacheSize());
+
+         logger.info("Checksum cache is: \"" +
+            cache_file.getAbsolutePath() + "\"");
+      }
+      catch (IOException exception)
+      {
+         logger.error("Cannot open checksum cache \"" +
+            cache_file.getAbsolutePath() + "\" (checksums will be " +
+            "computed).", exception);
+
+         // Do not try again
+         this.setChecksumCacheFile(null);
+      }
+
+      return this.checksumCache;
+
+   } // End getChecksumCache()
+
+   /**
+    * Persists and closes the checksum cache (if opened).
+    */
+   public synchronized void closeChecksumCache()
+   {
+      if (this.checksumCache == null)
+      {
+         return;
+      }
+
+      logger.info("Checksum cache: " + this.checksumCache.getHits() +
+         " hit(s), " + this.checksumCache.getMisses() + " miss(es).");
+
+      try
+      {
+         this.checksumCache.close();
+      }
+      catch (IOException exception)
+      {
+         logger.error("Cannot save checksum cache \"" +
+            this.checksumCache.getFile().getPath() + "\".", exception);
+      }
+
+      this.checksumCache = null;
+
+   } // End closeChecksumCache()
+
+   /**
+    * @return the snapshot of the directories scanned by previous runs, or
+    *    null if not configured or not available.
+    */
+   public synchronized DirectorySnapshot getScanSnapshot()
+   {
+      // Return immediately if no snapshot is configured or already opened
+      if ((this.scanSnapshot != null) ||
+          (this.getScanSnapshotFile() == null))
+      {
+         return this.scanSnapshot;
+      }
+
+      // Resolve the snapshot file path against the project file directory
+      File snapshot_file = new File(this.getScanSnapshotFile());
+
+      if (!snapshot_file.isAbsolute() && (this.configurationFile != null))
+      {
+         snapshot_file = new File(this.configurationFile.getAbsoluteFile().
+            getParentFile(), snapshot_file.getPath());
+      }
+
+      try
+      {
+         this.scanSnapshot = new DirectorySnapshot(snapshot_file);
+
+         logger.info("Scan snapshot is: \"" +
+            snapshot_file.getAbsolutePath() + "\"");
+      }
+      catch (IOException exception)
+      {
+         logger.error("Cannot open scan snapshot \"" +
+            snapshot_file.getAbsolutePath() + "\" (all the directories " +
+            "will be listed).", exception);
+
+         // Do not try again
+         this.setScanSnapshotFile(null);
+      }
+
+      return this.scanSnapshot;
+
+   } // End getScanSnapshot()
+
+   /**
+    * Reports the changes found since the previous run and saves the scan
+    * snapshot (if opened).
+    */
+   public synchronized void closeScanSnapshot()
+   {
+      if (this.scanSnapshot == null)
+      {
+         return;
+      }
+
+      List<String> added = this.scanSnapshot.getAdded();
+      List<String> removed = this.scanSnapshot.getRemoved();
+      List<String> modified = this.scanSnapshot.getModified();
+
+      logger.info("Scan snapshot: " +
+         this.scanSnapshot.getListedDirectories() + " directory(ies) " +
+         "listed, " + this.scanSnapshot.getReusedDirectories() +
+         " unchanged; " + added.size() + " added, " + removed.size() +
+         " removed and " + modified.size() + " modified entry(ies).");
+
+      for (String path : added)
+      {
+         logger.debug("Added: \"" + path + "\"");
+      }
+      for (String path : removed)
+      {
+         logger.debug("Removed: \"" + path + "\"");
+      }
+      for (String path : modified)
+      {
+         logger.debug("Modified: \"" + path + "\"");
+      }
+
+      try
+      {
+         this.scanSnapshot.save();
+      }
+      catch (IOException exception)
+      {
+         logger.error("Cannot save scan snapshot \"" +
+            this.scanSnapshot.getFile().getPath() + "\".", exception);
+      }
+
+      this.scanSnapshot = null;
+
+   } // End closeScanSnapshot()
+
+   /**
+    * @return the state of the previous builds, or null if not configured or
+    *    not available.
+    */
+   public synchronized BuildState getBuildState()
+   {
+      // Return immediately if no state is configured or already opened
+      if ((this.buildState != null) || (this.getBuildStateFile() == null))
+      {
+         return this.buildState;
+      }
+
+      // Resolve the state file path against the project file directory
+      File state_file = new File(this.getBuildStateFile());
+
+      if (!state_file.isAbsolute() && (this.configurationFile != null))
+      {
+         state_file = new File(this.configurationFile.getAbsoluteFile().
+            getParentFile(), state_file.getPath());
+      }
+
+      try
+      {
+         this.buildState = new BuildState(state_file);
+
+         logger.info("Build state is: \"" + state_file.getAbsolutePath() +
+            "\"");
+      }
+      catch (IOException exception)
+      {
+         logger.error("Cannot read build state \"" +
+            state_file.getAbsolutePath() + "\" (all the transfer objects " +
+            "will be packaged).", exception);
+
+         // Do not try again
+         this.setBuildStateFile(null);
+      }
+
+      return this.buildState;
+
+   } // End getBuildState()
+
+   /**
+    * @return true if only the new or modified transfer objects are
+    *    packaged.
+    */
+   public boolean isIncremental()
+   {
+      return !this.fullBuild && (this.getBuildState() != null);
+   }
+
+   /**
+    * @param full_build true to package all the transfer objects, even if
+    *    they did not change since the previous builds.
+    */
+   public void setFullBuild(boolean full_build)
+   {
+      this.fullBuild = full_build;
+   }
+
+   /**
+    * Records the transfer objects of a packaged SIP in the build state (if
+    * any). Only the SIPs packaged without any error shall be recorded, so
+    * that the next incremental build packages the others again.
+    *
+    * @param sip the SIP packaged without error.
+    */
+   public void recordTransferObjects(Sip sip)
+   {
+      BuildState state = this.getBuildState();
+
+      if (state == null)
+      {
+         return;
+      }
+
+      for (ContentUnit transfer_object : sip)
+      {
+         state.putFingerprint(transfer_object);
+      }
+
+   } // End recordTransferObjects(Sip)
+
+   /**
+    * Saves the build state (if opened), with the last indexes allocated by
+    * the build.
+    *
+    * @param index_manager the index manager of the build.
+    */
+   public synchronized void closeBuildState(IndexManager index_manager)
+   {
+      if (this.buildState == null)
+      {
+         return;
+      }
+
+      this.buildState.storeIndexes(index_manager);
+
+      try
+      {
+         this.buildState.save();
+      }
+      catch (IOException exception)
+      {
+         logger.error("Cannot save build state \"" +
+            this.buildState.getFile().getPath() + "\".", exception);
+      }
+
+      this.buildState = null;
+
+   } // End closeBuildState(IndexManager)
+
+   /**
+    * @return the store of the indexes allocated by the successive and
+    *    concurrent builds, or null if not configured or not available.
+    */
+   public synchronized IndexStore getIndexStore()
+   {
+      // Return immediately if no store is configured or already opened
+      if ((this.indexStore != null) || (this.getIndexStoreFile() == null))
+      {
+         return this.indexStore;
+      }
+
+      // Resolve the store file path against the project file directory
+      File store_file = new File(this.getIndexStoreFile());
+
+      if (!store_file.isAbsolute() && (this.configurationFile != null))
+      {
+         store_file = new File(this.configurationFile.getAbsoluteFile().
+            getParentFile(), store_file.getPath());
+      }
+
+      try
+      {
+         this.indexStore = new IndexStore(store_file);
+
+         logger.info("Index store is: \"" + store_file.getAbsolutePath() +
+            "\"");
+      }
+      catch (IOException exception)
+      {
+         logger.error("Cannot open index store \"" +
+            store_file.getAbsolutePath() + "\" (the numbering will " +
+            "restart).", exception);
+
+         // Do not try again
+         this.setIndexStoreFile(null);
+      }
+
+      return this.indexStore;
+
+   } // End getIndexStore()
+
+   /**
+    * Creates the index manager of a build, allocating its indexes from the
+    * index store (if any), and continuing the numbering of the previous
+    * builds recorded in the build state (if any).
+    *
+    * @return the index manager.
+    */
+   public IndexManager createIndexManager()
+   {
+      IndexStore store = this.getIndexStore();
+      IndexManager index_manager;
+
+      if (store != null)
+      {
+         index_manager = new IndexManager(store);
+      }
+      else
+      {
+         index_manager = new IndexManager();
+      }
+
+      if (this.getBuildState() != null)
+      {
+         this.getBuildState().restoreIndexes(index_manager);
+      }
+
+      return index_manager;
+
+   } // End createIndexManager()
+
+   /**
+    * Releases the index store (if opened).
+    */
+   public synchronized void closeIndexStore()
+   {
+      if (this.indexStore == null)
+      {
+         return;
+      }
+
+      try
+      {
+         this.indexStore.close();
+      }
+      catch (IOException exception)
+      {
+         logger.error("Cannot close index store \"" +
+            this.indexStore.getFile().getPath() + "\".", exception);
+      }
+
+      this.indexStore = null;
+
+   } // End closeIndexStore()
+
+   /**
+    * Removes the transfer objects that did not change since they were last
+    * packaged, in incremental mode.
+    *
+    * @param transfer_objects the transfer objects of a descriptor.
+    * @return the new or modified transfer objects.
+    */
+   private List<ContentUnit> getChangedTransferObjects(
+         List<ContentUnit> transfer_objects)
+   {
+      if ((transfer_objects == null) || !this.isIncremental())
+      {
+         return transfer_objects;
+      }
+
+      List<ContentUnit> changed_objects = new ArrayList<ContentUnit>();
+
+      for (ContentUnit transfer_object : transfer_objects)
+      {
+         if (this.buildState.isChanged(transfer_object))
+         {
+            changed_objects.add(transfer_object);
+         }
+      }
+
+      logger.info((transfer_objects.size() - changed_objects.size()) +
+         " unchanged object(s) skipped, " + changed_objects.size() +
+         " new or modified object(s) to be packaged.");
+
+      return changed_objects;
+
+   } // End getChangedTransferObjects(List)
+
+   /**
+    * Checks and normalizes a list of configured checksum types.
+    *
+    * @param types the configured types (may be null or empty).
+    * @param default_types the types to be used if none is configured.
+    * @param context the configuration element, for logging purpose.
+    * @return the resolved list of checksum types.
+    */
+   private static List<String> resolveChecksumTypes(List<String> types,
+         List<String> default_types, String context)
+   {
+      // Use default types if none configured
+      if ((types == null) || types.isEmpty())
+      {
+         return default_types;
+      }
+
+      List<String> resolved_types = new ArrayList<String>();
+
+      for (String type : types)
+      {
+         String name = ChecksumFactory.normalize(type);
+
+         if ((name.length() <= 0) || resolved_types.contains(name))
+         {
+            continue;
+         }
+
+         // Fails on unsupported checksum types
+         ChecksumFactory.open(name);
+
+         resolved_types.add(name);
+      }
+
+      if (resolved_types.size() > MAX_CHECKSUM_TYPES)
+      {
+         logger.warn("Only " + MAX_CHECKSUM_TYPES + " checksums can be " +
+            "written per Data Object: ignoring " +
+            resolved_types.subList(MAX_CHECKSUM_TYPES,
+               resolved_types.size()) + " from " + context + ".");
+
+         resolved_types = new ArrayList<String>(
+            resolved_types.subList(0, MAX_CHECKSUM_TYPES));
+      }
+
+      if (resolved_types.isEmpty())
+      {
+         return default_types;
+      }
+
+      logger.info("Checksums of " + context + ": " + resolved_types);
+
+      return resolved_types;
+
+   } // End resolveChecksumTypes(List<String>, List<String>, String)
+
    private static long computeRequiredParentNumber(OccurrenceType
       occurrence, List<?> children)
    {
@@ -655,6 +1177,9 @@ public class Project extends fr.gael.ccsds.sip.xml.Project
       // Build list of output SIPs
       ArrayList<Sip> sips = new ArrayList<Sip>();
 
+      // Check the files collected by previous builds before reusing them
+      this.revalidateCollectors();
+
       // Loop among content types
       for (SipContentType content_type : content_types)
       {
@@ -665,6 +1190,15 @@ public class Project extends fr.gael.ccsds.sip.xml.Project
          // Derive SIP from the current content type
          List<Sip> current_sips = this.getSips(content_type);
 
+         // Nothing to package if no transfer object changed
+         if (((current_sips == null) || (current_sips.size() <= 0)) &&
+             this.isIncremental())
+         {
+            logger.info("No new or modified transfer object for content " +
+               "type \"" + content_type.getSipContentTypeID() + "\".");
+            continue;
+         }
+
          // Check returned SIP
          if ((current_sips == null) ||
              (current_sips.size() <= 0))
@@ -679,11 +1213,56 @@ public class Project extends fr.gael.ccsds.sip.xml.Project
 
       } // Loop among content types
 
+      this.logCollectorCaches();
+
       // Return the built list of SIPs
       return sips;
 
    } // End getSips()
 
+   /**
+    * Starts a new build for the result caches of the collectors.
+    */
+   private void revalidateCollectors()
+   {
+      if (this.fileCollectors == null)
+      {
+         this.initializeFileCollectors();
+      }
+
+      for (Collector collector : this.fileCollectors.values())
+      {
+         collector.getResultCache().revalidate();
+      }
+
+   } // End revalidateCollectors()
+
+   /**
+    * Logs the statistics of the result caches of the collectors.
+    */
+   private void logCollectorCaches()
+   {
+      long hits = 0;
+      long misses = 0;
+      long invalidations = 0;
+      long evictions = 0;
+
+      for (Collector collector : this.fileCollectors.values())
+      {
+         CollectorCache cache = collector.getResultCache();
+
+         hits += cache.getHits();
+         misses += cache.getMisses();
+         invalidations += cache.getInvalidations();
+         evictions += cache.getEvictions();
+      }
+
+      logger.info("Collector caches: " + hits + " hit(s), " + misses +
+         " miss(es), " + invalidations + " invalidation(s), " + evictions +
+         " eviction(s).");
+
+   } // End logCollectorCaches()
+
    /**
     * @return SIPs corresponding to a given SIP content type.
     */
@@ -777,6 +1356,9 @@ public class Project extends fr.gael.ccsds.sip.xml.Project
             }
          }
 
+         // Only package the new or modified units in incremental mode
+         content_units = this.getChangedTransferObjects(content_units);
+
          // Compute number of required SIPs to hold the units of this type
          long required_sip_number = computeRequiredParentNumber(
                authorized_descriptor.getOccurrence(), content_units);
@@ -811,6 +1393,10 @@ public class Project extends fr.gael.ccsds.sip.xml.Project
       // Prepare output list of Content Units (Transfer Object level)
       ArrayList<ContentUnit> content_units = new ArrayList<ContentUnit>();
 
+      // Collect the files of all the top level group types at once
+      this.prefetchCollectedFiles(this.getCollectorsBaseDirectory(),
+            descriptor.getGroupType(), null);
+
       // Loop among top level group type
       for (TransferObjectGroupType group_type : descriptor.getGroupType())
       {
@@ -939,6 +1525,11 @@ public class Project extends fr.gael.ccsds.sip.xml.Project
          ArrayList<ContentUnit> context_content_units =
             new ArrayList<ContentUnit>();
 
+         // Collect the files of all the sub-group and data object types
+         // at once
+         this.prefetchCollectedFiles(context_base_directory,
+               group_type.getGroupType(), group_type.getDataObjectType());
+
          // Loop among sub-group types
          if (group_type.getGroupType() != null)
          {
@@ -1097,6 +1688,24 @@ public class Project extends fr.gael.ccsds.sip.xml.Project
 
    } // End getContentUnits(TransferObjectGroupType)
 
+   /**
+    * Collects at once, from a base directory, the files of the collectors
+    * associated to the given group and data object types and to all their
+    * nested types, so that a shared directory tree is walked only once.
+    * 
+    * @param base_directory the base directory of the types.
+    * @param group_types the group types (may be null).
+    * @param data_types the data object types (may be null).
+    */
+   private void prefetchCollectedFiles(final File base_directory,
+         final List<TransferObjectGroupType> group_types,
+         final List<DataObjectType> data_types)
+   {
+      CollectionPlan.collect(base_directory,
+            CollectionPlan.create(this, group_types, data_types));
+
+   } // End prefetchCollectedFiles(File, List, List)
+
    /**
     * @return the Content Units corresponding to a given data object type.
     */
@@ -1178,11 +1787,35 @@ public class Project extends fr.gael.ccsds.sip.xml.Project
             content_unit.setId(data_type.getDataObjectTypeID());
             content_unit.setTextInfo(data_type.getDataObjectTypeDescription());
 
+            if (collector != null)
+            {
+               content_unit.setChecksumTypes(collector.getChecksumTypes());
+               content_unit.setChunkedChecksumThreshold(
+                  collector.getChunkedChecksumThreshold());
+               content_unit.setChecksumChunkSize(
+                  collector.getChecksumChunkSize());
+            }
+            else
+            {
+               content_unit.setChecksumTypes(this.getChecksumTypes());
+            }
+
+            content_unit.setChecksumCache(this.getChecksumCache());
+
             content_units.add(content_unit);
          }
          
+         // Keep the attributes read by the scan, if any
+         BasicFileAttributes attributes = null;
+
+         if (collector != null)
+         {
+            attributes =
+               collector.getIncludedAttributes(base_directory, file_path);
+         }
+
          content_unit.addDataObjectFile(new DataObjectFile(file,
-               file_path.replace(File.separatorChar, '/')));
+               file_path.replace(File.separatorChar, '/'), attributes));
       }
 
       return content_units;
@@ -24,15 +24,18 @@ package fr.gael.ccsds.sip;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Vector;
 
 import org.apache.log4j.Logger;
 import org.ccsds.pais.xml.TransferObjectTypeDescriptor;
 import org.ccsds.pais.xml.TransferObjectTypeDescriptor.Identification;
-import org.codehaus.plexus.util.DirectoryScanner;
 
 import fr.gael.ccsds.sip.archive.ArchiveFactory;
 import fr.gael.ccsds.sip.archive.ArchiveManager;
+import fr.gael.ccsds.sip.archive.ArchiveSession;
+import fr.gael.ccsds.sip.archive.CopyPipeline;
 import esa.xfdu.Xfdu;
 import esa.xfdu.header.EnvironmentInfo;
 import esa.xfdu.header.Extension;
@@ -114,6 +117,55 @@ public class Sip extends Vector<ContentUnit>
     */
    public void packageAsXfdu(final File directory, final IndexManager
          index_manager, final String packaging) throws SipBuilderException
+   {
+      this.packageAsXfdu(directory, index_manager, packaging,
+         this.allocateSequenceNumber(index_manager));
+
+   } // End packageAsXfdu(File, IndexManager, String)
+
+   /**
+    * Allocates the next sequence number of the SIPs of this type.
+    *
+    * @param index_manager the manager of the SIP identifiers.
+    * @return the allocated sequence number.
+    */
+   public int allocateSequenceNumber(final IndexManager index_manager)
+   {
+      return index_manager.getNextIndex("" + this.getId() + "-SIP");
+   }
+
+   /**
+    * Reserves the identifiers of the transfer objects and of the data
+    * objects of this SIP, so that they only depend on the order in which
+    * the SIPs are reserved, and not on the order in which they are
+    * packaged.
+    *
+    * @param index_manager the manager of the identifiers.
+    * @return the manager of the reserved identifiers, to be passed to
+    *    {@link #packageAsXfdu(File, IndexManager, String, int)}.
+    */
+   public IndexManager reserveIds(final IndexManager index_manager)
+   {
+      Map<String, Integer> counts = new HashMap<String, Integer>();
+      for (ContentUnit child_unit : this)
+      {
+         child_unit.countIds(counts);
+      }
+      return index_manager.reserve(counts);
+   }
+
+   /**
+    * Packages this SIP with a previously allocated sequence number.
+    *
+    * @param directory the output directory.
+    * @param index_manager the manager of the data objects identifiers.
+    * @param packaging the output packaging.
+    * @param sequence_number the sequence number of this SIP (see
+    *    {@link #allocateSequenceNumber(IndexManager)}).
+    */
+   public void packageAsXfdu(final File directory, final IndexManager
+         index_manager, final String packaging, final int sequence_number)
+         throws SipBuilderException
    {
       // Check output directory
       if ((directory == null) || (!directory.isDirectory()))
@@ -122,13 +174,33 @@ public class Sip extends Vector<ContentUnit>
             directory + "\" (does not exists or not a directory)");
       }
 
-      // Get current sequence number
-      int sequence_number = index_manager.getNextIndex("" + this.getId() +
-            "-SIP");
-
       // Build SIP unique identifier
-      String sip_identifier = "" + this.getId() +"-SIP-" +
-         String.format("%04d", sequence_number);
+      String sip_identifier =
+         IndexManager.formatId(this.getId() + "-SIP", sequence_number);
+
+      // Resolve the output archive: data files are streamed directly into
+      // it, only the XFDU manifest is staged on disk before being archived
+      // as the last entry. Directory packagings are written in place,
+      // linking the data files rather than copying them if requested.
+      final boolean link = ArchiveFactory.PACKAGING_LINK.equals(packaging);
+      final boolean in_place = (packaging == null) || link ||
+         ArchiveFactory.PACKAGING_NONE.equals(packaging) ||
+         ArchiveFactory.PACKAGING_DIRECTORY.equals(packaging);
+
+      final ArchiveManager am = ArchiveFactory.open((in_place && !link) ?
+         ArchiveFactory.PACKAGING_DIRECTORY : packaging,
+         this.project.getCompressionThreads(),
+         this.project.getCompressionBlockSize());
+
+      File destination = new File(directory.getAbsoluteFile(),
+            sip_identifier + am.getFileExtension());
+
+      // Do not overwrite an existing archive file
+      if (!in_place && destination.exists())
+      {
+         throw new SipBuilderException("Archive file \"" + destination.getName() + "\" "
+               + "already exists: please remove it!");
+      }
 
       // Create staging directory for the output package
       File stage_package =
@@ -220,13 +292,114 @@ public class Sip extends Vector<ContentUnit>
       ph.getEnvironmentInfo().add(ei);
       xfdu.setPackageHeader(ph);
 
+      // Open the output archive once for the whole SIP
+      if (in_place)
+      {
+         destination = stage_package;
+      }
+      else
+      {
+         logger.info("Archiving SIP as \"" + destination.getName() + "\"...");
+      }
+
+      ArchiveSession session = null;
+      try
+      {
+         session = am.openSession(destination);
+      }
+      catch (final IOException e)
+      {
+         throw new SipBuilderException("Cannot create archive file \"" +
+            destination.getName() + "\".", e);
+      }
+
+      // Read, digest and archive the data files in parallel
+      final CopyPipeline pipeline = new CopyPipeline(
+         this.project.getPipelineDepth(),
+         this.project.getPipelineBufferBudget());
+      session.setPipeline(pipeline);
+
+      // Any failure is reported to the caller, so that the SIP is not
+      // recorded as packaged, and does not leave a partial archive behind
+      boolean closed = false;
+      boolean complete = false;
+      try
+      {
+         this.writeXfdu(xfdu, index_manager, stage_package, session,
+            in_place);
+
+         closed = true;
+         try
+         {
+            session.close();
+         }
+         catch (final IOException e)
+         {
+            throw new SipBuilderException("Cannot finalize archive \"" +
+               destination.getName() + "\".", e);
+         }
+         complete = true;
+      }
+      finally
+      {
+         if (!complete)
+         {
+            if (!closed)
+            {
+               try
+               {
+                  session.close();
+               }
+               catch (final IOException e)
+               {
+                  logger.error("Cannot finalize archive \"" +
+                     destination.getName() + "\".", e);
+               }
+            }
+
+            if (!in_place)
+            {
+               destination.delete();
+               recursiveDeleteFile(stage_package);
+            }
+         }
+      }
+
+      logger.info("Copy pipeline utilization: " + pipeline.getUtilization());
+
+      // Delete staging directory (holding the manifest only)
+      if (!in_place)
+      {
+         logger.info("Deleting staging directory...");
+         recursiveDeleteFile(stage_package);
+      }
+
+      return;
+
+   } // End packageAsXfdu(File, IndexManager, String, int)
+
+   /**
+    * Adds the content units to the XFDU, streams their data objects into
+    * the opened archive session and saves the manifest.
+    * 
+    * @param xfdu the XFDU manifest holding the package header.
+    * @param index_manager the manager of data objects identifiers.
+    * @param stage_package the directory holding the manifest file.
+    * @param session the archive receiving the data objects.
+    * @param in_place true if the session writes into the stage directory,
+    *    i.e. the manifest is already at its final place once saved.
+    */
+   private void writeXfdu(final Xfdu xfdu, final IndexManager index_manager,
+         final File stage_package, final ArchiveSession session,
+         final boolean in_place)
+   {
       // Add content units and collect data objects
       ArrayList<DataObject> data_objects = new ArrayList<DataObject>();
 
       for (ContentUnit child_unit : this)
       {
          xfdu.add(child_unit.toXfduContentUnit(index_manager, data_objects,
-               stage_package.getAbsolutePath()));
+               stage_package.getAbsolutePath(), session));
       }
 
       // Add collected data objects
@@ -242,60 +415,26 @@ public class Sip extends Vector<ContentUnit>
       }
       catch (IOException e)
       {
-         // TODO Auto-generated catch block
-         e.printStackTrace();
+         throw new SipBuilderException("Cannot save XFDU manifest of " +
+            "package \"" + stage_package.getName() + "\".", e);
       }
       
-      // File packaging
-      // Case of nothing to do
-      if ((packaging == null) ||
-          ArchiveFactory.PACKAGING_NONE.equals(packaging) ||
-          ArchiveFactory.PACKAGING_DIRECTORY.equals(packaging))
-      {
-         return;
-      }
-
-      final ArchiveManager am = ArchiveFactory.open(packaging);
-      final File destination = new File(stage_package.getParentFile(),
-            stage_package.getName() + am.getFileExtension());
-
-      // Delete destination file if exists
-      if (destination.exists())
-      {
-         throw new SipBuilderException("Archive file \"" + destination.getName() + "\" "
-               + "already exists: please remove it!");
-      }
-
-      final DirectoryScanner scanner = new DirectoryScanner();
-      // Search for every things
-      final String[] include = new String[] { "**" };
-      scanner.setIncludes(include);
-      scanner.setBasedir(stage_package.getAbsolutePath());
-      scanner.setCaseSensitive(true);
-      scanner.scan();
-
-      logger.info("Archiving SIP as \"" + destination.getName() + "\"...");
-
-      for (final String file : scanner.getIncludedFiles())
+      // Archive the manifest as the last entry
+      if (!in_place)
       {
+         final File manifest = new File(stage_package, "xfdumanifest.xml");
          try
          {
-            am.copy(new File(stage_package.getAbsoluteFile(), file),
-                  destination, file);
+            session.add(manifest, manifest.getName());
          }
-         catch (final Exception e)
+         catch (final IOException e)
          {
-            logger.error("Cannot copy file \"" + file + "\" into archive.", e);
+            throw new SipBuilderException("Cannot copy file \"" +
+               manifest.getName() + "\" into archive.", e);
          }
       }
 
-      // Delete staging directory
-      logger.info("Deleting staging directory...");
-      recursiveDeleteFile(stage_package);
-
-      return;
-
-   } // End packageAsXfdu(File, IndexManager, String)
+   } // End writeXfdu(Xfdu, IndexManager, File, ArchiveSession, boolean)
 
    @Override
    public String toString()
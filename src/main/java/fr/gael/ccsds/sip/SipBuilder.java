@@ -71,11 +71,23 @@ public class SipBuilder
       logger.info("  --project <project-file>\n\n");
       logger.info(
          "     Builds all SIPs according the given XML <project-file>\n\n");
-      logger.info("  --packaging <none|dir|zip|tar|tgz>\n\n");
+      logger.info("  --packaging <none|dir|link|zip|tar|tgz>\n\n");
       logger.info(
          "     Forces the output SIP packaging to one of 'none' (left\n" +
-         "     as a directory), 'dir' (same as 'none'), 'zip', 'tgz',\n" +
+         "     as a directory), 'dir' (same as 'none'), 'link' (same\n" +
+         "     as 'dir', with data files hard linked or cloned rather\n" +
+         "     than copied when on the same device), 'zip', 'tgz',\n" +
          "     or 'tar'.\n\n");
+      logger.info("  --threads <count>\n\n");
+      logger.info(
+         "     Packages up to <count> SIPs at the same time (1 by\n" +
+         "     default). SIP sequence numbers and sequencing constraints\n" +
+         "     are the same as with a sequential build.\n\n");
+      logger.info("  --full\n\n");
+      logger.info(
+         "     Packages all the transfer objects, even if the project\n" +
+         "     build state shows they did not change since the previous\n" +
+         "     builds.\n\n");
       logger.info("  --delete <id1> [<id2> [...] ]\n\n");
       logger.info(
          "     Generates a SIP which requests the deletion of transfer\n" +
@@ -133,6 +145,8 @@ public class SipBuilder
       File project_file = null;
       File target_directory = null;
       String packaging = null;
+      boolean full_build = false;
+      int threads = 1;
       List<String> objects_to_delete = new Vector<String>();
 
       boolean argument_error = false;
@@ -204,8 +218,8 @@ public class SipBuilder
             if (iarg >= (args.length - 1))
             {
                logger.fatal("The \"--packaging\" option shall be " +
-                     "followed by one of 'none', 'dir', 'zip', 'tar'," +
-                     " 'tgz'.");
+                     "followed by one of 'none', 'dir', 'link', 'zip'," +
+                     " 'tar', 'tgz'.");
                display_usage = true;
                argument_error = true;
                continue;
@@ -216,6 +230,43 @@ public class SipBuilder
             packaging = args[iarg];
 
          }
+         // Match --threads argument
+         else if (args[iarg].equals("--threads"))
+         {
+            // Check that a positive count follows the option
+            if (iarg >= (args.length - 1))
+            {
+               logger.fatal("The \"--threads\" option shall be " +
+                     "followed by a number of threads.");
+               display_usage = true;
+               argument_error = true;
+               continue;
+            }
+
+            // Get argument
+            iarg += 1;
+            try
+            {
+               threads = Integer.parseInt(args[iarg]);
+            }
+            catch (NumberFormatException exception)
+            {
+               threads = 0;
+            }
+
+            if (threads <= 0)
+            {
+               logger.fatal("Invalid number of threads \"" + args[iarg] +
+                     "\"!");
+               argument_error = true;
+               continue;
+            }
+         }
+         // Match --full argument
+         else if (args[iarg].equals("--full"))
+         {
+            full_build = true;
+         }
          // Case of unsupported option
          else
          {
@@ -246,11 +297,13 @@ public class SipBuilder
 
       // Create a SIP builder
       SipBuilder builder = null;
+      IndexManager build_index_manager = null;
 
       try
       {
          logger.info("Parsing project file...");
          builder = new SipBuilder(project_file);
+         builder.getProject().setFullBuild(full_build);
 
          // Get output directory (if not provided in parameter)
          if (target_directory == null)
@@ -313,8 +366,11 @@ public class SipBuilder
             logger.info("   " + line);
          }
 
-         // Create a dedicated index manager
-         IndexManager index_manager = new IndexManager();
+         // Create a dedicated index manager, continuing the numbering of
+         // the previous and concurrent builds (if any)
+         IndexManager index_manager =
+            builder.getProject().createIndexManager();
+         build_index_manager = index_manager;
 
          // Get main SIPs (standard sips from descriptors and collectors)
          List<Sip> main_sips = builder.getProject().getSips();
@@ -438,7 +494,9 @@ public class SipBuilder
                }
 
                // Check actual number of Transfer Object against the minimum
+               // (incremental builds only hold the changed ones)
                if ((min_occurrence != null) &&
+                   !builder.getProject().isIncremental() &&
                    (transfer_objects != null) &&
                    (transfer_objects.size() < min_occurrence.intValue()))
                {
@@ -460,8 +518,9 @@ public class SipBuilder
                         + "maximum occurrence!");
                }
 
-               // Check actual number of Transfer Object against the minimum
+               // Check actual number of Transfer Object against the maximum
                if ((max_occurrence != null) &&
+                   !builder.getProject().isIncremental() &&
                    (transfer_objects != null) &&
                    (transfer_objects.size() > max_occurrence.intValue()))
                {
@@ -553,6 +612,12 @@ public class SipBuilder
                }
 
                // Check size of all Transfer Objects of the current type
+               // (none may have changed in incremental builds)
+               if (transfer_objects == null)
+               {
+                  continue;
+               }
+
                for (ContentUnit transfer_object : transfer_objects)
                {
                   // Get current Transfer Object size
@@ -590,18 +655,23 @@ public class SipBuilder
 
          } // Loop among Transfer Object Type descriptors
 
-         // Loop among SIPs
-         int sip_counter = 0;
-         for (Sip sip : main_sips)
-         {
-            logger.info("Writing a SIP of type \"" +
-               sip.getContentTypeId() + "\"...");
+         // Package the SIPs, up to the requested number at the same time
+         SipPackager packager = new SipPackager(builder.getProject(),
+            target_directory, index_manager, packaging, threads);
+         packager.packageSips(main_sips);
+         int sip_counter = packager.getProduced();
 
-            // Writing SIP package
-            sip.packageAsXfdu(target_directory, index_manager, packaging);
+         // Save the checksums computed during this run
+         builder.getProject().closeChecksumCache();
 
-            sip_counter += 1;
-         }
+         // Save the directories scanned during this run
+         builder.getProject().closeScanSnapshot();
+
+         // Save the state of this build
+         builder.getProject().closeBuildState(index_manager);
+
+         // Release the identifiers allocator
+         builder.getProject().closeIndexStore();
 
          // Produce requests of transfer object to delete
 // TODO: To be continued
@@ -619,6 +689,13 @@ public class SipBuilder
       // Case of exception during SIP builder processing
       catch (Exception exception)
       {
+         // Keep track of the SIPs produced before the failure
+         if ((builder != null) && (build_index_manager != null))
+         {
+            builder.getProject().closeBuildState(build_index_manager);
+            builder.getProject().closeIndexStore();
+         }
+
          if (exception.getMessage() != null)
          {
             logger.fatal(exception.getMessage(), exception);
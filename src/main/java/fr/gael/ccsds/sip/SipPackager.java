@@ -0,0 +1,297 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Packages a list of SIPs with a bounded pool of worker threads.
+ * <p>
+ * The SIP sequence numbers and the identifiers of the transfer and data
+ * objects are allocated in the order of the list, before the SIPs are
+ * packaged, so that the manifests are the same as with a sequential build
+ * whatever the number of threads. The SIPs are packaged by levels of SIP sequencing constraint (the
+ * consecutive SIPs whose content types have the same constraint serial
+ * number): the SIPs of a level are packaged concurrently, and a level is
+ * only started once the previous one is complete. The packaged SIPs are
+ * published (recorded in the build state) in the order of the list.
+ * <p>
+ * The failure of a SIP does not stop the other SIPs of its level: all the
+ * failures are reported together once the level is complete, and the
+ * following levels are not packaged.
+ */
+public class SipPackager
+{
+   /**
+    * A logger for this class.
+    */
+   private static Logger logger = Logger.getLogger(SipPackager.class);
+
+   private final Project project;
+
+   private final File directory;
+
+   private final IndexManager indexManager;
+
+   private final String packaging;
+
+   /**
+    * Maximum number of SIPs packaged at the same time.
+    */
+   private final int threads;
+
+   /**
+    * Number of SIPs packaged and published.
+    */
+   private int produced = 0;
+
+   /**
+    * @param project the project of the SIPs.
+    * @param directory the output directory.
+    * @param index_manager the manager of the SIP and object identifiers.
+    * @param packaging the output packaging.
+    * @param threads the maximum number of SIPs packaged at the same time.
+    */
+   public SipPackager(Project project, File directory,
+         IndexManager index_manager, String packaging, int threads)
+   {
+      this.project = project;
+      this.directory = directory;
+      this.indexManager = index_manager;
+      this.packaging = packaging;
+      this.threads = Math.max(1, threads);
+   }
+
+   /**
+    * @return the number of SIPs packaged and published.
+    */
+   public int getProduced()
+   {
+      return this.produced;
+   }
+
+   /**
+    * Packages SIPs.
+    *
+    * @param sips the SIPs, sorted according to the SIP sequencing
+    *    constraints.
+    * @throws SipBuilderException if at least one SIP could not be
+    *    packaged.
+    */
+   public void packageSips(List<Sip> sips) throws SipBuilderException
+   {
+      // Allocate the sequence numbers and the identifiers in the order of
+      // the SIPs
+      int [] sequence_numbers = new int [sips.size()];
+      IndexManager [] reservations = new IndexManager [sips.size()];
+      for (int index = 0; index < sequence_numbers.length; index++)
+      {
+         sequence_numbers[index] =
+            sips.get(index).allocateSequenceNumber(this.indexManager);
+         reservations[index] = sips.get(index).reserveIds(this.indexManager);
+      }
+
+      // A sequential build does not need any worker thread
+      ExecutorService pool = null;
+      if (this.threads > 1)
+      {
+         final AtomicInteger thread_counter = new AtomicInteger();
+         pool = Executors.newFixedThreadPool(this.threads,
+            new ThreadFactory()
+         {
+            @Override
+            public Thread newThread(final Runnable runnable)
+            {
+               final Thread thread = new Thread(runnable, "sip-packager-" +
+                  thread_counter.incrementAndGet());
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }
+
+      try
+      {
+         int level_start = 0;
+         while (level_start < sips.size())
+         {
+            // Gather the SIPs of the current sequencing level
+            BigInteger level = this.getLevel(sips.get(level_start));
+
+            int level_end = level_start + 1;
+            while ((level_end < sips.size()) &&
+                   equals(level, this.getLevel(sips.get(level_end))))
+            {
+               level_end += 1;
+            }
+
+            // Package them concurrently
+            List<FutureTask<Void>> futures = new ArrayList<FutureTask<Void>>();
+            for (int index = level_start; index < level_end; index++)
+            {
+               final Sip sip = sips.get(index);
+               final int sequence_number = sequence_numbers[index];
+               final IndexManager reservation = reservations[index];
+
+               FutureTask<Void> future = new FutureTask<Void>(
+                  new Callable<Void>()
+               {
+                  @Override
+                  public Void call() throws Exception
+                  {
+                     packageSip(sip, sequence_number, reservation);
+                     return null;
+                  }
+               });
+               futures.add(future);
+
+               if (pool != null)
+               {
+                  pool.execute(future);
+               }
+               else
+               {
+                  future.run();
+               }
+            }
+
+            // Publish them in order, gathering the failures of the level
+            List<String> failures = new ArrayList<String>();
+            Throwable first_failure = null;
+
+            for (int index = level_start; index < level_end; index++)
+            {
+               Sip sip = sips.get(index);
+               try
+               {
+                  futures.get(index - level_start).get();
+                  this.publish(sip);
+               }
+               catch (InterruptedException exception)
+               {
+                  Thread.currentThread().interrupt();
+                  throw new SipBuilderException("SIP packaging interrupted.",
+                     exception);
+               }
+               catch (ExecutionException exception)
+               {
+                  Throwable cause = exception.getCause();
+                  String id = IndexManager.formatId(sip.getId() + "-SIP",
+                     sequence_numbers[index]);
+
+                  logger.error("Cannot package SIP \"" + id + "\": " +
+                     cause.getMessage(), cause);
+
+                  failures.add(id);
+                  if (first_failure == null)
+                  {
+                     first_failure = cause;
+                  }
+               }
+            }
+
+            if (failures.size() > 0)
+            {
+               if (level_end < sips.size())
+               {
+                  logger.error((sips.size() - level_end) + " SIP(s) of " +
+                     "the following sequencing levels not packaged.");
+               }
+               throw new SipBuilderException(failures.size() +
+                  " SIP(s) could not be packaged: " + failures,
+                  first_failure);
+            }
+
+            level_start = level_end;
+
+         } // Loop among sequencing levels
+      }
+      finally
+      {
+         if (pool != null)
+         {
+            pool.shutdownNow();
+         }
+      }
+
+   } // End packageSips(List<Sip>)
+
+   /**
+    * Packages a SIP with its reserved identifiers.
+    */
+   private void packageSip(Sip sip, int sequence_number,
+         IndexManager reservation)
+   {
+      logger.info("Writing a SIP of type \"" + sip.getContentTypeId() +
+         "\"...");
+
+      sip.packageAsXfdu(this.directory, reservation, this.packaging,
+         sequence_number);
+   }
+
+   /**
+    * Publishes a SIP packaged without error.
+    */
+   private synchronized void publish(Sip sip)
+   {
+      // Keep track of the packaged transfer objects
+      this.project.recordTransferObjects(sip);
+
+      this.produced += 1;
+   }
+
+   /**
+    * @return the constraint serial number of the content type of a SIP, or
+    *    null if not constrained.
+    */
+   private BigInteger getLevel(Sip sip)
+   {
+      return this.project.getSipContentTypeSequenceNumber(
+         sip.getContentTypeId());
+   }
+
+   /**
+    * @return true if two constraint serial numbers are equal (or both
+    *    null).
+    */
+   private static boolean equals(BigInteger number1, BigInteger number2)
+   {
+      if (number1 == null)
+      {
+         return number2 == null;
+      }
+      return number1.equals(number2);
+   }
+
+} // End SipPackager class
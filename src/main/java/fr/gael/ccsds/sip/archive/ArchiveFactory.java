@@ -33,8 +33,24 @@ public class ArchiveFactory
    public final static String PACKAGING_TAR = "tar";
    public final static String PACKAGING_TGZ = "tgz";
    public final static String PACKAGING_ZIP = "zip";
+   public final static String PACKAGING_LINK = "link";
 
    public static ArchiveManager open(final String type)
+   {
+      return open(type, 1, 0);
+   }
+
+   /**
+    * Opens the manager of a packaging.
+    * 
+    * @param type the packaging type.
+    * @param threads the number of threads compressing an archive (the
+    *    number of processors if 0 or less, a single one if 1).
+    * @param block_size the size of the blocks compressed in parallel.
+    * @return the archive manager.
+    */
+   public static ArchiveManager open(final String type, final int threads,
+         final int block_size)
    {
       if (PACKAGING_DIRECTORY.equals(type))
       {
@@ -46,11 +62,15 @@ public class ArchiveFactory
       }
       if (PACKAGING_TGZ.equals(type))
       {
-         return new TgzArchiveManager();
+         return new TgzArchiveManager(threads, block_size);
       }
       if (PACKAGING_ZIP.equals(type))
       {
-         return new ZipArchiveManager();
+         return new ZipArchiveManager(threads, block_size);
+      }
+      if (PACKAGING_LINK.equals(type))
+      {
+         return new LinkArchiveManager();
       }
       if (PACKAGING_NONE.equals(type))
       {
@@ -22,11 +22,16 @@
 package fr.gael.ccsds.sip.archive;
 
 import java.io.File;
+import java.io.IOException;
 
 public interface ArchiveManager
 {
    /**
     * Copy source file into configuredf destination.
+    * <p>
+    * When the destination archive already exists, its entries are read
+    * back and rewritten for each call: use {@link #openSession(File)} to
+    * add several files to the same archive.
     * 
     * @param destination
     * @param source
@@ -35,6 +40,17 @@ public interface ArchiveManager
     */
    public File copy(File source, File destination, String name) throws Exception;
 
+   /**
+    * Opens a new archive in which entries can be appended one after the
+    * other. The archive is written in a single pass and finalized when the
+    * session is closed.
+    * 
+    * @param destination the archive file (or directory) to be created.
+    * @return the opened session.
+    * @throws IOException if the archive could not be created.
+    */
+   public ArchiveSession openSession(File destination) throws IOException;
+
    /**
     * Returns the expected extension attached to this kind of archive.
     * 
@@ -0,0 +1,81 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip.archive;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+/**
+ * An output archive opened once, filled entry after entry and finalized
+ * once when closed. Contrary to {@link ArchiveManager#copy(File, File,
+ * String)}, the already written entries are never read back nor rewritten.
+ */
+public interface ArchiveSession extends Closeable
+{
+   /**
+    * Appends a file as a new entry of the archive.
+    * 
+    * @param source the file to be appended.
+    * @param name the path of the entry inside the archive.
+    * @throws IOException if the entry could not be written.
+    */
+   public void add(File source, String name) throws IOException;
+
+   /**
+    * Appends a file as a new entry of the archive, feeding the given digest
+    * with the bytes read during the copy.
+    * 
+    * @param source the file to be appended.
+    * @param name the path of the entry inside the archive.
+    * @param digest the digest to be updated with the file content, may be
+    *    null.
+    * @throws IOException if the entry could not be written.
+    */
+   public void add(File source, String name, MessageDigest digest)
+         throws IOException;
+
+   /**
+    * Sets the pipeline copying the files into the entries, so that the
+    * files are read, digested and archived in parallel.
+    * 
+    * @param pipeline the copy pipeline, or null to copy the files
+    *    sequentially.
+    */
+   public void setPipeline(CopyPipeline pipeline);
+
+   /**
+    * Returns the archive file (or directory) receiving the entries.
+    * 
+    * @return the output file pointer.
+    */
+   public File getDestination();
+
+   /**
+    * Finalizes the archive and releases the underlying resources.
+    * 
+    * @throws IOException if the archive could not be finalized.
+    */
+   @Override
+   public void close() throws IOException;
+}
@@ -0,0 +1,107 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the blocks of a raw deflate stream independently, so that
+ * they can be compressed in parallel and concatenated in order.
+ * <p>
+ * Each block is primed with the last 32 KB of the previous one (so that
+ * the compression ratio is close to a sequential one) and ended by a sync
+ * flush (so that it ends on a byte boundary), except the last block that
+ * ends the deflate stream.
+ */
+final class BlockDeflater
+{
+   /**
+    * Size of the deflate window, the dictionary of the next block.
+    */
+   static final int DICTIONARY_SIZE = 32 * 1024;
+
+   private BlockDeflater()
+   {
+   }
+
+   /**
+    * Compresses a block as a part of a raw deflate stream.
+    *
+    * @param level the compression level (0-9).
+    * @param data the block.
+    * @param length the length of the block.
+    * @param dictionary the previous block (may be null).
+    * @param dictionary_length the length of the previous block.
+    * @param last true to end the deflate stream, false to end the block
+    *    on a byte boundary.
+    * @return the compressed block.
+    */
+   static byte[] deflate(final int level, final byte[] data,
+         final int length, final byte[] dictionary,
+         final int dictionary_length, final boolean last)
+   {
+      final Deflater deflater = new Deflater(level, true);
+      try
+      {
+         if (dictionary != null)
+         {
+            final int window = Math.min(DICTIONARY_SIZE, dictionary_length);
+            deflater.setDictionary(dictionary, dictionary_length - window,
+               window);
+         }
+
+         deflater.setInput(data, 0, length);
+
+         final ByteArrayOutputStream compressed =
+            new ByteArrayOutputStream((length / 2) + 64);
+         final byte[] buffer = new byte[Math.max(1024, length / 4)];
+
+         if (last)
+         {
+            deflater.finish();
+            while (!deflater.finished())
+            {
+               final int count = deflater.deflate(buffer);
+               compressed.write(buffer, 0, count);
+            }
+         }
+         else
+         {
+            int count;
+            do
+            {
+               count = deflater.deflate(buffer, 0, buffer.length,
+                  Deflater.SYNC_FLUSH);
+               compressed.write(buffer, 0, count);
+            }
+            while (count == buffer.length);
+         }
+
+         return compressed.toByteArray();
+      }
+      finally
+      {
+         deflater.end();
+      }
+   }
+}
@@ -0,0 +1,585 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip.archive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies files into archive entries through three stages running in
+ * parallel: read-ahead of the source file, digest of the read bytes, and
+ * archiving (compression, if any, and write) of the digested bytes.
+ * <p>
+ * The stages exchange blocks taken from a pool of buffers sized by a
+ * memory budget, through bounded queues of a configurable depth: a stage
+ * faster than the next one is blocked once its output queue is full, so
+ * that the memory used by a copy never exceeds the budget. The time spent
+ * working by each stage is measured to report its utilization.
+ * <p>
+ * A depth of 0 disables the pipeline: the stages are run one after the
+ * other by the calling thread.
+ */
+public class CopyPipeline
+{
+   /**
+    * Smallest size of a pooled buffer.
+    */
+   private static final int MIN_BUFFER_SIZE = 4096;
+
+   /**
+    * Worker threads shared by all the instances.
+    */
+   private static ExecutorService executor = null;
+
+   /**
+    * Number of blocks each stage queue can hold.
+    */
+   private final int depth;
+
+   /**
+    * Number and size of the pooled buffers.
+    */
+   private final int bufferCount;
+   private final int bufferSize;
+
+   /**
+    * The free buffers.
+    */
+   private final BlockingQueue<byte[]> buffers;
+
+   /**
+    * Number of buffers allocated so far.
+    */
+   private final AtomicInteger allocated = new AtomicInteger();
+
+   /**
+    * The stages of the pipeline.
+    */
+   private final Stage read = new Stage("read");
+   private final Stage digest = new Stage("digest");
+   private final Stage archive = new Stage("archive");
+
+   /**
+    * Creation time of the pipeline, from which utilization is measured.
+    */
+   private final long startTime = System.nanoTime();
+
+   /**
+    * Build a pipeline.
+    *
+    * @param depth the number of blocks each stage queue can hold (0 to
+    *    copy sequentially).
+    * @param buffer_budget the total size of the buffers (bytes).
+    */
+   public CopyPipeline(final int depth, final long buffer_budget)
+   {
+      this.depth = Math.max(0, depth);
+
+      // Enough buffers to fill both queues while each stage holds one
+      this.bufferCount = (this.depth * 2) + 3;
+      this.bufferSize = (int) Math.min(Integer.MAX_VALUE - 8,
+         Math.max(MIN_BUFFER_SIZE, buffer_budget / this.bufferCount));
+
+      this.buffers = new ArrayBlockingQueue<byte[]>(this.bufferCount);
+   }
+
+   /**
+    * @return the number of blocks each stage queue can hold.
+    */
+   public int getDepth()
+   {
+      return this.depth;
+   }
+
+   /**
+    * @return the size of the blocks exchanged by the stages.
+    */
+   public int getBufferSize()
+   {
+      return this.bufferSize;
+   }
+
+   /**
+    * Copies a file into an output stream.
+    *
+    * @param source the file to be copied.
+    * @param output the stream receiving the file content. It is only
+    *    written by the calling thread.
+    * @param digest the digest to be updated with the file content, may be
+    *    null.
+    * @throws IOException if the file could not be read or written.
+    */
+   public void copy(final File source, final OutputStream output,
+         final MessageDigest digest) throws IOException
+   {
+      if (this.depth == 0)
+      {
+         this.copySequentially(source, output, digest);
+         return;
+      }
+
+      final BlockingQueue<Block> read_queue =
+         new ArrayBlockingQueue<Block>(this.depth);
+      final BlockingQueue<Block> archive_queue;
+      if (digest != null)
+      {
+         archive_queue = new ArrayBlockingQueue<Block>(this.depth);
+      }
+      else
+      {
+         archive_queue = read_queue;
+      }
+
+      final CountDownLatch stopped =
+         new CountDownLatch((digest != null) ? 2 : 1);
+      final AtomicBoolean aborted = new AtomicBoolean(false);
+
+      getExecutor().execute(new Runnable()
+      {
+         @Override
+         public void run()
+         {
+            try
+            {
+               CopyPipeline.this.readBlocks(source, read_queue, aborted);
+            }
+            finally
+            {
+               stopped.countDown();
+            }
+         }
+      });
+
+      if (digest != null)
+      {
+         getExecutor().execute(new Runnable()
+         {
+            @Override
+            public void run()
+            {
+               try
+               {
+                  CopyPipeline.this.digestBlocks(digest, read_queue,
+                     archive_queue, aborted);
+               }
+               finally
+               {
+                  stopped.countDown();
+               }
+            }
+         });
+      }
+
+      boolean complete = false;
+      try
+      {
+         this.archiveBlocks(output, archive_queue);
+         complete = true;
+      }
+      finally
+      {
+         if (!complete)
+         {
+            // Stop the other stages, unblocking them until they are
+            // stopped, then restore the buffers they held
+            aborted.set(true);
+
+            boolean interrupted = false;
+            while (true)
+            {
+               this.release(read_queue);
+               this.release(archive_queue);
+               try
+               {
+                  if (stopped.await(10, TimeUnit.MILLISECONDS))
+                  {
+                     break;
+                  }
+               }
+               catch (final InterruptedException exception)
+               {
+                  interrupted = true;
+               }
+            }
+            if (interrupted)
+            {
+               Thread.currentThread().interrupt();
+            }
+
+            this.buffers.clear();
+            this.allocated.set(0);
+         }
+      }
+   }
+
+   /**
+    * @return the utilization of each stage since the pipeline was created,
+    *    and the busiest stage.
+    */
+   public String getUtilization()
+   {
+      final long elapsed = Math.max(1, System.nanoTime() - this.startTime);
+
+      Stage bottleneck = this.read;
+      for (final Stage stage : new Stage[] { this.digest, this.archive })
+      {
+         if (stage.busy.get() > bottleneck.busy.get())
+         {
+            bottleneck = stage;
+         }
+      }
+
+      return this.read.getUtilization(elapsed) + ", " +
+         this.digest.getUtilization(elapsed) + ", " +
+         this.archive.getUtilization(elapsed) + " (bottleneck: " +
+         bottleneck.name + ", depth " + this.depth + ", " +
+         this.bufferCount + " x " + this.bufferSize + " bytes)";
+   }
+
+   /**
+    * Runs the stages one after the other in the calling thread.
+    */
+   private void copySequentially(final File source, final OutputStream output,
+         final MessageDigest digest) throws IOException
+   {
+      final byte[] buffer;
+      try
+      {
+         buffer = this.takeBuffer();
+      }
+      catch (final InterruptedException exception)
+      {
+         Thread.currentThread().interrupt();
+         throw new IOException("Copy interrupted.", exception);
+      }
+
+      final InputStream input = new FileInputStream(source);
+      try
+      {
+         while (true)
+         {
+            long start = System.nanoTime();
+            final int length = input.read(buffer);
+            this.read.record(start, Math.max(0, length));
+
+            if (length < 0)
+            {
+               break;
+            }
+
+            if (digest != null)
+            {
+               start = System.nanoTime();
+               digest.update(buffer, 0, length);
+               this.digest.record(start, length);
+            }
+
+            start = System.nanoTime();
+            output.write(buffer, 0, length);
+            this.archive.record(start, length);
+         }
+      }
+      finally
+      {
+         input.close();
+         this.buffers.offer(buffer);
+      }
+   }
+
+   /**
+    * Read stage: fills buffers from the source file.
+    */
+   private void readBlocks(final File source, final BlockingQueue<Block> out,
+         final AtomicBoolean aborted)
+   {
+      try
+      {
+         final InputStream input = new FileInputStream(source);
+         try
+         {
+            while (!aborted.get())
+            {
+               final byte[] buffer = this.takeBuffer();
+
+               // Fill the whole buffer, unless the end of file is reached
+               final long start = System.nanoTime();
+               int length = 0;
+               int count = 0;
+               while ((length < buffer.length) &&
+                      ((count = input.read(buffer, length,
+                         buffer.length - length)) >= 0))
+               {
+                  length += count;
+               }
+               this.read.record(start, length);
+
+               if (length > 0)
+               {
+                  out.put(new Block(buffer, length, null));
+               }
+               else
+               {
+                  this.buffers.offer(buffer);
+               }
+
+               if (count < 0)
+               {
+                  break;
+               }
+            }
+         }
+         finally
+         {
+            input.close();
+         }
+
+         out.put(Block.END);
+      }
+      catch (final InterruptedException exception)
+      {
+         fail(out, new InterruptedIOException("Copy interrupted."));
+      }
+      catch (final IOException exception)
+      {
+         fail(out, exception);
+      }
+      catch (final RuntimeException exception)
+      {
+         fail(out, new IOException("Cannot read \"" + source.getPath() +
+            "\".", exception));
+      }
+   }
+
+   /**
+    * Digest stage: updates the digest with the read buffers.
+    */
+   private void digestBlocks(final MessageDigest digest,
+         final BlockingQueue<Block> in, final BlockingQueue<Block> out,
+         final AtomicBoolean aborted)
+   {
+      try
+      {
+         while (!aborted.get())
+         {
+            final Block block = in.poll(10, TimeUnit.MILLISECONDS);
+            if (block == null)
+            {
+               continue;
+            }
+
+            if (block.data != null)
+            {
+               final long start = System.nanoTime();
+               digest.update(block.data, 0, block.length);
+               this.digest.record(start, block.length);
+            }
+
+            out.put(block);
+
+            if (block.data == null)
+            {
+               return;
+            }
+         }
+      }
+      catch (final InterruptedException exception)
+      {
+         fail(out, new InterruptedIOException("Copy interrupted."));
+      }
+      catch (final RuntimeException exception)
+      {
+         fail(out, new IOException("Checksum computation failed.",
+            exception));
+      }
+   }
+
+   /**
+    * Archive stage: writes the digested buffers and releases them.
+    */
+   private void archiveBlocks(final OutputStream output,
+         final BlockingQueue<Block> in) throws IOException
+   {
+      while (true)
+      {
+         final Block block;
+         try
+         {
+            block = in.take();
+         }
+         catch (final InterruptedException exception)
+         {
+            Thread.currentThread().interrupt();
+            throw new IOException("Copy interrupted.", exception);
+         }
+
+         if (block.failure != null)
+         {
+            throw block.failure;
+         }
+         if (block.data == null)
+         {
+            return;
+         }
+
+         final long start = System.nanoTime();
+         output.write(block.data, 0, block.length);
+         this.archive.record(start, block.length);
+
+         this.buffers.offer(block.data);
+      }
+   }
+
+   /**
+    * @return a free buffer, allocated until the budget is reached, then
+    *    waited for.
+    */
+   private byte[] takeBuffer() throws InterruptedException
+   {
+      final byte[] buffer = this.buffers.poll();
+      if (buffer != null)
+      {
+         return buffer;
+      }
+
+      if (this.allocated.incrementAndGet() <= this.bufferCount)
+      {
+         return new byte[this.bufferSize];
+      }
+      this.allocated.decrementAndGet();
+
+      return this.buffers.take();
+   }
+
+   /**
+    * Returns the buffers of the queued blocks to the pool.
+    */
+   private void release(final BlockingQueue<Block> queue)
+   {
+      Block block;
+      while ((block = queue.poll()) != null)
+      {
+         if (block.data != null)
+         {
+            this.buffers.offer(block.data);
+         }
+      }
+   }
+
+   /**
+    * Notifies the next stages of a failure.
+    */
+   private static void fail(final BlockingQueue<Block> out,
+         final IOException failure)
+   {
+      try
+      {
+         out.put(new Block(null, 0, failure));
+      }
+      catch (final InterruptedException exception)
+      {
+         // Interrupted again: nothing more can be notified
+      }
+   }
+
+   /**
+    * @return the worker threads shared by all the instances.
+    */
+   private static synchronized ExecutorService getExecutor()
+   {
+      if (executor == null)
+      {
+         executor = Executors.newCachedThreadPool(new ThreadFactory()
+         {
+            @Override
+            public Thread newThread(final Runnable runnable)
+            {
+               final Thread thread = new Thread(runnable, "copy-pipeline");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }
+      return executor;
+   }
+
+   /**
+    * A block of bytes exchanged by the stages. The end of the copy is
+    * notified by a block without data.
+    */
+   private static class Block
+   {
+      static final Block END = new Block(null, 0, null);
+
+      final byte[] data;
+      final int length;
+      final IOException failure;
+
+      Block(final byte[] data, final int length, final IOException failure)
+      {
+         this.data = data;
+         this.length = length;
+         this.failure = failure;
+      }
+   }
+
+   /**
+    * The time spent working by a stage, and the bytes it processed.
+    */
+   private static class Stage
+   {
+      final String name;
+      final AtomicLong busy = new AtomicLong();
+      final AtomicLong bytes = new AtomicLong();
+
+      Stage(final String name)
+      {
+         this.name = name;
+      }
+
+      void record(final long start, final long length)
+      {
+         this.busy.addAndGet(System.nanoTime() - start);
+         this.bytes.addAndGet(length);
+      }
+
+      String getUtilization(final long elapsed)
+      {
+         return this.name + " " + ((this.busy.get() * 100) / elapsed) +
+            "% (" + this.bytes.get() + " bytes)";
+      }
+   }
+}
@@ -22,10 +22,7 @@
 package fr.gael.ccsds.sip.archive;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-
-import org.apache.commons.compress.utils.IOUtils;
+import java.io.IOException;
 
 public class DirectoryArchiveManager implements ArchiveManager
 {
@@ -43,12 +40,7 @@ public class DirectoryArchiveManager implements ArchiveManager
 
       if (!source.isDirectory())
       {
-         final FileInputStream fis = new FileInputStream(source);
-         final FileOutputStream fos = new FileOutputStream(dst);
-         IOUtils.copy(fis, fos);
-
-         fis.close();
-         fos.close();
+         FileTransfer.copy(source, dst, null);
       }
       else
       {
@@ -57,6 +49,18 @@ public class DirectoryArchiveManager implements ArchiveManager
       return dst;
    }
 
+   @Override
+   public ArchiveSession openSession(final File destination)
+         throws IOException
+   {
+      if (!destination.isDirectory() && !destination.mkdirs())
+      {
+         throw new IOException("Cannot create directory \"" +
+            destination.getPath() + "\"");
+      }
+      return new DirectoryArchiveSession(destination);
+   }
+
    @Override
    public String getFileExtension()
    {
@@ -0,0 +1,113 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip.archive;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+/**
+ * An archive session copying its entries as plain files below a
+ * destination directory.
+ */
+class DirectoryArchiveSession implements ArchiveSession
+{
+   /**
+    * The directory receiving the entries.
+    */
+   private final File destination;
+
+   /**
+    * The pipeline copying the files (may be null).
+    */
+   private CopyPipeline pipeline = null;
+
+   DirectoryArchiveSession(final File destination)
+   {
+      this.destination = destination;
+   }
+
+   @Override
+   public void add(final File source, final String name) throws IOException
+   {
+      this.add(source, name, null);
+   }
+
+   @Override
+   public void add(final File source, final String name,
+         final MessageDigest digest) throws IOException
+   {
+      // Concatenate destination directory to the expected path name.
+      final File dst = new File(this.destination, name);
+
+      if (source.isDirectory())
+      {
+         dst.mkdirs();
+         return;
+      }
+
+      // Create dirs if not exists
+      if (!dst.getParentFile().exists())
+      {
+         dst.getParentFile().mkdirs();
+      }
+
+      // Read and digest the files in parallel through the pipeline (if
+      // any), and let the kernel copy the files that need no digest
+      if ((digest != null) && (this.pipeline != null) &&
+          (this.pipeline.getDepth() > 0))
+      {
+         final FileOutputStream output = new FileOutputStream(dst);
+         try
+         {
+            this.pipeline.copy(source, output, digest);
+         }
+         finally
+         {
+            output.close();
+         }
+      }
+      else
+      {
+         FileTransfer.copy(source, dst, digest);
+      }
+   }
+
+   @Override
+   public void setPipeline(final CopyPipeline pipeline)
+   {
+      this.pipeline = pipeline;
+   }
+
+   @Override
+   public File getDestination()
+   {
+      return this.destination;
+   }
+
+   @Override
+   public void close() throws IOException
+   {
+      // Nothing to finalize: every entry is already a complete file
+   }
+}
@@ -0,0 +1,191 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip.archive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Copies files between channels, without bringing their content into the
+ * Java heap.
+ * <p>
+ * When no digest is required, the copy is delegated to
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.
+ * WritableByteChannel)}, which lets the kernel move the data (sendfile or
+ * copy_file_range on Linux). Otherwise the content is read into a large
+ * direct buffer that feeds the digest before being written.
+ */
+public class FileTransfer
+{
+   /**
+    * Size of the direct buffer used when a digest is required.
+    */
+   private static final int BUFFER_SIZE = 1024 * 1024;
+
+   /**
+    * Direct buffers of the copying threads (expensive to allocate).
+    */
+   private static final ThreadLocal<ByteBuffer> buffers =
+      new ThreadLocal<ByteBuffer>()
+   {
+      @Override
+      protected ByteBuffer initialValue()
+      {
+         return ByteBuffer.allocateDirect(BUFFER_SIZE);
+      }
+   };
+
+   /**
+    * Copies a file, creating or replacing the destination file.
+    *
+    * @param source the file to be copied.
+    * @param destination the copy.
+    * @param digest the digest to be updated with the file content, may be
+    *    null.
+    * @return the number of copied bytes.
+    * @throws IOException if the file could not be copied.
+    */
+   public static long copy(final File source, final File destination,
+         final MessageDigest digest) throws IOException
+   {
+      final FileInputStream input = new FileInputStream(source);
+      try
+      {
+         final FileOutputStream output = new FileOutputStream(destination);
+         try
+         {
+            return copy(input.getChannel(), output.getChannel(), digest);
+         }
+         finally
+         {
+            output.close();
+         }
+      }
+      finally
+      {
+         input.close();
+      }
+   }
+
+   /**
+    * Copies the remaining content of a channel.
+    *
+    * @param input the channel to be copied, from its current position.
+    * @param output the channel receiving the content, at its current
+    *    position.
+    * @param digest the digest to be updated with the content, may be null.
+    * @return the number of copied bytes.
+    * @throws IOException if the content could not be copied.
+    */
+   public static long copy(final FileChannel input, final FileChannel output,
+         final MessageDigest digest) throws IOException
+   {
+      if (digest == null)
+      {
+         return transfer(input, output);
+      }
+
+      final ByteBuffer buffer = buffers.get();
+      long copied = 0;
+
+      buffer.clear();
+      while (input.read(buffer) >= 0)
+      {
+         buffer.flip();
+
+         // Digest the read bytes, then write them from the same buffer
+         buffer.mark();
+         digest.update(buffer);
+         buffer.reset();
+
+         while (buffer.hasRemaining())
+         {
+            copied += output.write(buffer);
+         }
+         buffer.clear();
+      }
+
+      return copied;
+   }
+
+   /**
+    * Reads a file to update a digest, without copying it.
+    *
+    * @param source the file to be read.
+    * @param digest the digest to be updated with the file content.
+    * @throws IOException if the file could not be read.
+    */
+   public static void digest(final File source, final MessageDigest digest)
+         throws IOException
+   {
+      final FileInputStream input = new FileInputStream(source);
+      try
+      {
+         final FileChannel channel = input.getChannel();
+         final ByteBuffer buffer = buffers.get();
+
+         buffer.clear();
+         while (channel.read(buffer) >= 0)
+         {
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+         }
+      }
+      finally
+      {
+         input.close();
+      }
+   }
+
+   /**
+    * Copies the remaining content of a channel by the kernel.
+    */
+   private static long transfer(final FileChannel input,
+         final FileChannel output) throws IOException
+   {
+      final long start = input.position();
+      final long size = input.size();
+      long position = start;
+
+      // A single transfer may move fewer bytes than requested (e.g. 2 GB
+      // at most on Linux)
+      while (position < size)
+      {
+         final long count = input.transferTo(position, size - position,
+            output);
+         if (count <= 0)
+         {
+            break;
+         }
+         position += count;
+      }
+
+      input.position(position);
+      return position - start;
+   }
+}
@@ -0,0 +1,61 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip.archive;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Produces a directory package whose files are hard links to (or reflink
+ * clones of) the source files, when they are on the same device, instead
+ * of copies. The package content is the same as with the directory
+ * packaging.
+ */
+public class LinkArchiveManager implements ArchiveManager
+{
+   @Override
+   public File copy(final File source, final File destination,
+         final String name) throws Exception
+   {
+      final LinkArchiveSession session = new LinkArchiveSession(destination);
+      session.add(source, name);
+      return new File(destination, name);
+   }
+
+   @Override
+   public ArchiveSession openSession(final File destination)
+         throws IOException
+   {
+      if (!destination.isDirectory() && !destination.mkdirs())
+      {
+         throw new IOException("Cannot create directory \"" +
+            destination.getPath() + "\"");
+      }
+      return new LinkArchiveSession(destination);
+   }
+
+   @Override
+   public String getFileExtension()
+   {
+      return "";
+   }
+}
@@ -0,0 +1,192 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+
+/**
+ * An archive session linking its entries below a destination directory,
+ * instead of copying them: each file is hard linked to its source, or
+ * cloned (reflink) when hard links are not permitted, and copied when
+ * neither is possible (e.g. the source is on another device).
+ * <p>
+ * The entries share their content with the source files: a linked entry
+ * reflects any later modification of its source, contrary to a cloned or
+ * copied one.
+ */
+class LinkArchiveSession extends DirectoryArchiveSession
+{
+   /**
+    * Device of the destination directory, or null if unknown.
+    */
+   private final Object device;
+
+   /**
+    * True while reflink clones may be supported.
+    */
+   private boolean reflink = true;
+
+   LinkArchiveSession(final File destination)
+   {
+      super(destination);
+      this.device = getDevice(destination.toPath());
+   }
+
+   @Override
+   public void add(final File source, final String name,
+         final MessageDigest digest) throws IOException
+   {
+      final File dst = new File(this.getDestination(), name);
+
+      if (source.isDirectory() || !this.link(source, dst))
+      {
+         super.add(source, name, digest);
+         return;
+      }
+
+      // The content is not copied, but still has to be digested
+      if (digest != null)
+      {
+         FileTransfer.digest(source, digest);
+      }
+   }
+
+   /**
+    * Links or clones a file.
+    *
+    * @param source the file to be linked.
+    * @param destination the link.
+    * @return true if the file was linked or cloned, false if it has to be
+    *    copied.
+    * @throws IOException if the file cannot be resolved or the destination
+    *    directory cannot be created.
+    */
+   boolean link(final File source, final File destination)
+         throws IOException
+   {
+      // Hard links do not follow symbolic links: link the target file, as
+      // a copy would do
+      final Path source_path = source.toPath().toRealPath();
+
+      // Neither links nor clones can cross devices
+      if ((this.device != null) &&
+          !this.device.equals(getDevice(source_path)))
+      {
+         return false;
+      }
+
+      if (!destination.getParentFile().exists())
+      {
+         destination.getParentFile().mkdirs();
+      }
+
+      final Path destination_path = destination.toPath();
+      Files.deleteIfExists(destination_path);
+
+      try
+      {
+         Files.createLink(destination_path, source_path);
+         return true;
+      }
+      catch (final IOException exception)
+      {
+         // Not permitted (e.g. protected hard links, or unsupported by the
+         // file system): try to clone the file
+      }
+      catch (final UnsupportedOperationException exception)
+      {
+         // Hard links not supported by the platform
+      }
+
+      return this.reflink && this.clone(source, destination);
+   }
+
+   /**
+    * Clones a file with a copy-on-write reflink, where the file system
+    * supports it (e.g. Btrfs or XFS).
+    *
+    * @return true if the file was cloned.
+    */
+   private boolean clone(final File source, final File destination)
+   {
+      final ProcessBuilder builder = new ProcessBuilder("cp",
+         "--reflink=always", "--preserve=timestamps", "--dereference",
+         source.getPath(), destination.getPath());
+      builder.redirectErrorStream(true);
+      builder.redirectOutput(ProcessBuilder.Redirect.PIPE);
+
+      try
+      {
+         final Process process = builder.start();
+         process.getOutputStream().close();
+         while (process.getInputStream().read() >= 0)
+         {
+            // Discard the diagnostic messages
+         }
+
+         if (process.waitFor() == 0)
+         {
+            return true;
+         }
+      }
+      catch (final IOException exception)
+      {
+         // No cp command on this platform
+      }
+      catch (final InterruptedException exception)
+      {
+         Thread.currentThread().interrupt();
+      }
+
+      // Do not try again for the next files: they will be copied
+      this.reflink = false;
+      destination.delete();
+      return false;
+   }
+
+   /**
+    * @return the device holding a file, or null if unknown.
+    */
+   private static Object getDevice(final Path path)
+   {
+      try
+      {
+         return Files.getAttribute(path, "unix:dev");
+      }
+      catch (final IOException exception)
+      {
+         return null;
+      }
+      catch (final UnsupportedOperationException exception)
+      {
+         return null;
+      }
+      catch (final IllegalArgumentException exception)
+      {
+         return null;
+      }
+   }
+}
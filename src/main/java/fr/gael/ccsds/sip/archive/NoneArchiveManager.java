@@ -22,6 +22,7 @@
 package fr.gael.ccsds.sip.archive;
 
 import java.io.File;
+import java.io.IOException;
 
 /**
  * @author pidancier
@@ -41,6 +42,17 @@ public class NoneArchiveManager implements ArchiveManager
       return new File(destination, name);
    }
 
+   /*
+    * (non-Javadoc)
+    * @see fr.gael.ccsds.sip.archive.ArchiveManager#openSession(java.io.File)
+    */
+   @Override
+   public ArchiveSession openSession(final File destination)
+         throws IOException
+   {
+      return new DirectoryArchiveSession(destination);
+   }
+
    /*
     * (non-Javadoc)
     * @see esa.pais.builder.archive.ArchiveManager#getFileExtension()
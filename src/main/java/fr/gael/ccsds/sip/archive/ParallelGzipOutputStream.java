@@ -0,0 +1,330 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip.archive;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip output stream compressing its input by blocks in parallel, in the
+ * manner of pigz.
+ * <p>
+ * The input is split into blocks of a configurable size, each one
+ * compressed by a worker thread as a raw deflate stream primed with the
+ * last 32 KB of the previous block (so that the compression ratio is close
+ * to a sequential one) and ended by a sync flush (so that it ends on a
+ * byte boundary). The compressed blocks are written in order, after a
+ * standard gzip header, and followed by the CRC-32 and the size of the
+ * whole input: the output is a single gzip member readable by any gzip
+ * decoder.
+ */
+public class ParallelGzipOutputStream extends OutputStream
+{
+   /**
+    * Default size of the blocks compressed in parallel.
+    */
+   public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+   /**
+    * Header of a gzip member: magic, deflate method, no flag, no
+    * modification time, no extra flag and operating system 0 (as written
+    * by {@link java.util.zip.GZIPOutputStream}).
+    */
+   private static final byte[] HEADER = new byte[] {
+      (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+   /**
+    * The compressed stream.
+    */
+   private final OutputStream output;
+
+   /**
+    * Compression level of the blocks.
+    */
+   private final int level;
+
+   /**
+    * Size of the blocks compressed in parallel.
+    */
+   private final int blockSize;
+
+   /**
+    * Maximum number of blocks being compressed.
+    */
+   private final int maxPending;
+
+   /**
+    * The worker threads of this stream.
+    */
+   private final ExecutorService executor;
+
+   /**
+    * The blocks being compressed, in the order of the input.
+    */
+   private final LinkedList<Future<byte[]>> pending =
+      new LinkedList<Future<byte[]>>();
+
+   /**
+    * The block being filled from the input.
+    */
+   private byte[] block;
+   private int filled = 0;
+
+   /**
+    * The last filled block, the dictionary of the next one.
+    */
+   private byte[] previous = null;
+   private int previousLength = 0;
+
+   /**
+    * Checksum and size of the whole input.
+    */
+   private final CRC32 crc = new CRC32();
+   private long size = 0;
+
+   private boolean finished = false;
+   private boolean closed = false;
+
+   /**
+    * Build a stream compressing with the default level.
+    *
+    * @param output the stream receiving the gzip data.
+    * @param threads the number of worker threads (the number of
+    *    processors if 0 or less).
+    * @param block_size the size of the blocks compressed in parallel (32
+    *    KB at least, {@link #DEFAULT_BLOCK_SIZE} if 0 or less).
+    * @throws IOException if the gzip header cannot be written.
+    */
+   public ParallelGzipOutputStream(final OutputStream output,
+         final int threads, final int block_size) throws IOException
+   {
+      this(output, threads, block_size, Deflater.DEFAULT_COMPRESSION);
+   }
+
+   /**
+    * Build a stream.
+    *
+    * @param output the stream receiving the gzip data.
+    * @param threads the number of worker threads (the number of
+    *    processors if 0 or less).
+    * @param block_size the size of the blocks compressed in parallel (32
+    *    KB at least, {@link #DEFAULT_BLOCK_SIZE} if 0 or less).
+    * @param level the compression level (0-9).
+    * @throws IOException if the gzip header cannot be written.
+    */
+   public ParallelGzipOutputStream(final OutputStream output,
+         final int threads, final int block_size, final int level)
+         throws IOException
+   {
+      this.output = output;
+      this.level = level;
+      this.blockSize = (block_size > 0) ?
+         Math.max(BlockDeflater.DICTIONARY_SIZE, block_size) :
+         DEFAULT_BLOCK_SIZE;
+
+      final int thread_count = (threads > 0) ? threads :
+         Runtime.getRuntime().availableProcessors();
+      this.maxPending = thread_count * 2;
+
+      this.executor = Executors.newFixedThreadPool(thread_count,
+         new ThreadFactory()
+      {
+         @Override
+         public Thread newThread(final Runnable runnable)
+         {
+            final Thread thread = new Thread(runnable, "gzip");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+
+      this.block = new byte[this.blockSize];
+
+      try
+      {
+         this.output.write(HEADER);
+      }
+      catch (final IOException exception)
+      {
+         this.executor.shutdownNow();
+         throw exception;
+      }
+   }
+
+   @Override
+   public void write(final int value) throws IOException
+   {
+      this.write(new byte[] { (byte) value }, 0, 1);
+   }
+
+   @Override
+   public void write(final byte[] buffer, int offset, int length)
+         throws IOException
+   {
+      if (this.finished)
+      {
+         throw new IOException("Stream finished.");
+      }
+
+      this.crc.update(buffer, offset, length);
+      this.size += length;
+
+      while (length > 0)
+      {
+         final int count = Math.min(length, this.blockSize - this.filled);
+         System.arraycopy(buffer, offset, this.block, this.filled, count);
+         this.filled += count;
+         offset += count;
+         length -= count;
+
+         if (this.filled == this.blockSize)
+         {
+            this.submit(false);
+         }
+      }
+   }
+
+   /**
+    * Completes the gzip member without closing the underlying stream.
+    *
+    * @throws IOException if the data cannot be compressed or written.
+    */
+   public void finish() throws IOException
+   {
+      if (this.finished)
+      {
+         return;
+      }
+      this.finished = true;
+
+      try
+      {
+         // The last block ends the deflate stream, even if empty
+         this.submit(true);
+         while (!this.pending.isEmpty())
+         {
+            this.writeNext();
+         }
+
+         final long crc_value = this.crc.getValue();
+         this.output.write(new byte[] {
+            (byte) crc_value, (byte) (crc_value >> 8),
+            (byte) (crc_value >> 16), (byte) (crc_value >> 24),
+            (byte) this.size, (byte) (this.size >> 8),
+            (byte) (this.size >> 16), (byte) (this.size >> 24) });
+      }
+      finally
+      {
+         this.executor.shutdownNow();
+      }
+   }
+
+   @Override
+   public void flush() throws IOException
+   {
+      this.output.flush();
+   }
+
+   @Override
+   public void close() throws IOException
+   {
+      if (this.closed)
+      {
+         return;
+      }
+      this.closed = true;
+
+      try
+      {
+         this.finish();
+      }
+      finally
+      {
+         this.output.close();
+      }
+   }
+
+   /**
+    * Hands the filled block to a worker thread, writing the oldest
+    * compressed blocks first if too many are pending.
+    */
+   private void submit(final boolean last) throws IOException
+   {
+      while (this.pending.size() >= this.maxPending)
+      {
+         this.writeNext();
+      }
+
+      final byte[] data = this.block;
+      final int length = this.filled;
+      final byte[] dictionary = this.previous;
+      final int dictionary_length = this.previousLength;
+
+      this.pending.add(this.executor.submit(new Callable<byte[]>()
+      {
+         @Override
+         public byte[] call()
+         {
+            return BlockDeflater.deflate(level, data, length, dictionary,
+               dictionary_length, last);
+         }
+      }));
+
+      this.previous = data;
+      this.previousLength = length;
+      this.block = new byte[this.blockSize];
+      this.filled = 0;
+   }
+
+   /**
+    * Writes the oldest compressed block.
+    */
+   private void writeNext() throws IOException
+   {
+      final byte[] compressed;
+      try
+      {
+         compressed = this.pending.removeFirst().get();
+      }
+      catch (final InterruptedException exception)
+      {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("Compression interrupted.");
+      }
+      catch (final ExecutionException exception)
+      {
+         throw new IOException("Compression failed.", exception.getCause());
+      }
+
+      this.output.write(compressed);
+   }
+}
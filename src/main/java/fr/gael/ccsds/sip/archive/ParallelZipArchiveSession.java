@@ -0,0 +1,806 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.compress.utils.IOUtils;
+
+/**
+ * A Zip archive session deflating its entries with a pool of worker
+ * threads.
+ * <p>
+ * The files are read (and digested) by the calling thread and split into
+ * blocks, each one deflated by a worker thread as a part of the raw
+ * deflate stream of its entry (see {@link BlockDeflater}). The entries and
+ * their compressed blocks are written in the order of the calls to
+ * {@link #add(File, String, MessageDigest)}, a bounded number of blocks
+ * being compressed at the same time: the calling thread does not wait for
+ * an entry to be compressed before reading the next file, and the
+ * compression of a large entry is spread over all the workers. The CRC-32
+ * and sizes of an entry are written back in its local header once it is
+ * complete, and the central directory (with Zip64 records when required)
+ * is written when the session is closed.
+ * <p>
+ * Once an entry could not be added, the session rejects any other entry,
+ * and closing it deletes the incomplete archive and throws an exception.
+ */
+public class ParallelZipArchiveSession implements ArchiveSession
+{
+   private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+   private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+   private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+   private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+   private static final int END_SIGNATURE = 0x06054b50;
+
+   /**
+    * Versions needed to extract the entries, without and with Zip64
+    * fields.
+    */
+   private static final int VERSION = 20;
+   private static final int VERSION_ZIP64 = 45;
+
+   /**
+    * General purpose flag of the names encoded in UTF-8.
+    */
+   private static final int FLAG_UTF8 = 0x0800;
+
+   /**
+    * Largest value of the 32-bit fields, meaning that the value is in the
+    * Zip64 extra field.
+    */
+   private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+   /**
+    * Size from which the entries have Zip64 fields: deflate slightly
+    * expands incompressible data, and the compressed size is only known
+    * once the local header is written.
+    */
+   private static final long ZIP64_THRESHOLD = 0xF0000000L;
+
+   /**
+    * Size of the buffer of the central directory.
+    */
+   private static final int DIRECTORY_BUFFER_SIZE = 64 * 1024;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   /**
+    * The archive file being written.
+    */
+   private final File destination;
+
+   private final FileOutputStream output;
+   private final FileChannel channel;
+
+   /**
+    * Position of the next written byte.
+    */
+   private long position = 0;
+
+   /**
+    * Compression level of the entries.
+    */
+   private final int level;
+
+   /**
+    * Size of the blocks compressed in parallel.
+    */
+   private final int blockSize;
+
+   /**
+    * Maximum number of blocks being compressed.
+    */
+   private final int maxPending;
+
+   /**
+    * The worker threads of this session.
+    */
+   private final ExecutorService executor;
+
+   /**
+    * The entry starts, compressed blocks and entry ends not written yet, in
+    * the order of the archive.
+    */
+   private final LinkedList<Item> items = new LinkedList<Item>();
+   private int pendingBlocks = 0;
+
+   /**
+    * The entries of the archive, in order.
+    */
+   private final List<Entry> entries = new ArrayList<Entry>();
+
+   /**
+    * The entry whose compressed blocks are being written.
+    */
+   private Entry current = null;
+
+   /**
+    * The pipeline reading the files (may be null).
+    */
+   private CopyPipeline pipeline = null;
+
+   /**
+    * The failure of an entry (null if none): no other entry can be added
+    * and the archive is deleted instead of being finalized.
+    */
+   private Throwable failure = null;
+   private boolean closed = false;
+
+   /**
+    * Build a session compressing with the default level.
+    *
+    * @param destination the archive file to be created or replaced.
+    * @param threads the number of worker threads (the number of
+    *    processors if 0 or less).
+    * @param block_size the size of the blocks compressed in parallel (32
+    *    KB at least, {@link ParallelGzipOutputStream#DEFAULT_BLOCK_SIZE} if
+    *    0 or less).
+    * @throws IOException if the archive file cannot be created.
+    */
+   public ParallelZipArchiveSession(final File destination,
+         final int threads, final int block_size) throws IOException
+   {
+      this(destination, threads, block_size, Deflater.DEFAULT_COMPRESSION);
+   }
+
+   /**
+    * Build a session.
+    *
+    * @param destination the archive file to be created or replaced.
+    * @param threads the number of worker threads (the number of
+    *    processors if 0 or less).
+    * @param block_size the size of the blocks compressed in parallel (32
+    *    KB at least, {@link ParallelGzipOutputStream#DEFAULT_BLOCK_SIZE} if
+    *    0 or less).
+    * @param level the compression level (0-9).
+    * @throws IOException if the archive file cannot be created.
+    */
+   public ParallelZipArchiveSession(final File destination,
+         final int threads, final int block_size, final int level)
+         throws IOException
+   {
+      this.destination = destination;
+      this.level = level;
+      this.blockSize = (block_size > 0) ?
+         Math.max(BlockDeflater.DICTIONARY_SIZE, block_size) :
+         ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE;
+
+      final int thread_count = (threads > 0) ? threads :
+         Runtime.getRuntime().availableProcessors();
+      this.maxPending = thread_count * 2;
+
+      this.output = new FileOutputStream(destination);
+      this.channel = this.output.getChannel();
+
+      this.executor = Executors.newFixedThreadPool(thread_count,
+         new ThreadFactory()
+      {
+         @Override
+         public Thread newThread(final Runnable runnable)
+         {
+            final Thread thread = new Thread(runnable, "zip");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+   }
+
+   @Override
+   public void add(final File source, final String name) throws IOException
+   {
+      this.add(source, name, null);
+   }
+
+   @Override
+   public void add(final File source, final String name,
+         final MessageDigest digest) throws IOException
+   {
+      if (this.closed)
+      {
+         throw new IOException("Archive session closed.");
+      }
+      if (this.failure != null)
+      {
+         throw new IOException("Archive \"" + this.destination.getName() +
+            "\" failed, no other entry can be added.", this.failure);
+      }
+
+      try
+      {
+         this.addEntry(source, name, digest);
+      }
+      catch (final IOException exception)
+      {
+         this.failure = exception;
+         throw exception;
+      }
+      catch (final RuntimeException exception)
+      {
+         this.failure = exception;
+         throw exception;
+      }
+   }
+
+   @Override
+   public void setPipeline(final CopyPipeline pipeline)
+   {
+      this.pipeline = pipeline;
+   }
+
+   @Override
+   public File getDestination()
+   {
+      return this.destination;
+   }
+
+   @Override
+   public void close() throws IOException
+   {
+      if (this.closed)
+      {
+         return;
+      }
+      this.closed = true;
+
+      boolean complete = false;
+      try
+      {
+         if (this.failure != null)
+         {
+            throw new IOException("Archive \"" +
+               this.destination.getName() + "\" not finalized: an entry " +
+               "could not be added.", this.failure);
+         }
+
+         while (!this.items.isEmpty())
+         {
+            this.writeNext();
+         }
+         this.writeCentralDirectory();
+         complete = true;
+      }
+      finally
+      {
+         this.executor.shutdownNow();
+         try
+         {
+            this.output.close();
+         }
+         finally
+         {
+            // Never leave an archive without central directory
+            if (!complete)
+            {
+               this.destination.delete();
+            }
+         }
+      }
+   }
+
+   /**
+    * Reads a file into a new entry, handing its blocks to the workers.
+    */
+   private void addEntry(final File source, final String name,
+         final MessageDigest digest) throws IOException
+   {
+      final boolean directory = source.isDirectory();
+
+      // Same entry naming as ZipArchiveEntry
+      final String entry_name = (directory && !name.endsWith("/")) ?
+         name + "/" : name;
+
+      final Entry entry = new Entry(entry_name, directory,
+         source.lastModified(),
+         !directory && (source.length() >= ZIP64_THRESHOLD));
+      this.entries.add(entry);
+      this.items.add(new Item(entry, null, false));
+
+      if (directory)
+      {
+         this.items.add(new Item(entry, null, true));
+         return;
+      }
+
+      final EntryOutputStream entry_output = new EntryOutputStream(entry);
+
+      if (this.pipeline != null)
+      {
+         this.pipeline.copy(source, entry_output, digest);
+      }
+      else
+      {
+         InputStream input = new FileInputStream(source);
+         if (digest != null)
+         {
+            input = new DigestInputStream(input, digest);
+         }
+         try
+         {
+            IOUtils.copy(input, entry_output);
+         }
+         finally
+         {
+            input.close();
+         }
+      }
+
+      entry_output.finish();
+   }
+
+   /**
+    * Hands a block of the current entry to a worker thread, writing the
+    * oldest items first if too many blocks are pending.
+    */
+   private void submit(final byte[] data, final int length,
+         final byte[] dictionary, final int dictionary_length,
+         final boolean last) throws IOException
+   {
+      while (this.pendingBlocks >= this.maxPending)
+      {
+         this.writeNext();
+      }
+
+      final Future<byte[]> future = this.executor.submit(
+         new Callable<byte[]>()
+      {
+         @Override
+         public byte[] call()
+         {
+            return BlockDeflater.deflate(level, data, length, dictionary,
+               dictionary_length, last);
+         }
+      });
+
+      this.items.add(new Item(null, future, false));
+      this.pendingBlocks += 1;
+   }
+
+   /**
+    * Writes the oldest item: the local header of an entry, a compressed
+    * block, or the CRC-32 and sizes of a complete entry.
+    */
+   private void writeNext() throws IOException
+   {
+      final Item item = this.items.removeFirst();
+
+      if (item.data != null)
+      {
+         final byte[] compressed;
+         try
+         {
+            compressed = item.data.get();
+         }
+         catch (final InterruptedException exception)
+         {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Compression interrupted.");
+         }
+         catch (final ExecutionException exception)
+         {
+            throw new IOException("Compression failed.",
+               exception.getCause());
+         }
+         finally
+         {
+            this.pendingBlocks -= 1;
+         }
+
+         this.write(ByteBuffer.wrap(compressed));
+         this.current.compressedSize += compressed.length;
+      }
+      else if (!item.end)
+      {
+         this.current = item.entry;
+         this.writeLocalHeader(item.entry);
+      }
+      else
+      {
+         this.completeLocalHeader(item.entry);
+         this.current = null;
+      }
+   }
+
+   /**
+    * Writes the local header of an entry, its CRC-32 and sizes being
+    * unknown yet.
+    */
+   private void writeLocalHeader(final Entry entry) throws IOException
+   {
+      entry.offset = this.position;
+
+      final ByteBuffer header = allocate(30 + entry.name.length +
+         (entry.zip64 ? 20 : 0));
+
+      header.putInt(LOCAL_HEADER_SIGNATURE);
+      header.putShort((short) (entry.zip64 ? VERSION_ZIP64 : VERSION));
+      header.putShort((short) FLAG_UTF8);
+      header.putShort((short) entry.method);
+      header.putInt(entry.dosTime);
+      header.putInt(0);
+      header.putInt(entry.zip64 ? (int) ZIP64_MAGIC : 0);
+      header.putInt(entry.zip64 ? (int) ZIP64_MAGIC : 0);
+      header.putShort((short) entry.name.length);
+      header.putShort((short) (entry.zip64 ? 20 : 0));
+      header.put(entry.name);
+
+      if (entry.zip64)
+      {
+         header.putShort((short) 0x0001);
+         header.putShort((short) 16);
+         header.putLong(0);
+         header.putLong(0);
+      }
+
+      header.flip();
+      this.write(header);
+   }
+
+   /**
+    * Writes back the CRC-32 and sizes of a complete entry in its local
+    * header.
+    */
+   private void completeLocalHeader(final Entry entry) throws IOException
+   {
+      if (!entry.zip64 && ((entry.size >= ZIP64_MAGIC) ||
+                           (entry.compressedSize >= ZIP64_MAGIC)))
+      {
+         throw new IOException("Entry \"" + new String(entry.name, UTF8) +
+            "\" larger than 4 GB without Zip64 fields (file modified " +
+            "while archived?).");
+      }
+
+      final ByteBuffer fields = allocate(12);
+      fields.putInt((int) entry.crc);
+      fields.putInt(entry.zip64 ? (int) ZIP64_MAGIC :
+         (int) entry.compressedSize);
+      fields.putInt(entry.zip64 ? (int) ZIP64_MAGIC : (int) entry.size);
+      fields.flip();
+      this.write(fields, entry.offset + 14);
+
+      if (entry.zip64)
+      {
+         final ByteBuffer extra = allocate(16);
+         extra.putLong(entry.size);
+         extra.putLong(entry.compressedSize);
+         extra.flip();
+         this.write(extra, entry.offset + 30 + entry.name.length + 4);
+      }
+   }
+
+   /**
+    * Writes the central directory and the end records of the archive.
+    */
+   private void writeCentralDirectory() throws IOException
+   {
+      final long directory_offset = this.position;
+      final ByteArrayOutputStream directory =
+         new ByteArrayOutputStream(DIRECTORY_BUFFER_SIZE);
+
+      for (final Entry entry : this.entries)
+      {
+         final boolean offset64 = entry.offset >= ZIP64_MAGIC;
+         final int extra_length = (entry.zip64 ? 16 : 0) +
+            (offset64 ? 8 : 0);
+         final int version = (entry.zip64 || offset64) ? VERSION_ZIP64 :
+            VERSION;
+
+         final ByteBuffer header = allocate(46 + entry.name.length +
+            ((extra_length > 0) ? 4 + extra_length : 0));
+
+         header.putInt(CENTRAL_HEADER_SIGNATURE);
+         header.putShort((short) version);
+         header.putShort((short) version);
+         header.putShort((short) FLAG_UTF8);
+         header.putShort((short) entry.method);
+         header.putInt(entry.dosTime);
+         header.putInt((int) entry.crc);
+         header.putInt(entry.zip64 ? (int) ZIP64_MAGIC :
+            (int) entry.compressedSize);
+         header.putInt(entry.zip64 ? (int) ZIP64_MAGIC : (int) entry.size);
+         header.putShort((short) entry.name.length);
+         header.putShort((short) ((extra_length > 0) ? 4 + extra_length : 0));
+         header.putShort((short) 0);
+         header.putShort((short) 0);
+         header.putShort((short) 0);
+         // MS-DOS directory attribute
+         header.putInt(entry.directory ? 0x10 : 0);
+         header.putInt(offset64 ? (int) ZIP64_MAGIC : (int) entry.offset);
+         header.put(entry.name);
+
+         if (extra_length > 0)
+         {
+            header.putShort((short) 0x0001);
+            header.putShort((short) extra_length);
+            if (entry.zip64)
+            {
+               header.putLong(entry.size);
+               header.putLong(entry.compressedSize);
+            }
+            if (offset64)
+            {
+               header.putLong(entry.offset);
+            }
+         }
+
+         directory.write(header.array(), 0, header.position());
+         if (directory.size() >= DIRECTORY_BUFFER_SIZE)
+         {
+            this.write(ByteBuffer.wrap(directory.toByteArray()));
+            directory.reset();
+         }
+      }
+      this.write(ByteBuffer.wrap(directory.toByteArray()));
+
+      final long directory_size = this.position - directory_offset;
+      final long count = this.entries.size();
+
+      if ((count >= 0xFFFF) || (directory_offset >= ZIP64_MAGIC) ||
+          (directory_size >= ZIP64_MAGIC))
+      {
+         final long zip64_end_offset = this.position;
+         final ByteBuffer zip64_end = allocate(56 + 20);
+
+         zip64_end.putInt(ZIP64_END_SIGNATURE);
+         zip64_end.putLong(44);
+         zip64_end.putShort((short) VERSION_ZIP64);
+         zip64_end.putShort((short) VERSION_ZIP64);
+         zip64_end.putInt(0);
+         zip64_end.putInt(0);
+         zip64_end.putLong(count);
+         zip64_end.putLong(count);
+         zip64_end.putLong(directory_size);
+         zip64_end.putLong(directory_offset);
+
+         zip64_end.putInt(ZIP64_LOCATOR_SIGNATURE);
+         zip64_end.putInt(0);
+         zip64_end.putLong(zip64_end_offset);
+         zip64_end.putInt(1);
+
+         zip64_end.flip();
+         this.write(zip64_end);
+      }
+
+      final ByteBuffer end = allocate(22);
+      end.putInt(END_SIGNATURE);
+      end.putShort((short) 0);
+      end.putShort((short) 0);
+      end.putShort((short) Math.min(count, 0xFFFF));
+      end.putShort((short) Math.min(count, 0xFFFF));
+      end.putInt((int) Math.min(directory_size, ZIP64_MAGIC));
+      end.putInt((int) Math.min(directory_offset, ZIP64_MAGIC));
+      end.putShort((short) 0);
+      end.flip();
+      this.write(end);
+   }
+
+   /**
+    * Appends bytes to the archive.
+    */
+   private void write(final ByteBuffer buffer) throws IOException
+   {
+      while (buffer.hasRemaining())
+      {
+         this.position += this.channel.write(buffer);
+      }
+   }
+
+   /**
+    * Overwrites already written bytes of the archive.
+    */
+   private void write(final ByteBuffer buffer, long offset)
+         throws IOException
+   {
+      while (buffer.hasRemaining())
+      {
+         offset += this.channel.write(buffer, offset);
+      }
+   }
+
+   /**
+    * @return a little-endian buffer for Zip records.
+    */
+   private static ByteBuffer allocate(final int size)
+   {
+      return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+   }
+
+   /**
+    * Splits the content of the current entry into blocks handed to the
+    * workers, computing its CRC-32 and size.
+    */
+   private class EntryOutputStream extends OutputStream
+   {
+      private final Entry entry;
+
+      private final CRC32 crc = new CRC32();
+      private long size = 0;
+
+      /**
+       * The block being filled.
+       */
+      private byte[] block = new byte[blockSize];
+      private int filled = 0;
+
+      /**
+       * The last filled block, the dictionary of the next one.
+       */
+      private byte[] previous = null;
+      private int previousLength = 0;
+
+      EntryOutputStream(final Entry entry)
+      {
+         this.entry = entry;
+      }
+
+      @Override
+      public void write(final int value) throws IOException
+      {
+         this.write(new byte[] { (byte) value }, 0, 1);
+      }
+
+      @Override
+      public void write(final byte[] buffer, int offset, int length)
+            throws IOException
+      {
+         this.crc.update(buffer, offset, length);
+         this.size += length;
+
+         while (length > 0)
+         {
+            final int count = Math.min(length, blockSize - this.filled);
+            System.arraycopy(buffer, offset, this.block, this.filled, count);
+            this.filled += count;
+            offset += count;
+            length -= count;
+
+            if (this.filled == blockSize)
+            {
+               this.submitBlock(false);
+            }
+         }
+      }
+
+      /**
+       * Submits the last block, even if empty, and schedules the
+       * completion of the local header.
+       */
+      void finish() throws IOException
+      {
+         this.submitBlock(true);
+
+         this.entry.crc = this.crc.getValue();
+         this.entry.size = this.size;
+         items.add(new Item(this.entry, null, true));
+      }
+
+      private void submitBlock(final boolean last) throws IOException
+      {
+         submit(this.block, this.filled, this.previous, this.previousLength,
+            last);
+
+         this.previous = this.block;
+         this.previousLength = this.filled;
+         this.block = new byte[blockSize];
+         this.filled = 0;
+      }
+   }
+
+   /**
+    * An entry of the archive.
+    */
+   private static class Entry
+   {
+      final byte[] name;
+      final boolean directory;
+      final int method;
+      final int dosTime;
+
+      /**
+       * True if the sizes are in a Zip64 extra field.
+       */
+      final boolean zip64;
+
+      long offset = 0;
+      long crc = 0;
+      long size = 0;
+      long compressedSize = 0;
+
+      Entry(final String name, final boolean directory,
+            final long modification_time, final boolean zip64)
+      {
+         this.name = name.getBytes(UTF8);
+         this.directory = directory;
+         this.method = directory ? ZipEntry.STORED : ZipEntry.DEFLATED;
+         this.dosTime = toDosTime(modification_time);
+         this.zip64 = zip64;
+      }
+
+      /**
+       * @return the MS-DOS date (high half) and time (low half) of a Java
+       *    time, in the local time zone.
+       */
+      private static int toDosTime(final long time)
+      {
+         final Calendar calendar = Calendar.getInstance();
+         calendar.setTimeInMillis(time);
+
+         final int year = calendar.get(Calendar.YEAR);
+         if (year < 1980)
+         {
+            // 1980-01-01 00:00:00
+            return 0x00210000;
+         }
+
+         return ((year - 1980) << 25) |
+            ((calendar.get(Calendar.MONTH) + 1) << 21) |
+            (calendar.get(Calendar.DAY_OF_MONTH) << 16) |
+            (calendar.get(Calendar.HOUR_OF_DAY) << 11) |
+            (calendar.get(Calendar.MINUTE) << 5) |
+            (calendar.get(Calendar.SECOND) >> 1);
+      }
+   }
+
+   /**
+    * An item to be written in order: the start of an entry (local header),
+    * a compressed block, or the end of an entry (CRC-32 and sizes).
+    */
+   private static class Item
+   {
+      final Entry entry;
+      final Future<byte[]> data;
+      final boolean end;
+
+      Item(final Entry entry, final Future<byte[]> data, final boolean end)
+      {
+         this.entry = entry;
+         this.data = data;
+         this.end = end;
+      }
+   }
+}
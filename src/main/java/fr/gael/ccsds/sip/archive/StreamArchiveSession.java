@@ -0,0 +1,131 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip.archive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.utils.IOUtils;
+
+/**
+ * An archive session writing its entries sequentially into a single
+ * commons-compress {@link ArchiveOutputStream} (tar, tgz or zip).
+ */
+class StreamArchiveSession implements ArchiveSession
+{
+   /**
+    * The archive file being written.
+    */
+   private final File destination;
+
+   /**
+    * The archive stream receiving the entries.
+    */
+   private final ArchiveOutputStream output;
+
+   /**
+    * The pipeline copying the files into the entries (may be null).
+    */
+   private CopyPipeline pipeline = null;
+
+   /**
+    * Build a session over an already opened archive stream.
+    * 
+    * @param destination the archive file being written.
+    * @param output the archive stream receiving the entries.
+    */
+   StreamArchiveSession(final File destination,
+         final ArchiveOutputStream output)
+   {
+      this.destination = destination;
+      this.output = output;
+   }
+
+   @Override
+   public void add(final File source, final String name) throws IOException
+   {
+      this.add(source, name, null);
+   }
+
+   @Override
+   public void add(final File source, final String name,
+         final MessageDigest digest) throws IOException
+   {
+      // Let the archive format build its own entry (name, size and date)
+      final ArchiveEntry entry = this.output.createArchiveEntry(source, name);
+      this.output.putArchiveEntry(entry);
+
+      if (!source.isDirectory() && (this.pipeline != null))
+      {
+         this.pipeline.copy(source, this.output, digest);
+      }
+      else if (!source.isDirectory())
+      {
+         InputStream input = new FileInputStream(source);
+         if (digest != null)
+         {
+            input = new DigestInputStream(input, digest);
+         }
+         try
+         {
+            IOUtils.copy(input, this.output);
+         }
+         finally
+         {
+            input.close();
+         }
+      }
+
+      this.output.closeArchiveEntry();
+   }
+
+   @Override
+   public void setPipeline(final CopyPipeline pipeline)
+   {
+      this.pipeline = pipeline;
+   }
+
+   @Override
+   public File getDestination()
+   {
+      return this.destination;
+   }
+
+   @Override
+   public void close() throws IOException
+   {
+      try
+      {
+         this.output.finish();
+      }
+      finally
+      {
+         this.output.close();
+      }
+   }
+}
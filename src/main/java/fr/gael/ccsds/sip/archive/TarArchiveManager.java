@@ -21,15 +21,18 @@
  */
 package fr.gael.ccsds.sip.archive;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.ArchiveOutputStream;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.compress.utils.IOUtils;
 
 public class TarArchiveManager implements ArchiveManager
@@ -106,6 +109,22 @@ public class TarArchiveManager implements ArchiveManager
       return tar_file;
    }
 
+   /**
+    * Opens a TAR archive written in a single pass.
+    */
+   @Override
+   public ArchiveSession openSession(final File tar_file) throws IOException
+   {
+      final TarArchiveOutputStream tos = new TarArchiveOutputStream(
+         new BufferedOutputStream(new FileOutputStream(tar_file)));
+
+      // Support deep SIP trees and data objects larger than 8 GB
+      tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+      tos.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+
+      return new StreamArchiveSession(tar_file, tos);
+   }
+
    @Override
    public String getFileExtension()
    {
@@ -21,22 +21,59 @@
  */
 package fr.gael.ccsds.sip.archive;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.ArchiveOutputStream;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.compress.compressors.CompressorInputStream;
 import org.apache.commons.compress.compressors.CompressorOutputStream;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.apache.commons.compress.utils.IOUtils;
 
 public class TgzArchiveManager implements ArchiveManager
 {
+   /**
+    * Number of threads compressing a TGZ archive (the number of processors
+    * if 0 or less, single-threaded gzip if 1).
+    */
+   private final int threads;
+
+   /**
+    * Size of the blocks compressed in parallel.
+    */
+   private final int blockSize;
+
+   /**
+    * Build a manager compressing with a single thread.
+    */
+   public TgzArchiveManager()
+   {
+      this(1, 0);
+   }
+
+   /**
+    * Build a manager compressing in parallel.
+    * 
+    * @param threads the number of compressing threads (the number of
+    *    processors if 0 or less, single-threaded gzip if 1).
+    * @param block_size the size of the blocks compressed in parallel.
+    */
+   public TgzArchiveManager(final int threads, final int block_size)
+   {
+      this.threads = threads;
+      this.blockSize = block_size;
+   }
+
    /*
     * TGZ archive manager
     */
@@ -115,6 +152,37 @@ public class TgzArchiveManager implements ArchiveManager
       return tar_file;
    }
 
+   /**
+    * Opens a TGZ archive written in a single pass.
+    */
+   @Override
+   public ArchiveSession openSession(final File tar_file) throws IOException
+   {
+      final OutputStream file_output =
+         new BufferedOutputStream(new FileOutputStream(tar_file));
+
+      // Compress by blocks in parallel unless a single thread is requested
+      final OutputStream gzip_output;
+      if (this.threads == 1)
+      {
+         gzip_output = new GzipCompressorOutputStream(file_output);
+      }
+      else
+      {
+         gzip_output = new ParallelGzipOutputStream(file_output,
+            this.threads, this.blockSize);
+      }
+
+      final TarArchiveOutputStream tos =
+         new TarArchiveOutputStream(gzip_output);
+
+      // Support deep SIP trees and data objects larger than 8 GB
+      tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+      tos.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+
+      return new StreamArchiveSession(tar_file, tos);
+   }
+
    @Override
    public String getFileExtension()
    {
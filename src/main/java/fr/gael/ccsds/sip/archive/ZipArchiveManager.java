@@ -24,6 +24,7 @@ package fr.gael.ccsds.sip.archive;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
@@ -32,6 +33,37 @@ import org.apache.commons.compress.utils.IOUtils;
 
 public class ZipArchiveManager implements ArchiveManager
 {
+   /**
+    * Number of threads deflating the entries of a Zip archive (the number
+    * of processors if 0 or less, the calling thread only if 1).
+    */
+   private final int threads;
+
+   /**
+    * Size of the blocks compressed in parallel.
+    */
+   private final int blockSize;
+
+   /**
+    * Build a manager compressing with the calling thread.
+    */
+   public ZipArchiveManager()
+   {
+      this(1, 0);
+   }
+
+   /**
+    * Build a manager compressing in parallel.
+    * 
+    * @param threads the number of compressing threads (the number of
+    *    processors if 0 or less, the calling thread only if 1).
+    * @param block_size the size of the blocks compressed in parallel.
+    */
+   public ZipArchiveManager(final int threads, final int block_size)
+   {
+      this.threads = threads;
+      this.blockSize = block_size;
+   }
 
    /**
     * Produces Zip compressed archive.
@@ -122,6 +154,26 @@ public class ZipArchiveManager implements ArchiveManager
       return zip_file;
    }
 
+   /**
+    * Opens a Zip archive written in a single pass.
+    */
+   @Override
+   public ArchiveSession openSession(final File zip_file) throws IOException
+   {
+      // Deflate the entries with worker threads unless a single thread is
+      // requested
+      if (this.threads != 1)
+      {
+         return new ParallelZipArchiveSession(zip_file, this.threads,
+            this.blockSize);
+      }
+
+      // Random access output allows sizes and CRCs to be written back in
+      // the local headers instead of trailing data descriptors
+      return new StreamArchiveSession(zip_file,
+         new ZipArchiveOutputStream(zip_file));
+   }
+
    @Override
    public String getFileExtension()
    {
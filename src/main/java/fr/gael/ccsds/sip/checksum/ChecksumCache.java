@@ -0,0 +1,491 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip.checksum;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent cache of data file checksums, avoiding to hash again files
+ * that did not change since a previous run.
+ * <p>
+ * Entries are keyed by the canonical path of the file, its file key (e.g.
+ * device and inode) and the checksum type, and are only valid as long as
+ * the size and the modification time of the file are unchanged.
+ * <p>
+ * The cache is a memory-mapped file of fixed size records organized as a
+ * set-associative table: each key may only be stored in one of the
+ * {@link #WAYS} records of its bucket, and the least recently used record
+ * of the bucket is evicted when the bucket is full. Each record carries a
+ * check of its content, so that a record partially written when the
+ * process or the system stopped is never returned.
+ * <p>
+ * The cache file is locked exclusively while the cache is opened: the
+ * builder processes sharing a project cannot reset nor write the records
+ * of a cache file used by another one, and rather run without cache.
+ */
+public class ChecksumCache
+{
+   /**
+    * Identification of the cache file format.
+    */
+   private static final int MAGIC = 0x53495043;
+   private static final int VERSION = 2;
+
+   /**
+    * Header layout: magic, version, capacity, clock.
+    */
+   private static final int HEADER_SIZE = 64;
+   private static final int CLOCK_OFFSET = 12;
+
+   /**
+    * Record layout: key hash (2 longs), size, modification time, last use,
+    * value length, check (CRC32 of the other fields but the last use) and
+    * value.
+    */
+   private static final int RECORD_SIZE = 128;
+   private static final int SIZE_OFFSET = 16;
+   private static final int TIME_OFFSET = 24;
+   private static final int USE_OFFSET = 32;
+   private static final int LENGTH_OFFSET = 40;
+   private static final int CHECK_OFFSET = 41;
+   private static final int VALUE_OFFSET = 45;
+   private static final int MAX_VALUE_LENGTH = RECORD_SIZE - VALUE_OFFSET;
+
+   /**
+    * Number of records of a bucket.
+    */
+   private static final int WAYS = 8;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   /**
+    * The cache file.
+    */
+   private final File file;
+
+   private final RandomAccessFile access;
+
+   private final MappedByteBuffer buffer;
+
+   /**
+    * Number of buckets of the table.
+    */
+   private final int buckets;
+
+   /**
+    * Logical clock used to order record uses.
+    */
+   private long clock;
+
+   private long hits = 0;
+   private long misses = 0;
+
+   /**
+    * Opens or creates a cache file. An existing file with another format
+    * or capacity is reset.
+    * 
+    * @param file the cache file.
+    * @param capacity the maximum number of cached checksums.
+    * @throws IOException if the cache file could not be opened, or is
+    *    locked by another process.
+    */
+   public ChecksumCache(final File file, final int capacity)
+         throws IOException
+   {
+      this.file = file;
+
+      // A mapped region cannot exceed 2 GB
+      final int max_buckets = (Integer.MAX_VALUE - HEADER_SIZE) /
+         (WAYS * RECORD_SIZE);
+      this.buckets = Math.min(max_buckets, Math.max(1, capacity / WAYS));
+
+      final long length = HEADER_SIZE + ((long) this.buckets * WAYS *
+         RECORD_SIZE);
+
+      if ((file.getParentFile() != null) && !file.getParentFile().exists())
+      {
+         file.getParentFile().mkdirs();
+      }
+
+      this.access = new RandomAccessFile(file, "rw");
+
+      boolean opened = false;
+      try
+      {
+         // Never reset nor write a file mapped by another process
+         if (!tryLock(this.access.getChannel()))
+         {
+            throw new IOException("Checksum cache file \"" +
+               file.getPath() + "\" is used by another process.");
+         }
+
+         final boolean valid = (this.access.length() == length) &&
+            (this.access.readInt() == MAGIC) &&
+            (this.access.readInt() == VERSION) &&
+            (this.access.readInt() == (this.buckets * WAYS));
+
+         if (!valid)
+         {
+            // Reset the whole file
+            this.access.setLength(0);
+            this.access.setLength(length);
+         }
+
+         this.buffer = this.access.getChannel().map(
+            FileChannel.MapMode.READ_WRITE, 0, length);
+
+         this.initialize(valid);
+         opened = true;
+      }
+      finally
+      {
+         // Closing the file also releases the lock
+         if (!opened)
+         {
+            this.access.close();
+         }
+      }
+   }
+
+   /**
+    * Writes the header of a reset cache file, and reads the clock.
+    */
+   private void initialize(final boolean valid)
+   {
+      if (!valid)
+      {
+         this.buffer.putInt(0, MAGIC);
+         this.buffer.putInt(4, VERSION);
+         this.buffer.putInt(8, this.buckets * WAYS);
+         this.buffer.putLong(CLOCK_OFFSET, 0);
+      }
+
+      this.clock = this.buffer.getLong(CLOCK_OFFSET);
+   }
+
+   /**
+    * Returns the cached checksums of a file.
+    * 
+    * @param path the file.
+    * @param attributes the current attributes of the file.
+    * @param types the requested checksum types.
+    * @return the hexadecimal checksum values in the order of the types, or
+    *    null if one of them is not cached or outdated.
+    * @throws IOException if the canonical path of the file cannot be
+    *    computed.
+    */
+   public synchronized String[] get(final File path,
+         final BasicFileAttributes attributes, final List<String> types)
+         throws IOException
+   {
+      final String[] values = new String[types.size()];
+
+      for (int index = 0; index < values.length; index++)
+      {
+         final long[] key = this.hash(path, attributes, types.get(index));
+         final int record = this.find(key);
+         final long size = attributes.size();
+         final long time = attributes.lastModifiedTime().toMillis();
+
+         if ((record < 0) ||
+             (this.buffer.getLong(record + SIZE_OFFSET) != size) ||
+             (this.buffer.getLong(record + TIME_OFFSET) != time))
+         {
+            this.misses += 1;
+            return null;
+         }
+
+         final int length = this.buffer.get(record + LENGTH_OFFSET);
+         if ((length < 0) || (length > MAX_VALUE_LENGTH))
+         {
+            this.misses += 1;
+            return null;
+         }
+
+         final byte[] value = new byte[length];
+         for (int offset = 0; offset < value.length; offset++)
+         {
+            value[offset] = this.buffer.get(record + VALUE_OFFSET + offset);
+         }
+
+         // Torn record: rewritten when the checksum is computed again
+         if (this.buffer.getInt(record + CHECK_OFFSET) !=
+               check(key, size, time, value))
+         {
+            this.misses += 1;
+            return null;
+         }
+
+         this.buffer.putLong(record + USE_OFFSET, ++this.clock);
+         values[index] = ChecksumFactory.toHexString(value);
+      }
+
+      this.hits += 1;
+      return values;
+   }
+
+   /**
+    * Stores the checksums of a file.
+    * 
+    * @param path the file.
+    * @param attributes the attributes of the file when its content was
+    *    read.
+    * @param types the checksum types.
+    * @param values the hexadecimal checksum values in the order of the
+    *    types.
+    * @throws IOException if the canonical path of the file cannot be
+    *    computed.
+    */
+   public synchronized void put(final File path,
+         final BasicFileAttributes attributes, final List<String> types,
+         final String[] values) throws IOException
+   {
+      for (int index = 0; index < values.length; index++)
+      {
+         if ((values[index] == null) ||
+             ((values[index].length() % 2) != 0) ||
+             ((values[index].length() / 2) > MAX_VALUE_LENGTH))
+         {
+            continue;
+         }
+
+         final long[] key = this.hash(path, attributes, types.get(index));
+
+         int record = this.find(key);
+         if (record < 0)
+         {
+            record = this.evict(key);
+         }
+
+         final String hexadecimal = values[index];
+         final byte[] value = new byte[hexadecimal.length() / 2];
+         for (int offset = 0; offset < value.length; offset++)
+         {
+            value[offset] = (byte) Integer.parseInt(
+               hexadecimal.substring(2 * offset, (2 * offset) + 2), 16);
+         }
+
+         final long size = attributes.size();
+         final long time = attributes.lastModifiedTime().toMillis();
+
+         // The key is cleared first and written last: a record interrupted
+         // in between is not found, and the check rejects a record torn
+         // when written back to the storage device
+         this.buffer.putLong(record, 0);
+         this.buffer.putLong(record + 8, 0);
+
+         final ByteBuffer slot = this.buffer.duplicate();
+         slot.position(record + SIZE_OFFSET);
+         slot.putLong(size);
+         slot.putLong(time);
+         slot.putLong(++this.clock);
+         slot.put((byte) value.length);
+         slot.putInt(check(key, size, time, value));
+         slot.put(value);
+
+         this.buffer.putLong(record, key[0]);
+         this.buffer.putLong(record + 8, key[1]);
+      }
+   }
+
+   /**
+    * Persists the cache and releases the cache file.
+    * 
+    * @throws IOException if the cache could not be written.
+    */
+   public synchronized void close() throws IOException
+   {
+      this.buffer.putLong(CLOCK_OFFSET, this.clock);
+      this.buffer.force();
+      this.access.close();
+   }
+
+   /**
+    * @return the cache file.
+    */
+   public File getFile()
+   {
+      return this.file;
+   }
+
+   /**
+    * @return the number of files whose checksums were found in the cache.
+    */
+   public synchronized long getHits()
+   {
+      return this.hits;
+   }
+
+   /**
+    * @return the number of files whose checksums had to be computed.
+    */
+   public synchronized long getMisses()
+   {
+      return this.misses;
+   }
+
+   /**
+    * Locks a cache file exclusively until it is closed.
+    *
+    * @return false if the file is locked by another process (or another
+    *    cache of this process).
+    */
+   private static boolean tryLock(final FileChannel channel)
+         throws IOException
+   {
+      try
+      {
+         final FileLock lock = channel.tryLock();
+         return lock != null;
+      }
+      catch (final OverlappingFileLockException exception)
+      {
+         return false;
+      }
+   }
+
+   /**
+    * Computes the 128 bits key of a file checksum.
+    */
+   private long[] hash(final File path, final BasicFileAttributes attributes,
+         final String type) throws IOException
+   {
+      final Object file_key = attributes.fileKey();
+      final String key = path.getCanonicalPath() + '\0' +
+         (file_key == null ? "" : file_key.toString()) + '\0' + type;
+
+      final byte[] value;
+      try
+      {
+         value = MessageDigest.getInstance("MD5").digest(key.getBytes(UTF8));
+      }
+      catch (final NoSuchAlgorithmException exception)
+      {
+         throw new IllegalStateException(exception);
+      }
+
+      final ByteBuffer wrapper = ByteBuffer.wrap(value);
+      final long[] hash = new long[] { wrapper.getLong(), wrapper.getLong() };
+
+      // Zero keys denote empty records
+      if ((hash[0] == 0) && (hash[1] == 0))
+      {
+         hash[1] = 1;
+      }
+
+      return hash;
+   }
+
+   /**
+    * @return the check of the content of a record.
+    */
+   private static int check(final long[] key, final long size,
+         final long time, final byte[] value)
+   {
+      final ByteBuffer fields = ByteBuffer.allocate(33 + value.length);
+      fields.putLong(key[0]);
+      fields.putLong(key[1]);
+      fields.putLong(size);
+      fields.putLong(time);
+      fields.put((byte) value.length);
+      fields.put(value);
+
+      final CRC32 crc = new CRC32();
+      crc.update(fields.array());
+      return (int) crc.getValue();
+   }
+
+   /**
+    * @return the offset of the first record of the bucket of a key.
+    */
+   private int bucket(final long[] key)
+   {
+      final int bucket = (int) ((key[0] >>> 1) % this.buckets);
+      return HEADER_SIZE + (bucket * WAYS * RECORD_SIZE);
+   }
+
+   /**
+    * @return the offset of the record of a key, or -1 if not cached.
+    */
+   private int find(final long[] key)
+   {
+      final int first = this.bucket(key);
+
+      for (int way = 0; way < WAYS; way++)
+      {
+         final int record = first + (way * RECORD_SIZE);
+
+         if ((this.buffer.getLong(record) == key[0]) &&
+             (this.buffer.getLong(record + 8) == key[1]))
+         {
+            return record;
+         }
+      }
+
+      return -1;
+   }
+
+   /**
+    * @return the offset of an empty or least recently used record of the
+    *    bucket of a key.
+    */
+   private int evict(final long[] key)
+   {
+      final int first = this.bucket(key);
+
+      int victim = first;
+      long oldest = Long.MAX_VALUE;
+
+      for (int way = 0; way < WAYS; way++)
+      {
+         final int record = first + (way * RECORD_SIZE);
+
+         if ((this.buffer.getLong(record) == 0) &&
+             (this.buffer.getLong(record + 8) == 0))
+         {
+            return record;
+         }
+
+         final long use = this.buffer.getLong(record + USE_OFFSET);
+         if (use < oldest)
+         {
+            oldest = use;
+            victim = record;
+         }
+      }
+
+      return victim;
+   }
+}
@@ -0,0 +1,79 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip.checksum;
+
+import java.security.MessageDigest;
+import java.util.zip.Checksum;
+
+/**
+ * Exposes a 32 bits {@link Checksum} (CRC32, CRC32C...) as a
+ * {@link MessageDigest} so that it can be computed the same way as the
+ * cryptographic digests. The digest value is the checksum in big-endian
+ * order.
+ */
+class ChecksumDigest extends MessageDigest
+{
+   /**
+    * The adapted checksum.
+    */
+   private final Checksum checksum;
+
+   ChecksumDigest(final String algorithm, final Checksum checksum)
+   {
+      super(algorithm);
+      this.checksum = checksum;
+   }
+
+   @Override
+   protected void engineUpdate(final byte input)
+   {
+      this.checksum.update(input);
+   }
+
+   @Override
+   protected void engineUpdate(final byte[] input, final int offset,
+         final int length)
+   {
+      this.checksum.update(input, offset, length);
+   }
+
+   @Override
+   protected int engineGetDigestLength()
+   {
+      return 4;
+   }
+
+   @Override
+   protected byte[] engineDigest()
+   {
+      final long value = this.checksum.getValue();
+      this.checksum.reset();
+      return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16),
+         (byte) (value >>> 8), (byte) value };
+   }
+
+   @Override
+   protected void engineReset()
+   {
+      this.checksum.reset();
+   }
+}
@@ -0,0 +1,128 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip.checksum;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+import fr.gael.ccsds.sip.SipBuilderException;
+
+public class ChecksumFactory
+{
+   /**
+    * Definition of checksum types.
+    */
+   public final static String CHECKSUM_MD5 = "MD5";
+   public final static String CHECKSUM_SHA1 = "SHA-1";
+   public final static String CHECKSUM_SHA256 = "SHA-256";
+   public final static String CHECKSUM_SHA512 = "SHA-512";
+   public final static String CHECKSUM_CRC32 = "CRC32";
+   public final static String CHECKSUM_CRC32C = "CRC32C";
+
+   /**
+    * Digits of the hexadecimal checksum representation.
+    */
+   private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+   /**
+    * Returns the canonical name of a checksum type, as written in the XFDU
+    * manifest.
+    * 
+    * @param type the configured checksum type (case insensitive).
+    * @return the canonical type name.
+    */
+   public static String normalize(final String type)
+   {
+      return type.trim().toUpperCase(Locale.ENGLISH);
+   }
+
+   /**
+    * Creates a digest computing a checksum of the given type.
+    * 
+    * @param type the checksum type (e.g. "MD5", "SHA-256", "CRC32C").
+    * @return a new digest instance.
+    */
+   public static MessageDigest open(final String type)
+   {
+      final String name = normalize(type);
+
+      if (CHECKSUM_CRC32.equals(name))
+      {
+         return new ChecksumDigest(name, new CRC32());
+      }
+      if (CHECKSUM_CRC32C.equals(name))
+      {
+         return new ChecksumDigest(name, new Crc32c());
+      }
+
+      try
+      {
+         return MessageDigest.getInstance(name);
+      }
+      catch (final NoSuchAlgorithmException exception)
+      {
+         throw new SipBuilderException("Unknown checksum type \"" + type +
+            "\".", exception);
+      }
+   }
+
+   /**
+    * Creates a digest computing all the checksums of the given types from
+    * the same input bytes.
+    * 
+    * @param types the checksum types.
+    * @return a new digest instance.
+    */
+   public static MultiDigest open(final List<String> types)
+   {
+      final MessageDigest[] digests = new MessageDigest[types.size()];
+
+      for (int index = 0; index < digests.length; index++)
+      {
+         digests[index] = open(types.get(index));
+      }
+
+      return new MultiDigest(digests);
+   }
+
+   /**
+    * Formats a digest value as a lower case hexadecimal string.
+    * 
+    * @param bytes the digest value.
+    * @return the hexadecimal representation of the value.
+    */
+   public static String toHexString(final byte[] bytes)
+   {
+      final char[] chars = new char[bytes.length * 2];
+
+      for (int index = 0; index < bytes.length; index++)
+      {
+         chars[index * 2] = HEX_DIGITS[(bytes[index] >> 4) & 0x0F];
+         chars[(index * 2) + 1] = HEX_DIGITS[bytes[index] & 0x0F];
+      }
+
+      return new String(chars);
+   }
+}
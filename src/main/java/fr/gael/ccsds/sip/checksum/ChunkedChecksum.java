@@ -0,0 +1,491 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip.checksum;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Computes the checksums of a large file by hashing fixed-size chunks of
+ * the file in parallel, each chunk being read from a memory-mapped region.
+ * <p>
+ * The CRC32 and CRC32C checksums of the chunks are merged into the classic
+ * whole-file value. Other checksum types cannot be merged: their chunked
+ * variant is a tree hash, named after the type with the {@link #TREE_SUFFIX}
+ * suffix and the chunk size (e.g. "SHA-256-TREE-64M"). The leaves are the
+ * digests of a zero byte followed by the chunk content, the nodes are the
+ * digests of a one byte followed by the two child digests, and an unpaired
+ * node is promoted to the upper level unchanged. A tree hash therefore
+ * depends on the chunk size, which is part of its type so that the value
+ * can be recomputed from the manifest, and is never taken for one computed
+ * with another chunk size.
+ * <p>
+ * The chunks are hashed as soon as the instance is built, so that the file
+ * can be copied meanwhile. {@link #getValues()} waits for the result.
+ */
+public class ChunkedChecksum
+{
+   /**
+    * Suffix of the tree hash checksum types.
+    */
+   public final static String TREE_SUFFIX = "-TREE";
+
+   /**
+    * Default size of the hashed chunks (64 MB).
+    */
+   public final static int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+   /**
+    * Reversed polynomials of the mergeable CRC types.
+    */
+   private static final long CRC32_POLYNOMIAL = 0xEDB88320L;
+   private static final long CRC32C_POLYNOMIAL = 0x82F63B78L;
+
+   /**
+    * Worker threads shared by all the instances (one per processor).
+    */
+   private static ExecutorService executor = null;
+
+   /**
+    * The configured (classic) checksum types.
+    */
+   private final List<String> types;
+
+   /**
+    * The hashed file.
+    */
+   private final RandomAccessFile access;
+
+   /**
+    * Size of the hashed file.
+    */
+   private final long size;
+
+   /**
+    * Size of the chunks.
+    */
+   private final int chunkSize;
+
+   /**
+    * Tasks hashing the chunks, returning one digest value per type.
+    */
+   private final List<Future<byte[][]>> chunks;
+
+   /**
+    * Starts hashing a file by chunks.
+    * 
+    * @param file the file to be hashed.
+    * @param types the classic checksum types, as configured.
+    * @param chunk_size the size of the chunks.
+    * @throws IOException if the file cannot be opened.
+    */
+   public ChunkedChecksum(final File file, final List<String> types,
+         final int chunk_size) throws IOException
+   {
+      if (chunk_size <= 0)
+      {
+         throw new IllegalArgumentException("Invalid chunk size: " +
+            chunk_size);
+      }
+
+      this.types = types;
+      this.chunkSize = chunk_size;
+      this.access = new RandomAccessFile(file, "r");
+      this.size = this.access.length();
+      this.chunks = new ArrayList<Future<byte[][]>>();
+
+      final FileChannel channel = this.access.getChannel();
+      long position = 0;
+
+      do
+      {
+         final long offset = position;
+         final long length = Math.min(chunk_size, this.size - position);
+
+         this.chunks.add(getExecutor().submit(new Callable<byte[][]>()
+         {
+            @Override
+            public byte[][] call() throws IOException
+            {
+               return hashChunk(channel, offset, length);
+            }
+         }));
+
+         position += length;
+      }
+      while (position < this.size);
+   }
+
+   /**
+    * Returns the checksum types computed by chunks for the given classic
+    * types: the CRC types are unchanged, the other ones are replaced by
+    * their tree hash variant for the given chunk size.
+    * 
+    * @param types the classic checksum types.
+    * @param chunk_size the size of the chunks.
+    * @return the chunked checksum types, in the same order.
+    */
+   public static List<String> getTypes(final List<String> types,
+         final int chunk_size)
+   {
+      final List<String> chunked_types = new ArrayList<String>(types.size());
+
+      for (final String type : types)
+      {
+         chunked_types.add(isMergeable(type) ? type :
+            type + TREE_SUFFIX + "-" + formatChunkSize(chunk_size));
+      }
+
+      return chunked_types;
+   }
+
+   /**
+    * @return a chunk size in bytes, with a "K" or "M" unit when it is a
+    *    multiple of it (e.g. "64M").
+    */
+   static String formatChunkSize(final int chunk_size)
+   {
+      if ((chunk_size % (1024 * 1024)) == 0)
+      {
+         return (chunk_size / (1024 * 1024)) + "M";
+      }
+      if ((chunk_size % 1024) == 0)
+      {
+         return (chunk_size / 1024) + "K";
+      }
+      return String.valueOf(chunk_size);
+   }
+
+   /**
+    * @param type a classic checksum type.
+    * @return true if the checksums of consecutive chunks of this type can be
+    *    merged into the whole-file checksum.
+    */
+   public static boolean isMergeable(final String type)
+   {
+      final String name = ChecksumFactory.normalize(type);
+      return ChecksumFactory.CHECKSUM_CRC32.equals(name) ||
+             ChecksumFactory.CHECKSUM_CRC32C.equals(name);
+   }
+
+   /**
+    * Waits for all the chunks to be hashed and returns the hexadecimal
+    * checksum values, in the order of the types returned by
+    * {@link #getTypes(List, int)}. The file is closed.
+    * 
+    * @return the hexadecimal checksum values.
+    * @throws IOException if the file could not be read.
+    */
+   public String[] getValues() throws IOException
+   {
+      try
+      {
+         // Collect the chunk digests
+         final List<byte[][]> values =
+            new ArrayList<byte[][]>(this.chunks.size());
+
+         for (final Future<byte[][]> chunk : this.chunks)
+         {
+            values.add(await(chunk));
+         }
+
+         final String[] checksums = new String[this.types.size()];
+
+         for (int index = 0; index < checksums.length; index++)
+         {
+            final String type = this.types.get(index);
+
+            if (isMergeable(type))
+            {
+               checksums[index] = ChecksumFactory.toHexString(
+                  this.mergeCrc(type, values, index));
+            }
+            else
+            {
+               checksums[index] = ChecksumFactory.toHexString(
+                  this.mergeTree(type, values, index));
+            }
+         }
+
+         return checksums;
+      }
+      finally
+      {
+         this.close();
+      }
+   }
+
+   /**
+    * Cancels the pending chunks (if any) and closes the file.
+    * 
+    * @throws IOException if the file cannot be closed.
+    */
+   public void close() throws IOException
+   {
+      for (final Future<byte[][]> chunk : this.chunks)
+      {
+         chunk.cancel(false);
+      }
+      this.access.close();
+   }
+
+   /**
+    * Hashes a region of the file with every configured type.
+    */
+   private byte[][] hashChunk(final FileChannel channel, final long offset,
+         final long length) throws IOException
+   {
+      final MappedByteBuffer region =
+         channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+
+      final byte[][] values = new byte[this.types.size()][];
+
+      for (int index = 0; index < values.length; index++)
+      {
+         final String type = this.types.get(index);
+         final MessageDigest digest = ChecksumFactory.open(type);
+
+         // Tree leaves are prefixed to be distinguished from the nodes
+         if (!isMergeable(type))
+         {
+            digest.update((byte) 0);
+         }
+
+         region.rewind();
+         digest.update(region);
+         values[index] = digest.digest();
+      }
+
+      return values;
+   }
+
+   /**
+    * Merges the CRC of consecutive chunks into the whole-file CRC.
+    */
+   private byte[] mergeCrc(final String type, final List<byte[][]> values,
+         final int index)
+   {
+      final long polynomial =
+         ChecksumFactory.CHECKSUM_CRC32C.equals(
+            ChecksumFactory.normalize(type)) ?
+               CRC32C_POLYNOMIAL : CRC32_POLYNOMIAL;
+
+      long crc = toLong(values.get(0)[index]);
+      long position = Math.min(this.chunkSize, this.size);
+
+      for (int chunk = 1; chunk < values.size(); chunk++)
+      {
+         final long length = Math.min(this.chunkSize, this.size - position);
+         crc = combineCrc(crc, toLong(values.get(chunk)[index]), length,
+            polynomial);
+         position += length;
+      }
+
+      return new byte[] { (byte) (crc >>> 24), (byte) (crc >>> 16),
+         (byte) (crc >>> 8), (byte) crc };
+   }
+
+   /**
+    * Reduces the chunk digests into the root digest of the hash tree.
+    */
+   private byte[] mergeTree(final String type, final List<byte[][]> values,
+         final int index)
+   {
+      List<byte[]> level = new ArrayList<byte[]>(values.size());
+
+      for (final byte[][] value : values)
+      {
+         level.add(value[index]);
+      }
+
+      final MessageDigest digest = ChecksumFactory.open(type);
+
+      while (level.size() > 1)
+      {
+         final List<byte[]> upper = new ArrayList<byte[]>(
+            (level.size() + 1) / 2);
+
+         for (int node = 0; node < level.size(); node += 2)
+         {
+            if (node + 1 == level.size())
+            {
+               upper.add(level.get(node));
+               continue;
+            }
+
+            digest.update((byte) 1);
+            digest.update(level.get(node));
+            digest.update(level.get(node + 1));
+            upper.add(digest.digest());
+         }
+
+         level = upper;
+      }
+
+      return level.get(0);
+   }
+
+   /**
+    * Combines the CRC of two consecutive blocks, given the length of the
+    * second one, in the same way as zlib crc32_combine().
+    */
+   static long combineCrc(long crc1, final long crc2, long length2,
+         final long polynomial)
+   {
+      if (length2 <= 0)
+      {
+         return crc1;
+      }
+
+      final long[] even = new long[32];
+      final long[] odd = new long[32];
+
+      // Operator for one zero bit
+      odd[0] = polynomial;
+      long row = 1;
+      for (int n = 1; n < 32; n++)
+      {
+         odd[n] = row;
+         row <<= 1;
+      }
+
+      // Operators for two then four zero bits
+      squareMatrix(even, odd);
+      squareMatrix(odd, even);
+
+      // Apply length2 zero bytes to crc1
+      do
+      {
+         squareMatrix(even, odd);
+         if ((length2 & 1) != 0)
+         {
+            crc1 = multiplyMatrix(even, crc1);
+         }
+         length2 >>= 1;
+
+         if (length2 == 0)
+         {
+            break;
+         }
+
+         squareMatrix(odd, even);
+         if ((length2 & 1) != 0)
+         {
+            crc1 = multiplyMatrix(odd, crc1);
+         }
+         length2 >>= 1;
+      }
+      while (length2 != 0);
+
+      return (crc1 ^ crc2) & 0xFFFFFFFFL;
+   }
+
+   private static long multiplyMatrix(final long[] matrix, long vector)
+   {
+      long sum = 0;
+      int index = 0;
+
+      while (vector != 0)
+      {
+         if ((vector & 1) != 0)
+         {
+            sum ^= matrix[index];
+         }
+         vector >>>= 1;
+         index++;
+      }
+
+      return sum;
+   }
+
+   private static void squareMatrix(final long[] square, final long[] matrix)
+   {
+      for (int n = 0; n < 32; n++)
+      {
+         square[n] = multiplyMatrix(matrix, matrix[n]);
+      }
+   }
+
+   private static long toLong(final byte[] value)
+   {
+      return ((value[0] & 0xFFL) << 24) | ((value[1] & 0xFFL) << 16) |
+             ((value[2] & 0xFFL) << 8) | (value[3] & 0xFFL);
+   }
+
+   private static byte[][] await(final Future<byte[][]> chunk)
+         throws IOException
+   {
+      try
+      {
+         return chunk.get();
+      }
+      catch (final InterruptedException exception)
+      {
+         Thread.currentThread().interrupt();
+         throw new IOException("Checksum computation interrupted.",
+            exception);
+      }
+      catch (final ExecutionException exception)
+      {
+         if (exception.getCause() instanceof IOException)
+         {
+            throw (IOException) exception.getCause();
+         }
+         throw new IOException("Checksum computation failed.",
+            exception.getCause());
+      }
+   }
+
+   /**
+    * @return the worker threads shared by all the instances.
+    */
+   private static synchronized ExecutorService getExecutor()
+   {
+      if (executor == null)
+      {
+         executor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+         {
+            @Override
+            public Thread newThread(final Runnable runnable)
+            {
+               final Thread thread = new Thread(runnable, "checksum-chunk");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }
+      return executor;
+   }
+}
@@ -0,0 +1,88 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip.checksum;
+
+import java.util.zip.Checksum;
+
+/**
+ * A CRC-32C (Castagnoli) checksum, as used by iSCSI, SCTP or ext4 and
+ * requested by several archives for fixity information.
+ */
+public class Crc32c implements Checksum
+{
+   /**
+    * Reversed Castagnoli polynomial.
+    */
+   private static final int POLYNOMIAL = 0x82F63B78;
+
+   /**
+    * Byte-wise lookup table.
+    */
+   private static final int[] TABLE = new int[256];
+
+   static
+   {
+      for (int index = 0; index < 256; index++)
+      {
+         int crc = index;
+         for (int bit = 0; bit < 8; bit++)
+         {
+            crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+         }
+         TABLE[index] = crc;
+      }
+   }
+
+   /**
+    * Current (inverted) checksum register.
+    */
+   private int crc = 0xFFFFFFFF;
+
+   @Override
+   public void update(final int b)
+   {
+      this.crc = (this.crc >>> 8) ^ TABLE[(this.crc ^ b) & 0xFF];
+   }
+
+   @Override
+   public void update(final byte[] b, final int off, final int len)
+   {
+      int value = this.crc;
+      for (int index = off; index < off + len; index++)
+      {
+         value = (value >>> 8) ^ TABLE[(value ^ b[index]) & 0xFF];
+      }
+      this.crc = value;
+   }
+
+   @Override
+   public long getValue()
+   {
+      return (~this.crc) & 0xFFFFFFFFL;
+   }
+
+   @Override
+   public void reset()
+   {
+      this.crc = 0xFFFFFFFF;
+   }
+}
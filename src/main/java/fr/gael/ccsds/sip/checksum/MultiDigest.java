@@ -0,0 +1,310 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip.checksum;
+
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A digest feeding several digests from the same input bytes, so that any
+ * number of checksums can be computed in a single read of the data.
+ * <p>
+ * When more than one digest is configured, the input is accumulated in
+ * blocks that are hashed by worker threads (one task per digest) while the
+ * next block is being filled. The value returned by {@link #digest()} is
+ * the concatenation of the digest values: use {@link #digestAll()} to get
+ * them separately.
+ */
+public class MultiDigest extends MessageDigest
+{
+   /**
+    * Size of the blocks handed to the worker threads.
+    */
+   private static final int BLOCK_SIZE = 1024 * 1024;
+
+   /**
+    * Worker threads shared by all the instances.
+    */
+   private static ExecutorService executor = null;
+
+   /**
+    * The fed digests.
+    */
+   private final MessageDigest[] digests;
+
+   /**
+    * The block being filled from the input.
+    */
+   private byte[] filling = null;
+
+   /**
+    * Number of bytes in the filled block.
+    */
+   private int filled = 0;
+
+   /**
+    * The block being hashed by the worker threads.
+    */
+   private byte[] hashing = null;
+
+   /**
+    * Tasks hashing the current block.
+    */
+   private final Future<?>[] running;
+
+   /**
+    * Build a digest feeding the given digests.
+    * 
+    * @param digests the digests to be fed.
+    */
+   MultiDigest(final MessageDigest[] digests)
+   {
+      super("MULTI");
+      this.digests = digests;
+      this.running = new Future<?>[digests.length];
+   }
+
+   /**
+    * @return the types of the fed digests.
+    */
+   public String[] getTypes()
+   {
+      final String[] types = new String[this.digests.length];
+
+      for (int index = 0; index < types.length; index++)
+      {
+         types[index] = this.digests[index].getAlgorithm();
+      }
+
+      return types;
+   }
+
+   /**
+    * Completes the computation of every digest and returns their
+    * hexadecimal values, in the order of the types. The digests are reset.
+    * 
+    * @return the hexadecimal digest values.
+    */
+   public String[] digestAll()
+   {
+      this.flush();
+
+      final String[] values = new String[this.digests.length];
+
+      for (int index = 0; index < values.length; index++)
+      {
+         values[index] = ChecksumFactory.toHexString(
+            this.digests[index].digest());
+      }
+
+      return values;
+   }
+
+   @Override
+   protected void engineUpdate(final byte input)
+   {
+      this.engineUpdate(new byte[] { input }, 0, 1);
+   }
+
+   @Override
+   protected void engineUpdate(final byte[] input, int offset, int length)
+   {
+      // A single digest is fed directly
+      if (this.digests.length == 1)
+      {
+         this.digests[0].update(input, offset, length);
+         return;
+      }
+
+      if (this.filling == null)
+      {
+         this.filling = new byte[BLOCK_SIZE];
+         this.hashing = new byte[BLOCK_SIZE];
+      }
+
+      while (length > 0)
+      {
+         final int count = Math.min(length, BLOCK_SIZE - this.filled);
+         System.arraycopy(input, offset, this.filling, this.filled, count);
+         this.filled += count;
+         offset += count;
+         length -= count;
+
+         if (this.filled == BLOCK_SIZE)
+         {
+            this.dispatch();
+         }
+      }
+   }
+
+   @Override
+   protected int engineGetDigestLength()
+   {
+      int length = 0;
+
+      for (final MessageDigest digest : this.digests)
+      {
+         length += digest.getDigestLength();
+      }
+
+      return length;
+   }
+
+   @Override
+   protected byte[] engineDigest()
+   {
+      this.flush();
+
+      final byte[][] values = new byte[this.digests.length][];
+      int length = 0;
+
+      for (int index = 0; index < values.length; index++)
+      {
+         values[index] = this.digests[index].digest();
+         length += values[index].length;
+      }
+
+      final byte[] value = new byte[length];
+      int offset = 0;
+
+      for (final byte[] current : values)
+      {
+         System.arraycopy(current, 0, value, offset, current.length);
+         offset += current.length;
+      }
+
+      return value;
+   }
+
+   @Override
+   protected void engineReset()
+   {
+      this.await();
+      this.filled = 0;
+
+      for (final MessageDigest digest : this.digests)
+      {
+         digest.reset();
+      }
+   }
+
+   /**
+    * Hands the filled block to the worker threads, once the previous
+    * block has been hashed.
+    */
+   private void dispatch()
+   {
+      this.await();
+
+      // Swap blocks: the filled one is hashed, the hashed one is refilled
+      final byte[] block = this.filling;
+      final int length = this.filled;
+      this.filling = this.hashing;
+      this.hashing = block;
+      this.filled = 0;
+
+      for (int index = 0; index < this.digests.length; index++)
+      {
+         final MessageDigest digest = this.digests[index];
+
+         this.running[index] = getExecutor().submit(new Runnable()
+         {
+            @Override
+            public void run()
+            {
+               digest.update(block, 0, length);
+            }
+         });
+      }
+   }
+
+   /**
+    * Hashes the remaining input and waits for the worker threads.
+    */
+   private void flush()
+   {
+      if (this.filled > 0)
+      {
+         this.dispatch();
+      }
+      this.await();
+   }
+
+   /**
+    * Waits for the worker threads to complete the current block.
+    */
+   private void await()
+   {
+      for (int index = 0; index < this.running.length; index++)
+      {
+         if (this.running[index] == null)
+         {
+            continue;
+         }
+
+         try
+         {
+            this.running[index].get();
+         }
+         catch (final InterruptedException exception)
+         {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Checksum computation " +
+               "interrupted.", exception);
+         }
+         catch (final ExecutionException exception)
+         {
+            throw new IllegalStateException("Checksum computation " +
+               "failed.", exception.getCause());
+         }
+         finally
+         {
+            this.running[index] = null;
+         }
+      }
+   }
+
+   /**
+    * @return the worker threads shared by all the instances.
+    */
+   private static synchronized ExecutorService getExecutor()
+   {
+      if (executor == null)
+      {
+         executor = Executors.newCachedThreadPool(new ThreadFactory()
+         {
+            @Override
+            public Thread newThread(final Runnable runnable)
+            {
+               final Thread thread = new Thread(runnable, "checksum");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }
+      return executor;
+   }
+}
@@ -105,6 +105,12 @@ public abstract class AbstractScanner implements Scanner
     */
    protected boolean isCaseSensitive = true;
 
+   /** The compiled include patterns (null until needed). */
+   private MatchPatterns includesPatterns;
+
+   /** The compiled exclude patterns (null until needed). */
+   private MatchPatterns excludesPatterns;
+
    /**
     * Sets whether or not the file system should be regarded as case sensitive.
     * 
@@ -114,6 +120,8 @@ public abstract class AbstractScanner implements Scanner
    public void setCaseSensitive(final boolean isCaseSensitive)
    {
       this.isCaseSensitive = isCaseSensitive;
+      this.includesPatterns = null;
+      this.excludesPatterns = null;
    }
 
    /**
@@ -254,6 +262,7 @@ public abstract class AbstractScanner implements Scanner
             this.includes[i] = this.normalizePattern(includes[i]);
          }
       }
+      this.includesPatterns = null;
    }
 
    /**
@@ -282,6 +291,7 @@ public abstract class AbstractScanner implements Scanner
             this.excludes[i] = this.normalizePattern(excludes[i]);
          }
       }
+      this.excludesPatterns = null;
    }
 
    /**
@@ -321,14 +331,7 @@ public abstract class AbstractScanner implements Scanner
     */
    protected boolean isIncluded(final String name)
    {
-      for (int i = 0; i < this.includes.length; i++)
-      {
-         if (matchPath(this.includes[i], name, this.isCaseSensitive))
-         {
-            return true;
-         }
-      }
-      return false;
+      return this.getIncludesPatterns().matches(name);
    }
 
    /**
@@ -341,14 +344,7 @@ public abstract class AbstractScanner implements Scanner
     */
    protected boolean couldHoldIncluded(final String name)
    {
-      for (int i = 0; i < this.includes.length; i++)
-      {
-         if (matchPatternStart(this.includes[i], name, this.isCaseSensitive))
-         {
-            return true;
-         }
-      }
-      return false;
+      return this.getIncludesPatterns().matchesPatternStart(name);
    }
 
    /**
@@ -360,14 +356,39 @@ public abstract class AbstractScanner implements Scanner
     */
    protected boolean isExcluded(final String name)
    {
-      for (int i = 0; i < this.excludes.length; i++)
+      return this.getExcludesPatterns().matches(name);
+   }
+
+   /**
+    * Returns the include patterns, compiled on first use.
+    * 
+    * @return the compiled include patterns.
+    */
+   private MatchPatterns getIncludesPatterns()
+   {
+      MatchPatterns patterns = this.includesPatterns;
+      if (patterns == null)
       {
-         if (matchPath(this.excludes[i], name, this.isCaseSensitive))
-         {
-            return true;
-         }
+         patterns = MatchPatterns.from(this.includes, this.isCaseSensitive);
+         this.includesPatterns = patterns;
       }
-      return false;
+      return patterns;
+   }
+
+   /**
+    * Returns the exclude patterns, compiled on first use.
+    * 
+    * @return the compiled exclude patterns.
+    */
+   private MatchPatterns getExcludesPatterns()
+   {
+      MatchPatterns patterns = this.excludesPatterns;
+      if (patterns == null)
+      {
+         patterns = MatchPatterns.from(this.excludes, this.isCaseSensitive);
+         this.excludesPatterns = patterns;
+      }
+      return patterns;
    }
 
    /**
@@ -388,6 +409,7 @@ public abstract class AbstractScanner implements Scanner
          newExcludes[i + excludesLength] = DEFAULTEXCLUDES[i];
       }
       this.excludes = newExcludes;
+      this.excludesPatterns = null;
    }
 
    protected void setupDefaultFilters()
@@ -402,5 +424,11 @@ public abstract class AbstractScanner implements Scanner
       {
          this.excludes = new String[0];
       }
+
+      // Compile the patterns once for the whole scan
+      this.includesPatterns =
+         MatchPatterns.from(this.includes, this.isCaseSensitive);
+      this.excludesPatterns =
+         MatchPatterns.from(this.excludes, this.isCaseSensitive);
    }
 }
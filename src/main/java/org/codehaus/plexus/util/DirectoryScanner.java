@@ -17,7 +17,25 @@ package org.codehaus.plexus.util;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
 
 /**
  * Class for scanning a directory for files/directories which match certain
@@ -153,6 +171,29 @@ public class DirectoryScanner extends AbstractScanner
     */
    protected Vector dirsDeselected;
 
+   /**
+    * The attributes of the included files and directories, as read during
+    * the scan.
+    */
+   protected Map<String, BasicFileAttributes> includedAttributes;
+
+   /** Whether or not the base directory itself was included. */
+   private boolean baseIncluded;
+
+   /** The attributes of the base directory, read when preparing the scan. */
+   private BasicFileAttributes baseAttributes;
+
+   /**
+    * The consumer receiving the included entries instead of the result
+    * collections, if any.
+    */
+   private ScanConsumer consumer = null;
+
+   /**
+    * The snapshot of the directories listed by previous scans, if any.
+    */
+   private DirectorySnapshot snapshot = null;
+
    /** Whether or not our results were built by a slow scan. */
    protected boolean haveSlowResults = false;
 
@@ -164,7 +205,10 @@ public class DirectoryScanner extends AbstractScanner
    private boolean followSymlinks = true;
 
    /** Whether or not everything tested so far has been included. */
-   protected boolean everythingIncluded = true;
+   protected volatile boolean everythingIncluded = true;
+
+   /** Number of threads scanning the directories (1 for a serial scan). */
+   private int parallelism = 1;
 
    /**
     * Sole constructor.
@@ -219,6 +263,81 @@ public class DirectoryScanner extends AbstractScanner
       this.followSymlinks = followSymlinks;
    }
 
+   /**
+    * Sets the number of threads scanning the directories in parallel during
+    * a fast scan. The results are the same, and in the same order, as with
+    * a serial scan.
+    * 
+    * @param parallelism the number of threads (1 for a serial scan).
+    */
+   public void setParallelism(final int parallelism)
+   {
+      this.parallelism = Math.max(1, parallelism);
+   }
+
+   /**
+    * Returns the number of threads scanning the directories.
+    * 
+    * @return the number of threads (1 for a serial scan).
+    */
+   public int getParallelism()
+   {
+      return this.parallelism;
+   }
+
+   /**
+    * Sets the consumer receiving the included files and directories. When a
+    * consumer is set, the scan streams the included entries to it and does
+    * not record any result: the memory used by a scan no longer grows with
+    * the number of scanned files (parallel scans only buffer the entries of
+    * a bounded number of directories listed ahead, until they can be
+    * delivered in order), and the
+    * <code>get*Files()</code> and <code>get*Directories()</code> methods
+    * return empty lists.
+    * 
+    * @param consumer the consumer, or <code>null</code> to record the scan
+    *           results.
+    */
+   public void setConsumer(final ScanConsumer consumer)
+   {
+      this.consumer = consumer;
+   }
+
+   /**
+    * Sets the snapshot of the directories listed by previous scans. The
+    * directories left unchanged since their snapshot (same modification
+    * time) are not listed again, and the snapshot is updated with the
+    * directories listed by this scanner.
+    * 
+    * @param snapshot the snapshot, or <code>null</code> to list every
+    *           scanned directory.
+    */
+   public void setSnapshot(final DirectorySnapshot snapshot)
+   {
+      this.snapshot = snapshot;
+   }
+
+   /**
+    * Returns the snapshot of the directories listed by previous scans.
+    * 
+    * @return the snapshot, or <code>null</code> if none.
+    */
+   public DirectorySnapshot getSnapshot()
+   {
+      return this.snapshot;
+   }
+
+   /**
+    * Returns the consumer receiving the included files and directories.
+    * 
+    * @return the consumer, or <code>null</code> if the scan results are
+    *         recorded.
+    */
+   public ScanConsumer getConsumer()
+   {
+      return this.consumer;
+   }
+
    /**
     * Returns whether or not the scanner has included all the files or
     * directories it has come across so far.
@@ -241,17 +360,160 @@ public class DirectoryScanner extends AbstractScanner
     *               directory).
     */
    public void scan() throws IllegalStateException
+   {
+      this.prepareScan();
+
+      if (this.parallelism > 1)
+      {
+         this.scanParallel();
+      }
+      else
+      {
+         this.walked("", this.baseAttributes);
+         this.scandir(this.basedir, "", true);
+      }
+   }
+
+   /**
+    * Scans a base directory for several scanners at once: each directory is
+    * listed once, and its entries are matched against the includes,
+    * excludes and selectors of every scanner that entered it. The results
+    * of each scanner are the same, and in the same order, as with its own
+    * {@link #scan()}.
+    * <p>
+    * The scanners must have the same base directory and symbolic links
+    * policy, otherwise they are scanned one after the other. The walk uses
+    * the highest parallelism of the scanners.
+    * 
+    * @param scanners the scanners.
+    * @exception IllegalStateException if the base directory was set
+    *               incorrectly.
+    */
+   public static void scan(final DirectoryScanner[] scanners)
+         throws IllegalStateException
+   {
+      if (scanners.length == 0)
+      {
+         return;
+      }
+
+      int parallelism = 1;
+      for (int i = 0; i < scanners.length; i++)
+      {
+         if ((scanners[i].followSymlinks != scanners[0].followSymlinks)
+               || (scanners[i].basedir == null)
+               || !scanners[i].basedir.getAbsoluteFile().equals(
+                     scanners[0].basedir.getAbsoluteFile()))
+         {
+            for (int j = 0; j < scanners.length; j++)
+            {
+               scanners[j].scan();
+            }
+            return;
+         }
+         parallelism = Math.max(parallelism, scanners[i].parallelism);
+      }
+
+      final List<DirectoryScanner> rooted = new ArrayList<DirectoryScanner>();
+      for (int i = 0; i < scanners.length; i++)
+      {
+         scanners[i].prepareScan();
+         rooted.add(scanners[i]);
+         if (scanners[i].baseIncluded)
+         {
+            scanners[i].enterNested("", scanners[i].basedir, rooted);
+         }
+      }
+
+      final String[] vpaths = new String[rooted.size()];
+      Arrays.fill(vpaths, "");
+
+      for (final DirectoryScanner scanner : rooted)
+      {
+         scanner.walked("", scanner.baseAttributes);
+      }
+
+      final ScanWalk walk = new ScanWalk(parallelism);
+      try
+      {
+         new ScanTask(rooted.toArray(new DirectoryScanner[rooted.size()]),
+               vpaths, scanners[0].basedir, walk).addFound();
+      }
+      finally
+      {
+         walk.shutdown();
+      }
+   }
+
+   /**
+    * Returns the scanners to be run on a directory included by this scanner,
+    * during the same walk (see {@link #scan(DirectoryScanner[])}). Their base
+    * directory is set to the included directory by the walk, and their
+    * results are the same as with their own {@link #scan()}.
+    * 
+    * @param name The path of the included directory relative to the base
+    *           directory of this scanner.
+    * @param dir the included directory.
+    * @return the nested scanners, or null if none.
+    */
+   protected DirectoryScanner[] getNestedScanners(final String name,
+         final File dir)
+   {
+      return null;
+   }
+
+   /**
+    * Prepares the scanners nested in an included directory and adds them to
+    * the scanners entering this directory.
+    */
+   private void enterNested(final String name, final File dir,
+         final List<DirectoryScanner> entering)
+   {
+      final DirectoryScanner[] nested = this.getNestedScanners(name, dir);
+      if (nested == null)
+      {
+         return;
+      }
+
+      for (int i = 0; i < nested.length; i++)
+      {
+         nested[i].setBasedir(dir);
+         nested[i].followSymlinks = this.followSymlinks;
+         nested[i].prepareScan();
+         entering.add(nested[i]);
+
+         // Nested scanners may themselves include their base directory
+         if (nested[i].baseIncluded)
+         {
+            nested[i].enterNested("", dir, entering);
+         }
+      }
+   }
+
+   /**
+    * Checks the base directory, resets the results and classifies the base
+    * directory itself.
+    * 
+    * @exception IllegalStateException if the base directory was set
+    *               incorrectly.
+    */
+   private void prepareScan() throws IllegalStateException
    {
       if (this.basedir == null)
       {
          throw new IllegalStateException("No basedir set");
       }
-      if (!this.basedir.exists())
+      try
+      {
+         this.baseAttributes = Files.readAttributes(this.basedir.toPath(),
+               BasicFileAttributes.class);
+      }
+      catch (final IOException ioe)
       {
          throw new IllegalStateException("basedir " + this.basedir
                + " does not exist");
       }
-      if (!this.basedir.isDirectory())
+      if (!this.baseAttributes.isDirectory())
       {
          throw new IllegalStateException("basedir " + this.basedir
                + " is not a directory");
@@ -267,6 +529,8 @@ public class DirectoryScanner extends AbstractScanner
       this.dirsNotIncluded = new Vector();
       this.dirsExcluded = new Vector();
       this.dirsDeselected = new Vector();
+      this.includedAttributes = new HashMap<String, BasicFileAttributes>();
+      this.baseIncluded = false;
 
       if (this.isIncluded(""))
       {
@@ -274,23 +538,23 @@ public class DirectoryScanner extends AbstractScanner
          {
             if (this.isSelected("", this.basedir))
             {
-               this.dirsIncluded.addElement("");
+               this.baseIncluded = true;
+               this.record(this.dirsIncluded, "", null);
             }
             else
             {
-               this.dirsDeselected.addElement("");
+               this.record(this.dirsDeselected, "", null);
             }
          }
          else
          {
-            this.dirsExcluded.addElement("");
+            this.record(this.dirsExcluded, "", null);
          }
       }
       else
       {
-         this.dirsNotIncluded.addElement("");
+         this.record(this.dirsNotIncluded, "", null);
       }
-      this.scandir(this.basedir, "", true);
    }
 
    /**
@@ -346,7 +610,6 @@ public class DirectoryScanner extends AbstractScanner
     *           problems with an absolute path when using dir). Must not be
     *           <code>null</code>.
     * @param fast Whether or not this call is part of a fast scan.
-    * @throws IOException
     * @see #filesIncluded
     * @see #filesNotIncluded
     * @see #filesExcluded
@@ -357,158 +620,558 @@ public class DirectoryScanner extends AbstractScanner
     */
    protected void scandir(final File dir, final String vpath, final boolean fast)
    {
-      String[] newfiles = dir.list();
+      for (final Entry entry : this.list(dir))
+      {
+         final String name = vpath + entry.name;
+         final Vector collection = this.collectionOf(entry, name);
+
+         this.record(collection, name, entry.attributes);
 
-      if (newfiles == null)
+         if (this.isScanned(entry, name, collection, fast))
+         {
+            this.walked(name, entry.attributes);
+            this.scandir(entry.file, name + "/", fast);
+         }
+      }
+   }
+
+   /**
+    * Lists the entries of a directory, sorted by name so that the scan
+    * results are reproducible. The entries are taken from the snapshot (if
+    * any) when the directory did not change since, otherwise they are read
+    * from the file system.
+    * 
+    * @param dir The directory to list.
+    * @return the entries of the directory.
+    */
+   protected List<Entry> list(final File dir)
+   {
+      if (this.snapshot != null)
       {
-         /*
-          * two reasons are mentioned in the API docs for File.list (1) dir is
-          * not a directory. This is impossible as we wouldn't get here in this
-          * case. (2) an IO error occurred (why doesn't it throw an exception
-          * then???)
-          */
+         return this.snapshot.list(dir, this.followSymlinks, this);
+      }
+      return this.read(dir);
+   }
 
+   /**
+    * Reads the entries of a directory, sorted by name. The entries are read
+    * with a {@link DirectoryStream} and the type of each entry is taken from
+    * a single attributes read, instead of separate
+    * <code>isDirectory()</code>/<code>isFile()</code> calls and canonical
+    * path resolutions. Entries that are neither files nor directories are
+    * skipped.
+    * 
+    * @param dir The directory to read.
+    * @return the entries of the directory.
+    */
+   List<Entry> read(final File dir)
+   {
+      final List<Entry> entries = new ArrayList<Entry>();
+      final LinkOption[] options = this.followSymlinks ? new LinkOption[0]
+            : new LinkOption[] { LinkOption.NOFOLLOW_LINKS };
+
+      DirectoryStream<Path> stream;
+      try
+      {
+         stream = Files.newDirectoryStream(dir.toPath());
+      }
+      catch (final IOException ioe)
+      {
          /*
-          * [jdcasey] (2) is apparently happening to me, as this is killing one
-          * of my tests... this is affecting the assembly plugin, fwiw. I will
-          * initialize the newfiles array as zero-length for now. NOTE: I can't
-          * find the problematic code, as it appears to come from a native
-          * method in UnixFileSystem...
-          */
-         /*
-          * [bentmann] A null array will also be returned from list() on NTFS
-          * when dir refers to a soft link or junction point whose target is not
-          * existent.
+          * The directory cannot be read (I/O error, access denied, soft link
+          * or junction point whose target does not exist...): as with the
+          * former File.list() implementation, it is considered as empty.
           */
-         newfiles = new String[0];
-
-         // throw new IOException( "IO error scanning directory " +
-         // dir.getAbsolutePath() );
+         return entries;
       }
 
-      if (!this.followSymlinks)
+      try
       {
-         final Vector noLinks = new Vector();
-         for (int i = 0; i < newfiles.length; i++)
+         for (final Path path : stream)
          {
+            BasicFileAttributes attributes;
             try
             {
-               if (this.isSymbolicLink(dir, newfiles[i]))
-               {
-                  final String name = vpath + newfiles[i];
-                  final File file = new File(dir, newfiles[i]);
-                  if (file.isDirectory())
-                  {
-                     this.dirsExcluded.addElement(name);
-                  }
-                  else
-                  {
-                     this.filesExcluded.addElement(name);
-                  }
-               }
-               else
-               {
-                  noLinks.addElement(newfiles[i]);
-               }
+               attributes =
+                  Files.readAttributes(path, BasicFileAttributes.class,
+                        options);
             }
             catch (final IOException ioe)
             {
-               final String msg =
-                  "IOException caught while checking "
-                        + "for links, couldn't get cannonical path!";
-               // will be caught and redirected to Ant's logging system
-               System.err.println(msg);
-               noLinks.addElement(newfiles[i]);
+               // Entry removed meanwhile, or dangling link: neither a file
+               // nor a directory
+               continue;
+            }
+
+            boolean directory = attributes.isDirectory();
+            final boolean link = attributes.isSymbolicLink();
+
+            if (link)
+            {
+               // Links are not followed: their target type is only needed
+               // to exclude them from the right collection
+               directory = Files.isDirectory(path);
             }
+            else if (!directory && !attributes.isRegularFile())
+            {
+               continue;
+            }
+
+            entries.add(new Entry(path.toFile(),
+                  path.getFileName().toString(), directory, link,
+                  attributes));
+         }
+      }
+      catch (final DirectoryIteratorException die)
+      {
+         System.err.println("IOException caught while scanning directory "
+               + dir.getPath() + ": " + die.getCause().getMessage());
+      }
+      finally
+      {
+         try
+         {
+            stream.close();
+         }
+         catch (final IOException ioe)
+         {
+            // Nothing to do: the directory has been read
+         }
+      }
+
+      Collections.sort(entries);
+      return entries;
+   }
+
+   /**
+    * Returns the collection a directory entry belongs to, based on the
+    * matching of includes, excludes and the selectors.
+    * 
+    * @param entry the entry.
+    * @param name The path of the entry relative to the base directory.
+    * @return the collection of the entry.
+    */
+   private Vector collectionOf(final Entry entry, final String name)
+   {
+      if (entry.link)
+      {
+         // Links are not followed
+         return entry.directory ? this.dirsExcluded : this.filesExcluded;
+      }
+
+      if (!this.isIncluded(name))
+      {
+         this.everythingIncluded = false;
+         return entry.directory ? this.dirsNotIncluded : this.filesNotIncluded;
+      }
+      if (this.isExcluded(name))
+      {
+         this.everythingIncluded = false;
+         return entry.directory ? this.dirsExcluded : this.filesExcluded;
+      }
+      if (!this.isSelected(name, entry.file))
+      {
+         this.everythingIncluded = false;
+         return entry.directory ? this.dirsDeselected : this.filesDeselected;
+      }
+      return entry.directory ? this.dirsIncluded : this.filesIncluded;
+   }
+
+   /**
+    * Tests whether the entries of a collection are recorded or delivered:
+    * only the included ones are when a consumer is set.
+    * 
+    * @param collection the collection of the entries.
+    * @return true if the entries have to be recorded.
+    */
+   private boolean isRecorded(final Vector collection)
+   {
+      return (this.consumer == null) || (collection == this.filesIncluded)
+            || (collection == this.dirsIncluded);
+   }
+
+   /**
+    * Records a found entry in its collection, or delivers it to the consumer
+    * if it is included and a consumer is set.
+    * 
+    * @param collection the collection of the entry.
+    * @param name The path of the entry relative to the base directory.
+    * @param attributes the attributes of the entry (null for the base
+    *           directory).
+    */
+   private void record(final Vector collection, final String name,
+         final BasicFileAttributes attributes)
+   {
+      final boolean included = (collection == this.filesIncluded)
+            || (collection == this.dirsIncluded);
+
+      if (this.consumer != null)
+      {
+         if (included)
+         {
+            this.consumer.accept(name, collection == this.dirsIncluded,
+                  attributes);
          }
-         newfiles = new String[noLinks.size()];
-         noLinks.copyInto(newfiles);
+         return;
+      }
+
+      collection.addElement(name);
+      if (included && (attributes != null))
+      {
+         this.includedAttributes.put(name, attributes);
+      }
+   }
+
+   /**
+    * Notifies the consumer (if any) of a directory listed by the scan.
+    * 
+    * @param name The path of the directory relative to the base directory.
+    * @param attributes the attributes of the directory.
+    */
+   private void walked(final String name,
+         final BasicFileAttributes attributes)
+   {
+      if (this.consumer != null)
+      {
+         this.consumer.walked(name, attributes);
+      }
+   }
+
+   /**
+    * Tests whether a directory entry has to be scanned recursively: a fast
+    * scan only enters the directories that may hold included files.
+    * 
+    * @param entry the entry.
+    * @param name The path of the entry relative to the base directory.
+    * @param collection the collection of the entry.
+    * @param fast Whether or not this call is part of a fast scan.
+    * @return true if the entry has to be scanned.
+    */
+   private boolean isScanned(final Entry entry, final String name,
+         final Vector collection, final boolean fast)
+   {
+      if (!entry.directory || entry.link)
+      {
+         return false;
+      }
+      if (!fast || (collection == this.dirsIncluded))
+      {
+         return true;
+      }
+      return this.couldHoldIncluded(name);
+   }
+
+   /**
+    * Performs the fast scan of the base directory with a pool of threads,
+    * each directory being listed by a separate task. The results are
+    * collected in the same order as the serial scan.
+    */
+   private void scanParallel()
+   {
+      final ScanWalk walk = new ScanWalk(this.parallelism);
+      try
+      {
+         this.walked("", this.baseAttributes);
+
+         new ScanTask(new DirectoryScanner[] { this }, new String[] { "" },
+               this.basedir, walk).addFound();
+      }
+      finally
+      {
+         walk.shutdown();
+      }
+   }
+
+   /**
+    * The threads of a walk, and the bound of the directories listed ahead of
+    * the delivery of the results.
+    */
+   private static class ScanWalk
+   {
+      /**
+       * Maximum number of directories listed ahead, per thread.
+       */
+      private static final int AHEAD_PER_THREAD = 16;
+
+      /** The pool listing the directories ahead (null for a serial walk). */
+      final ExecutorService pool;
+
+      /** Permits to list a directory ahead. */
+      final Semaphore ahead;
+
+      ScanWalk(final int parallelism)
+      {
+         this.pool = (parallelism > 1) ? new ForkJoinPool(parallelism) : null;
+         this.ahead = new Semaphore(parallelism * AHEAD_PER_THREAD);
+      }
+
+      void shutdown()
+      {
+         if (this.pool != null)
+         {
+            this.pool.shutdownNow();
+         }
+      }
+   }
+
+   /**
+    * A directory entry, as listed by {@link DirectoryScanner#list(File)}.
+    */
+   protected static class Entry implements Comparable<Entry>
+   {
+      /** The entry. */
+      protected final File file;
+
+      /** The name of the entry in its directory. */
+      protected final String name;
+
+      /** Whether or not the entry is (or links to) a directory. */
+      protected final boolean directory;
+
+      /** Whether or not the entry is a symbolic link not to be followed. */
+      protected final boolean link;
+
+      /**
+       * The attributes of the entry (size, modification time, file key...),
+       * read when listing its directory.
+       */
+      protected final BasicFileAttributes attributes;
+
+      protected Entry(final File file, final String name,
+            final boolean directory, final boolean link,
+            final BasicFileAttributes attributes)
+      {
+         this.file = file;
+         this.name = name;
+         this.directory = directory;
+         this.link = link;
+         this.attributes = attributes;
+      }
+
+      public int compareTo(final Entry other)
+      {
+         return this.name.compareTo(other.name);
+      }
+   }
+
+   /**
+    * Task scanning a directory for one or several scanners, and creating a
+    * sub-task for each of its subdirectories to be scanned by at least one
+    * of them (or by the scanners nested in it). The found entries are
+    * recorded with the sub-tasks, in scan order.
+    * <p>
+    * The results are added to the result collections by a single thread,
+    * depth first, as soon as each directory is listed: a task not listed
+    * yet when its results are needed is run by the delivering thread. In a
+    * parallel walk, the sub-tasks are meanwhile listed ahead by the pool,
+    * as long as the number of listed directories whose results are not
+    * delivered yet is below the bound of the walk. The memory used is
+    * therefore bounded, whatever the size of the tree.
+    */
+   private static class ScanTask implements Callable<Void>
+   {
+      private final DirectoryScanner[] scanners;
+
+      /** Path of the directory relative to the base of each scanner. */
+      private final String[] vpaths;
+
+      private final File dir;
+
+      private final ScanWalk walk;
+
+      /** Lists the directory once, by the pool or the delivering thread. */
+      private final FutureTask<Void> listing = new FutureTask<Void>(this);
+
+      /** Whether or not the directory is listed ahead, holding a permit. */
+      private volatile boolean ahead = false;
+
+      /**
+       * Found entries, each one followed by the task scanning it (if any).
+       */
+      private List<Object> found = new ArrayList<Object>();
+
+      ScanTask(final DirectoryScanner[] scanners, final String[] vpaths,
+            final File dir, final ScanWalk walk)
+      {
+         this.scanners = scanners;
+         this.vpaths = vpaths;
+         this.dir = dir;
+         this.walk = walk;
       }
 
-      for (int i = 0; i < newfiles.length; i++)
+      public Void call()
       {
-         final String name = vpath + newfiles[i];
-         final File file = new File(dir, newfiles[i]);
-         if (file.isDirectory())
+         final List<ScanTask> tasks = new ArrayList<ScanTask>();
+         final List<DirectoryScanner> entering =
+            new ArrayList<DirectoryScanner>(this.scanners.length);
+         final List<String> entering_vpaths =
+            new ArrayList<String>(this.scanners.length);
+
+         for (final Entry entry : this.scanners[0].list(this.dir))
          {
-            if (this.isIncluded(name))
+            entering.clear();
+            entering_vpaths.clear();
+
+            for (int i = 0; i < this.scanners.length; i++)
             {
-               if (!this.isExcluded(name))
+               final DirectoryScanner scanner = this.scanners[i];
+               final String name = this.vpaths[i] + entry.name;
+               final Vector collection = scanner.collectionOf(entry, name);
+
+               if (scanner.isRecorded(collection))
                {
-                  if (this.isSelected(name, file))
-                  {
-                     this.dirsIncluded.addElement(name);
-                     if (fast)
-                     {
-                        this.scandir(file, name + "/", fast);
-                     }
-                  }
-                  else
-                  {
-                     this.everythingIncluded = false;
-                     this.dirsDeselected.addElement(name);
-                     if (fast && this.couldHoldIncluded(name))
-                     {
-                        this.scandir(file, name + "/", fast);
-                     }
-                  }
+                  this.found.add(new Found(scanner, collection, name,
+                        entry.attributes));
+               }
 
+               if (scanner.isScanned(entry, name, collection, true))
+               {
+                  entering.add(scanner);
+                  entering_vpaths.add(name + "/");
+                  this.addWalked(scanner, name, entry.attributes);
                }
-               else
+
+               if (entry.directory && !entry.link
+                     && (collection == scanner.dirsIncluded))
                {
-                  this.everythingIncluded = false;
-                  this.dirsExcluded.addElement(name);
-                  if (fast && this.couldHoldIncluded(name))
+                  // Nested scanners see the directory as their base
+                  scanner.enterNested(name, entry.file, entering);
+                  while (entering_vpaths.size() < entering.size())
                   {
-                     this.scandir(file, name + "/", fast);
+                     this.addWalked(entering.get(entering_vpaths.size()), "",
+                           entry.attributes);
+                     entering_vpaths.add("");
                   }
                }
             }
-            else
+
+            if (!entering.isEmpty())
             {
-               this.everythingIncluded = false;
-               this.dirsNotIncluded.addElement(name);
-               if (fast && this.couldHoldIncluded(name))
+               final ScanTask task = new ScanTask(
+                     entering.toArray(new DirectoryScanner[entering.size()]),
+                     entering_vpaths.toArray(new String[entering.size()]),
+                     entry.file, this.walk);
+               this.found.add(task);
+               tasks.add(task);
+            }
+         }
+
+         // List the subdirectories ahead while permitted
+         if (this.walk.pool != null)
+         {
+            for (final ScanTask task : tasks)
+            {
+               if (!this.walk.ahead.tryAcquire())
                {
-                  this.scandir(file, name + "/", fast);
+                  break;
                }
+               task.ahead = true;
+               this.walk.pool.execute(task.listing);
             }
-            if (!fast)
+         }
+         return null;
+      }
+
+      /**
+       * Records a directory to be listed for a scanner, if its consumer
+       * needs to be notified.
+       */
+      private void addWalked(final DirectoryScanner scanner,
+            final String name, final BasicFileAttributes attributes)
+      {
+         if (scanner.consumer != null)
+         {
+            this.found.add(new Found(scanner, null, name, attributes));
+         }
+      }
+
+      /**
+       * Adds the found entries to the result collections, depth first,
+       * listing the directories not listed ahead.
+       */
+      void addFound()
+      {
+         // Runs the listing unless already started by the pool
+         this.listing.run();
+         try
+         {
+            this.listing.get();
+         }
+         catch (final InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Scan interrupted.", e);
+         }
+         catch (final ExecutionException e)
+         {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
             {
-               this.scandir(file, name + "/", fast);
+               throw (RuntimeException) cause;
             }
+            if (cause instanceof Error)
+            {
+               throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
          }
-         else if (file.isFile())
+
+         // The results of this directory are now delivered
+         if (this.ahead)
          {
-            if (this.isIncluded(name))
+            this.walk.ahead.release();
+         }
+
+         final List<Object> items = this.found;
+         this.found = null;
+
+         for (final Object item : items)
+         {
+            if (item instanceof ScanTask)
+            {
+               ((ScanTask) item).addFound();
+            }
+            else
             {
-               if (!this.isExcluded(name))
+               final Found entry = (Found) item;
+               if (entry.collection == null)
                {
-                  if (this.isSelected(name, file))
-                  {
-                     this.filesIncluded.addElement(name);
-                  }
-                  else
-                  {
-                     this.everythingIncluded = false;
-                     this.filesDeselected.addElement(name);
-                  }
+                  entry.scanner.walked(entry.name, entry.attributes);
                }
                else
                {
-                  this.everythingIncluded = false;
-                  this.filesExcluded.addElement(name);
+                  entry.scanner.record(entry.collection, entry.name,
+                        entry.attributes);
                }
             }
-            else
-            {
-               this.everythingIncluded = false;
-               this.filesNotIncluded.addElement(name);
-            }
          }
       }
    }
 
+   /**
+    * An entry found by a scan task, to be recorded once the scan completes
+    * (or a directory listed for a consumer, without collection).
+    */
+   private static class Found
+   {
+      final DirectoryScanner scanner;
+
+      final Vector collection;
+
+      final String name;
+
+      final BasicFileAttributes attributes;
+
+      Found(final DirectoryScanner scanner, final Vector collection,
+            final String name, final BasicFileAttributes attributes)
+      {
+         this.scanner = scanner;
+         this.collection = collection;
+         this.name = name;
+         this.attributes = attributes;
+      }
+   }
+
    /**
     * Tests whether a name should be selected.
     * 
@@ -537,6 +1200,20 @@ public class DirectoryScanner extends AbstractScanner
       return files;
    }
 
+   /**
+    * Returns the attributes of an included file or directory, as read during
+    * the scan, so that callers do not need to read them again.
+    * 
+    * @param name the name of the file or directory, relative to the base
+    *           directory.
+    * @return the attributes of the entry, or <code>null</code> if the name
+    *         was not included by the last scan (or is the base directory).
+    */
+   public BasicFileAttributes getIncludedAttributes(final String name)
+   {
+      return this.includedAttributes.get(name);
+   }
+
    /**
     * Returns the names of the files which matched none of the include patterns.
     * The names are relative to the base directory. This involves performing a
@@ -0,0 +1,670 @@
+/**
+ * Copyright The Codehaus Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.plexus.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent snapshot of the directories listed by
+ * {@link DirectoryScanner}s, allowing later scans to only list again the
+ * directories that changed.
+ * <p>
+ * The snapshot records, for every listed directory, its modification time
+ * and its entries (name, type, size and modification time). A directory
+ * whose modification time did not change since its snapshot still has the
+ * same entries: they are taken from the snapshot, and only its
+ * subdirectories are read to check them in turn. Directories modified too
+ * close to their snapshot to be told apart by the file system time
+ * resolution are always listed again.
+ * <p>
+ * The directories listed again are compared with their snapshot, giving
+ * the added, removed and modified (size or modification time) entries.
+ * Since the content of a file may change without changing its directory,
+ * files modified in place in an unchanged directory are not reported, and
+ * the entries taken from the snapshot do not carry attributes.
+ * <p>
+ * The snapshot is stored in a file of length-prefixed records, mapped in
+ * memory when opened: the records are only decoded when their directory is
+ * scanned. A snapshot can be shared by concurrent scans.
+ */
+public class DirectorySnapshot
+{
+   private static final int MAGIC = 0x44534e50;
+
+   private static final int VERSION = 1;
+
+   /**
+    * Time resolution of directory modification times on the coarsest file
+    * systems (milliseconds).
+    */
+   private static final long RESOLUTION = 2000;
+
+   /** Entry type flags. */
+   private static final byte DIRECTORY = 1;
+
+   private static final byte LINK = 2;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   /** The snapshot file. */
+   private final File file;
+
+   /** The snapshot file content, or null if empty. */
+   private final ByteBuffer buffer;
+
+   /** The offsets of the records of the snapshot file. */
+   private final Map<String, Integer> offsets;
+
+   /** The directories listed since the snapshot file was read. */
+   private final Map<String, Record> records =
+      new ConcurrentHashMap<String, Record>();
+
+   /** The directories removed since the snapshot file was read. */
+   private final Set<String> removedDirectories =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+   /** The directories added since the snapshot, not listed yet. */
+   private final Set<String> addedDirectories =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+   /**
+    * The attributes of the subdirectories of the unchanged directories,
+    * read to check them and kept until they are listed.
+    */
+   private final Map<String, BasicFileAttributes> checked =
+      new ConcurrentHashMap<String, BasicFileAttributes>();
+
+   private final List<String> added =
+      Collections.synchronizedList(new ArrayList<String>());
+
+   private final List<String> removed =
+      Collections.synchronizedList(new ArrayList<String>());
+
+   private final List<String> modified =
+      Collections.synchronizedList(new ArrayList<String>());
+
+   private final AtomicLong listedDirectories = new AtomicLong();
+
+   private final AtomicLong reusedDirectories = new AtomicLong();
+
+   /**
+    * Opens a snapshot file. A missing, unreadable or incompatible file
+    * gives an empty snapshot.
+    * 
+    * @param file the snapshot file.
+    * @throws IOException if the snapshot file cannot be read.
+    */
+   public DirectorySnapshot(final File file) throws IOException
+   {
+      this.file = file;
+
+      ByteBuffer content = null;
+      final Map<String, Integer> record_offsets = new HashMap<String, Integer>();
+
+      if (file.isFile() && (file.length() >= 12))
+      {
+         final RandomAccessFile access = new RandomAccessFile(file, "r");
+         try
+         {
+            content = access.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                  0, access.length());
+         }
+         finally
+         {
+            access.close();
+         }
+
+         try
+         {
+            if ((content.getInt(0) != MAGIC) || (content.getInt(4) != VERSION))
+            {
+               content = null;
+            }
+            else
+            {
+               final int count = content.getInt(8);
+               int offset = 12;
+               for (int i = 0; i < count; i++)
+               {
+                  record_offsets.put(readString(content, offset + 4), offset);
+                  offset += 4 + content.getInt(offset);
+               }
+            }
+         }
+         catch (final RuntimeException exception)
+         {
+            // Truncated or corrupted file
+            content = null;
+            record_offsets.clear();
+         }
+      }
+
+      this.buffer = content;
+      this.offsets = record_offsets;
+   }
+
+   /**
+    * Lists the entries of a directory, from the snapshot if the directory
+    * did not change since, otherwise with the given scanner.
+    * 
+    * @param dir the directory to list.
+    * @param follow_links whether or not the scanner follows symbolic links.
+    * @param scanner the scanner listing the directory.
+    * @return the entries of the directory, sorted by name.
+    */
+   List<DirectoryScanner.Entry> list(final File dir,
+         final boolean follow_links, final DirectoryScanner scanner)
+   {
+      final String path = dir.getAbsolutePath();
+      final long captured = System.currentTimeMillis();
+
+      final BasicFileAttributes attributes = this.checked.remove(path);
+      final long time = (attributes != null) ? attributes.lastModifiedTime()
+            .toMillis() : dir.lastModified();
+
+      final Record record = this.lookup(path);
+
+      if ((record != null) && (time != 0) && (record.time == time)
+            && (record.followLinks == follow_links)
+            && (time < (record.captured - RESOLUTION)))
+      {
+         final List<DirectoryScanner.Entry> entries =
+            this.entriesOf(dir, record, follow_links);
+
+         if (entries != null)
+         {
+            this.reusedDirectories.incrementAndGet();
+            return entries;
+         }
+      }
+
+      final List<DirectoryScanner.Entry> entries = scanner.read(dir);
+      final Record listed = new Record(entries, time, captured, follow_links);
+
+      this.records.put(path, listed);
+      this.removedDirectories.remove(path);
+      this.compare(path, record, listed);
+      this.listedDirectories.incrementAndGet();
+
+      return entries;
+   }
+
+   /**
+    * Builds the entries of an unchanged directory from its record, reading
+    * the attributes of its subdirectories.
+    * 
+    * @return the entries, or null if a subdirectory cannot be read.
+    */
+   private List<DirectoryScanner.Entry> entriesOf(final File dir,
+         final Record record, final boolean follow_links)
+   {
+      final LinkOption[] options = follow_links ? new LinkOption[0]
+            : new LinkOption[] { LinkOption.NOFOLLOW_LINKS };
+
+      final List<DirectoryScanner.Entry> entries =
+         new ArrayList<DirectoryScanner.Entry>(record.names.length);
+
+      for (int i = 0; i < record.names.length; i++)
+      {
+         final File child = new File(dir, record.names[i]);
+         final boolean directory = (record.types[i] & DIRECTORY) != 0;
+         final boolean link = (record.types[i] & LINK) != 0;
+
+         BasicFileAttributes attributes = null;
+
+         if (directory && !link)
+         {
+            try
+            {
+               attributes = Files.readAttributes(child.toPath(),
+                     BasicFileAttributes.class, options);
+            }
+            catch (final IOException ioe)
+            {
+               return null;
+            }
+            if (!attributes.isDirectory())
+            {
+               return null;
+            }
+            this.checked.put(child.getAbsolutePath(), attributes);
+         }
+
+         entries.add(new DirectoryScanner.Entry(child, record.names[i],
+               directory, link, attributes));
+      }
+
+      return entries;
+   }
+
+   /**
+    * Compares a directory listing with its previous record, if any.
+    */
+   private void compare(final String path, final Record previous,
+         final Record listed)
+   {
+      final boolean new_directory = this.addedDirectories.remove(path);
+
+      if ((previous == null) && !new_directory)
+      {
+         // First listing of the directory
+         return;
+      }
+
+      final String[] previous_names = (previous != null) ? previous.names
+            : new String[0];
+
+      int i = 0;
+      int j = 0;
+      while ((i < previous_names.length) || (j < listed.names.length))
+      {
+         final int order;
+         if (i >= previous_names.length)
+         {
+            order = 1;
+         }
+         else if (j >= listed.names.length)
+         {
+            order = -1;
+         }
+         else
+         {
+            order = previous_names[i].compareTo(listed.names[j]);
+         }
+
+         if (order < 0)
+         {
+            this.removeEntry(path, previous, i++);
+         }
+         else if (order > 0)
+         {
+            this.addEntry(path, listed, j++);
+         }
+         else
+         {
+            if (previous.types[i] != listed.types[j])
+            {
+               this.removeEntry(path, previous, i);
+               this.addEntry(path, listed, j);
+            }
+            else if (((listed.types[j] & DIRECTORY) == 0)
+                  && ((previous.sizes[i] != listed.sizes[j])
+                  || (previous.times[i] != listed.times[j])))
+            {
+               this.modified.add(path + File.separator + listed.names[j]);
+            }
+            i++;
+            j++;
+         }
+      }
+   }
+
+   /**
+    * Reports an added entry.
+    */
+   private void addEntry(final String path, final Record record,
+         final int index)
+   {
+      final String child = path + File.separator + record.names[index];
+      this.added.add(child);
+
+      if (record.types[index] == DIRECTORY)
+      {
+         this.addedDirectories.add(child);
+      }
+   }
+
+   /**
+    * Reports a removed entry, with the content of the removed directories.
+    */
+   private void removeEntry(final String path, final Record record,
+         final int index)
+   {
+      final String child = path + File.separator + record.names[index];
+      this.removed.add(child);
+
+      if (record.types[index] == DIRECTORY)
+      {
+         final Record child_record = this.lookup(child);
+
+         this.records.remove(child);
+         this.removedDirectories.add(child);
+
+         if (child_record != null)
+         {
+            for (int i = 0; i < child_record.names.length; i++)
+            {
+               this.removeEntry(child, child_record, i);
+            }
+         }
+      }
+   }
+
+   /**
+    * @return the record of a directory, or null if none.
+    */
+   private Record lookup(final String path)
+   {
+      if (this.removedDirectories.contains(path))
+      {
+         return null;
+      }
+
+      final Record record = this.records.get(path);
+      if (record != null)
+      {
+         return record;
+      }
+
+      final Integer offset = this.offsets.get(path);
+      if (offset == null)
+      {
+         return null;
+      }
+
+      return new Record(this.buffer, offset);
+   }
+
+   /**
+    * Writes the snapshot of all the directories listed so far, replacing
+    * the snapshot file. The directories not scanned since the snapshot file
+    * was read are kept unchanged.
+    * 
+    * @throws IOException if the snapshot cannot be written.
+    */
+   public synchronized void save() throws IOException
+   {
+      final List<Integer> kept = new ArrayList<Integer>();
+      for (final Map.Entry<String, Integer> entry : this.offsets.entrySet())
+      {
+         if (!this.records.containsKey(entry.getKey())
+               && !this.removedDirectories.contains(entry.getKey()))
+         {
+            kept.add(entry.getValue());
+         }
+      }
+
+      final File parent = this.file.getAbsoluteFile().getParentFile();
+      if ((parent != null) && !parent.exists())
+      {
+         parent.mkdirs();
+      }
+
+      final File temporary = new File(this.file.getPath() + ".tmp");
+      final DataOutputStream output = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(temporary)));
+      try
+      {
+         output.writeInt(MAGIC);
+         output.writeInt(VERSION);
+         output.writeInt(kept.size() + this.records.size());
+
+         for (final Integer offset : kept)
+         {
+            final ByteBuffer record = this.buffer.duplicate();
+            record.position(offset);
+            final byte[] bytes = new byte[4 + record.getInt(offset)];
+            record.get(bytes);
+            output.write(bytes);
+         }
+
+         for (final Map.Entry<String, Record> entry : this.records.entrySet())
+         {
+            entry.getValue().write(entry.getKey(), output);
+         }
+      }
+      finally
+      {
+         output.close();
+      }
+
+      try
+      {
+         Files.move(temporary.toPath(), this.file.toPath(),
+               StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (final AtomicMoveNotSupportedException exception)
+      {
+         Files.move(temporary.toPath(), this.file.toPath(),
+               StandardCopyOption.REPLACE_EXISTING);
+      }
+
+      this.checked.clear();
+   }
+
+   /**
+    * Returns the snapshot file.
+    * 
+    * @return the snapshot file.
+    */
+   public File getFile()
+   {
+      return this.file;
+   }
+
+   /**
+    * Returns the entries found in the directories listed again since their
+    * snapshot, including the content of the added directories.
+    * 
+    * @return the absolute paths of the added files and directories.
+    */
+   public List<String> getAdded()
+   {
+      synchronized (this.added)
+      {
+         return new ArrayList<String>(this.added);
+      }
+   }
+
+   /**
+    * Returns the entries of the snapshot no longer found, including the
+    * content of the removed directories.
+    * 
+    * @return the absolute paths of the removed files and directories.
+    */
+   public List<String> getRemoved()
+   {
+      synchronized (this.removed)
+      {
+         return new ArrayList<String>(this.removed);
+      }
+   }
+
+   /**
+    * Returns the files of the directories listed again whose size or
+    * modification time changed since their snapshot.
+    * 
+    * @return the absolute paths of the modified files.
+    */
+   public List<String> getModified()
+   {
+      synchronized (this.modified)
+      {
+         return new ArrayList<String>(this.modified);
+      }
+   }
+
+   /**
+    * Returns the number of directories read from the file system.
+    * 
+    * @return the number of listed directories.
+    */
+   public long getListedDirectories()
+   {
+      return this.listedDirectories.get();
+   }
+
+   /**
+    * Returns the number of directories whose entries were taken from the
+    * snapshot.
+    * 
+    * @return the number of unchanged directories.
+    */
+   public long getReusedDirectories()
+   {
+      return this.reusedDirectories.get();
+   }
+
+   /**
+    * Decodes a length-prefixed UTF-8 string.
+    */
+   private static String readString(final ByteBuffer buffer, final int offset)
+   {
+      final byte[] bytes = new byte[buffer.getInt(offset)];
+      final ByteBuffer source = buffer.duplicate();
+      source.position(offset + 4);
+      source.get(bytes);
+      return new String(bytes, UTF8);
+   }
+
+   /**
+    * The snapshot of a directory. A record is stored as its length, its
+    * path, the directory modification time, the time of the listing, the
+    * symbolic links policy, the number of entries, then the name, type,
+    * size and modification time of each entry.
+    */
+   private static class Record
+   {
+      /** The modification time of the directory. */
+      final long time;
+
+      /** The time the directory was listed. */
+      final long captured;
+
+      final boolean followLinks;
+
+      final String[] names;
+
+      final byte[] types;
+
+      final long[] sizes;
+
+      final long[] times;
+
+      /**
+       * Builds the record of a directory listing.
+       */
+      Record(final List<DirectoryScanner.Entry> entries, final long time,
+            final long captured, final boolean follow_links)
+      {
+         this.time = time;
+         this.captured = captured;
+         this.followLinks = follow_links;
+         this.names = new String[entries.size()];
+         this.types = new byte[entries.size()];
+         this.sizes = new long[entries.size()];
+         this.times = new long[entries.size()];
+
+         for (int i = 0; i < this.names.length; i++)
+         {
+            final DirectoryScanner.Entry entry = entries.get(i);
+            this.names[i] = entry.name;
+            this.types[i] = (byte) ((entry.directory ? DIRECTORY : 0)
+                  | (entry.link ? LINK : 0));
+            if (entry.attributes != null)
+            {
+               this.sizes[i] = entry.attributes.size();
+               this.times[i] = entry.attributes.lastModifiedTime().toMillis();
+            }
+         }
+      }
+
+      /**
+       * Decodes a record of the snapshot file.
+       */
+      Record(final ByteBuffer buffer, final int offset)
+      {
+         final ByteBuffer source = buffer.duplicate();
+         source.position(offset + 4);
+         source.position(source.position() + 4 + source.getInt());
+
+         this.time = source.getLong();
+         this.captured = source.getLong();
+         this.followLinks = source.get() != 0;
+
+         final int count = source.getInt();
+         this.names = new String[count];
+         this.types = new byte[count];
+         this.sizes = new long[count];
+         this.times = new long[count];
+
+         for (int i = 0; i < count; i++)
+         {
+            final byte[] name = new byte[source.getInt()];
+            source.get(name);
+            this.names[i] = new String(name, UTF8);
+            this.types[i] = source.get();
+            this.sizes[i] = source.getLong();
+            this.times[i] = source.getLong();
+         }
+      }
+
+      /**
+       * Encodes this record.
+       */
+      void write(final String path, final DataOutputStream output)
+            throws IOException
+      {
+         final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         final DataOutputStream record = new DataOutputStream(bytes);
+
+         final byte[] path_bytes = path.getBytes(UTF8);
+         record.writeInt(path_bytes.length);
+         record.write(path_bytes);
+         record.writeLong(this.time);
+         record.writeLong(this.captured);
+         record.writeByte(this.followLinks ? 1 : 0);
+         record.writeInt(this.names.length);
+
+         for (int i = 0; i < this.names.length; i++)
+         {
+            final byte[] name = this.names[i].getBytes(UTF8);
+            record.writeInt(name.length);
+            record.write(name);
+            record.writeByte(this.types[i]);
+            record.writeLong(this.sizes[i]);
+            record.writeLong(this.times[i]);
+         }
+         record.flush();
+
+         output.writeInt(bytes.size());
+         bytes.writeTo(output);
+      }
+   }
+}
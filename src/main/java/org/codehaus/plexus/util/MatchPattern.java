@@ -0,0 +1,546 @@
+/**
+ * Copyright The Codehaus Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.plexus.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A pattern compiled once for repeated matching, with the same semantics as
+ * {@link SelectorUtils#matchPath(String, String, boolean)} and
+ * {@link SelectorUtils#matchPatternStart(String, String, boolean)}.
+ * <p>
+ * <code>%regex[...]</code> patterns are compiled into a single
+ * {@link Pattern}. Other patterns are tokenized into path segments, each one
+ * being either "**", a literal name, or a regular expression compiled with
+ * the requested case sensitivity. Matching a path then only tokenizes the
+ * path, once for all the patterns of a {@link MatchPatterns} set.
+ */
+public class MatchPattern
+{
+   /** The "**" segment, matching zero or more path segments. */
+   static final String DEEP_TREE = "**";
+
+   /** Characters making a segment a regular expression. */
+   private static final String REGEX_CHARACTERS = "\\^$.|?*+()[]{}";
+
+   private final String source;
+
+   private final boolean isCaseSensitive;
+
+   /** Whole path regular expression, for <code>%regex[...]</code>. */
+   private final Pattern regexPattern;
+
+   /** Segments tokenized on <code>File.separator</code>. */
+   private final Segment[] segments;
+
+   /** Segments tokenized on '/', for pattern start matching. */
+   private final Segment[] startSegments;
+
+   private final boolean startsWithSeparator;
+
+   private final boolean startsWithSlash;
+
+   private MatchPattern(final String source, final boolean isCaseSensitive)
+   {
+      this.source = source;
+      this.isCaseSensitive = isCaseSensitive;
+
+      String pattern = source;
+
+      if (isHandled(pattern, SelectorUtils.REGEX_HANDLER_PREFIX))
+      {
+         pattern =
+            pattern.substring(SelectorUtils.REGEX_HANDLER_PREFIX.length(),
+                  pattern.length()
+                        - SelectorUtils.PATTERN_HANDLER_SUFFIX.length());
+
+         this.regexPattern = Pattern.compile(pattern);
+         this.segments = null;
+         this.startSegments = null;
+         this.startsWithSeparator = false;
+         this.startsWithSlash = false;
+         return;
+      }
+
+      if (isHandled(pattern, SelectorUtils.ANT_HANDLER_PREFIX))
+      {
+         pattern =
+            pattern.substring(SelectorUtils.ANT_HANDLER_PREFIX.length(),
+                  pattern.length()
+                        - SelectorUtils.PATTERN_HANDLER_SUFFIX.length());
+      }
+
+      this.regexPattern = null;
+      this.segments = compile(tokenize(pattern, File.separator),
+            isCaseSensitive);
+      this.startSegments = "/".equals(File.separator) ? this.segments
+            : compile(tokenize(pattern, "/"), isCaseSensitive);
+      this.startsWithSeparator = pattern.startsWith(File.separator);
+      this.startsWithSlash = pattern.startsWith("/");
+   }
+
+   /**
+    * Compiles a pattern.
+    * 
+    * @param source The pattern, as given to
+    *           {@link SelectorUtils#matchPath(String, String, boolean)}.
+    * @param isCaseSensitive Whether or not matching should be performed case
+    *           sensitively.
+    * @return the compiled pattern.
+    */
+   public static MatchPattern fromString(final String source,
+         final boolean isCaseSensitive)
+   {
+      return new MatchPattern(source, isCaseSensitive);
+   }
+
+   /**
+    * @return the source pattern.
+    */
+   public String getSource()
+   {
+      return this.source;
+   }
+
+   /**
+    * @return whether or not matching is performed case sensitively.
+    */
+   public boolean isCaseSensitive()
+   {
+      return this.isCaseSensitive;
+   }
+
+   /**
+    * Tests whether or not a given path matches this pattern.
+    * 
+    * @param str The path to match. Must not be <code>null</code>.
+    * @return <code>true</code> if the pattern matches against the string, or
+    *         <code>false</code> otherwise.
+    */
+   public boolean matchPath(final String str)
+   {
+      if (this.regexPattern != null)
+      {
+         return this.regexPattern.matcher(str).matches();
+      }
+      return this.matchPath(str, tokenize(str, File.separator));
+   }
+
+   /**
+    * Tests whether or not a given path, already tokenized on
+    * <code>File.separator</code>, matches this pattern.
+    * 
+    * @param str The path to match. Must not be <code>null</code>.
+    * @param strDirs The path segments.
+    * @return <code>true</code> if the pattern matches against the string, or
+    *         <code>false</code> otherwise.
+    */
+   boolean matchPath(final String str, final String[] strDirs)
+   {
+      if (this.regexPattern != null)
+      {
+         return this.regexPattern.matcher(str).matches();
+      }
+
+      // When str starts with a File.separator, pattern has to start with a
+      // File.separator.
+      // When pattern starts with a File.separator, str has to start with a
+      // File.separator.
+      if (str.startsWith(File.separator) != this.startsWithSeparator)
+      {
+         return false;
+      }
+
+      final Segment[] patDirs = this.segments;
+      int patIdxStart = 0;
+      int patIdxEnd = patDirs.length - 1;
+      int strIdxStart = 0;
+      int strIdxEnd = strDirs.length - 1;
+
+      // up to first '**'
+      while ((patIdxStart <= patIdxEnd) && (strIdxStart <= strIdxEnd))
+      {
+         final Segment patDir = patDirs[patIdxStart];
+         if (patDir.deepTree)
+         {
+            break;
+         }
+         if (!patDir.matches(strDirs[strIdxStart]))
+         {
+            return false;
+         }
+         patIdxStart++;
+         strIdxStart++;
+      }
+      if (strIdxStart > strIdxEnd)
+      {
+         // String is exhausted
+         return onlyDeepTree(patDirs, patIdxStart, patIdxEnd);
+      }
+      if (patIdxStart > patIdxEnd)
+      {
+         // String not exhausted, but pattern is. Failure.
+         return false;
+      }
+
+      // up to last '**'
+      while ((patIdxStart <= patIdxEnd) && (strIdxStart <= strIdxEnd))
+      {
+         final Segment patDir = patDirs[patIdxEnd];
+         if (patDir.deepTree)
+         {
+            break;
+         }
+         if (!patDir.matches(strDirs[strIdxEnd]))
+         {
+            return false;
+         }
+         patIdxEnd--;
+         strIdxEnd--;
+      }
+      if (strIdxStart > strIdxEnd)
+      {
+         // String is exhausted
+         return onlyDeepTree(patDirs, patIdxStart, patIdxEnd);
+      }
+
+      while ((patIdxStart != patIdxEnd) && (strIdxStart <= strIdxEnd))
+      {
+         int patIdxTmp = -1;
+         for (int i = patIdxStart + 1; i <= patIdxEnd; i++)
+         {
+            if (patDirs[i].deepTree)
+            {
+               patIdxTmp = i;
+               break;
+            }
+         }
+         if (patIdxTmp == (patIdxStart + 1))
+         {
+            // '**/**' situation, so skip one
+            patIdxStart++;
+            continue;
+         }
+         // Find the pattern between padIdxStart & padIdxTmp in str between
+         // strIdxStart & strIdxEnd
+         final int patLength = (patIdxTmp - patIdxStart - 1);
+         final int strLength = ((strIdxEnd - strIdxStart) + 1);
+         int foundIdx = -1;
+         strLoop: for (int i = 0; i <= (strLength - patLength); i++)
+         {
+            for (int j = 0; j < patLength; j++)
+            {
+               if (!patDirs[patIdxStart + j + 1].matches(
+                     strDirs[strIdxStart + i + j]))
+               {
+                  continue strLoop;
+               }
+            }
+
+            foundIdx = strIdxStart + i;
+            break;
+         }
+
+         if (foundIdx == -1)
+         {
+            return false;
+         }
+
+         patIdxStart = patIdxTmp;
+         strIdxStart = foundIdx + patLength;
+      }
+
+      return onlyDeepTree(patDirs, patIdxStart, patIdxEnd);
+   }
+
+   /**
+    * Tests whether or not a given path matches the start of this pattern up
+    * to the first "**".
+    * 
+    * @param str The path to match. Must not be <code>null</code>.
+    * @return whether or not a given path matches the start of this pattern
+    *         up to the first "**".
+    */
+   public boolean matchPatternStart(final String str)
+   {
+      if (this.regexPattern != null)
+      {
+         // We can't do partial matches for regex: reserve judgement until
+         // we have a file to deal with
+         return true;
+      }
+
+      if (this.matchPatternStart(str, tokenize(str, "/")))
+      {
+         return true;
+      }
+
+      final String altStr = str.replace('\\', '/');
+      return (altStr != str)
+            && this.matchPatternStart(altStr, tokenize(altStr, "/"));
+   }
+
+   /**
+    * Tests whether or not a given path, already tokenized on '/', matches
+    * the start of this pattern up to the first "**".
+    */
+   boolean matchPatternStart(final String str, final String[] strDirs)
+   {
+      if (this.regexPattern != null)
+      {
+         return true;
+      }
+
+      if (str.startsWith("/") != this.startsWithSlash)
+      {
+         return false;
+      }
+
+      final Segment[] patDirs = this.startSegments;
+      int patIdxStart = 0;
+      final int patIdxEnd = patDirs.length - 1;
+      int strIdxStart = 0;
+      final int strIdxEnd = strDirs.length - 1;
+
+      // up to first '**'
+      while ((patIdxStart <= patIdxEnd) && (strIdxStart <= strIdxEnd))
+      {
+         final Segment patDir = patDirs[patIdxStart];
+         if (patDir.deepTree)
+         {
+            break;
+         }
+         if (!patDir.matches(strDirs[strIdxStart]))
+         {
+            return false;
+         }
+         patIdxStart++;
+         strIdxStart++;
+      }
+
+      // The string is exhausted, or the pattern now holds ** (this will
+      // generate false positives but we can live with that). Otherwise the
+      // pattern is exhausted but not the string.
+      return (strIdxStart > strIdxEnd) || (patIdxStart <= patIdxEnd);
+   }
+
+   /**
+    * @return the whole path regular expression of a <code>%regex[...]</code>
+    *         pattern, or null.
+    */
+   Pattern getRegexPattern()
+   {
+      return this.regexPattern;
+   }
+
+   /**
+    * @param start whether the segments tokenized on '/' for pattern start
+    *           matching are requested, rather than those tokenized on
+    *           <code>File.separator</code>.
+    * @return the compiled segments, or null for a <code>%regex[...]</code>
+    *         pattern.
+    */
+   Segment[] getSegments(final boolean start)
+   {
+      return start ? this.startSegments : this.segments;
+   }
+
+   /**
+    * @param start whether the pattern start matching separator ('/') is
+    *           tested, rather than <code>File.separator</code>.
+    * @return whether or not the pattern starts with the separator.
+    */
+   boolean isAbsolute(final boolean start)
+   {
+      return start ? this.startsWithSlash : this.startsWithSeparator;
+   }
+
+   @Override
+   public String toString()
+   {
+      return this.source;
+   }
+
+   /**
+    * Breaks a path up into its non empty segments, as
+    * {@link SelectorUtils#tokenizePath(String, String)} does.
+    * 
+    * @param path Path to tokenize. Must not be <code>null</code>.
+    * @param separator the separator characters.
+    * @return the path segments.
+    */
+   static String[] tokenize(final String path, final String separator)
+   {
+      final List<String> tokens = new ArrayList<String>();
+      final int length = path.length();
+      int start = 0;
+
+      for (int i = 0; i <= length; i++)
+      {
+         if ((i == length) || (separator.indexOf(path.charAt(i)) >= 0))
+         {
+            if (i > start)
+            {
+               tokens.add(path.substring(start, i));
+            }
+            start = i + 1;
+         }
+      }
+
+      return tokens.toArray(new String[tokens.size()]);
+   }
+
+   private static boolean isHandled(final String pattern, final String prefix)
+   {
+      return (pattern.length() > (prefix.length()
+            + SelectorUtils.PATTERN_HANDLER_SUFFIX.length() + 1))
+            && pattern.startsWith(prefix)
+            && pattern.endsWith(SelectorUtils.PATTERN_HANDLER_SUFFIX);
+   }
+
+   private static Segment[] compile(final String[] tokens,
+         final boolean isCaseSensitive)
+   {
+      final Segment[] compiled = new Segment[tokens.length];
+      for (int i = 0; i < tokens.length; i++)
+      {
+         compiled[i] = new Segment(tokens[i], isCaseSensitive);
+      }
+      return compiled;
+   }
+
+   private static boolean onlyDeepTree(final Segment[] patDirs,
+         final int start, final int end)
+   {
+      for (int i = start; i <= end; i++)
+      {
+         if (!patDirs[i].deepTree)
+         {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * A compiled path segment of a pattern. Segments without regular
+    * expression characters are compared as plain strings.
+    */
+   static final class Segment
+   {
+      final String source;
+
+      final boolean deepTree;
+
+      private final String literal;
+
+      private final boolean isCaseSensitive;
+
+      private final Pattern pattern;
+
+      Segment(final String source, final boolean isCaseSensitive)
+      {
+         this.source = source;
+         this.deepTree = DEEP_TREE.equals(source);
+         this.isCaseSensitive = isCaseSensitive;
+
+         if (!this.deepTree && isLiteral(source, isCaseSensitive))
+         {
+            this.literal = isCaseSensitive ? source : toLowerAscii(source);
+            this.pattern = null;
+         }
+         else
+         {
+            this.literal = null;
+            final String fixed = source.replace(DEEP_TREE, ".*");
+            this.pattern = isCaseSensitive ? Pattern.compile(fixed)
+                  : Pattern.compile(fixed, Pattern.CASE_INSENSITIVE);
+         }
+      }
+
+      /**
+       * Tests whether or not a path segment matches this one, as
+       * {@link SelectorUtils#match(String, String, boolean)} does.
+       */
+      boolean matches(final String str)
+      {
+         if (this.literal == null)
+         {
+            return this.pattern.matcher(str).matches();
+         }
+         if (this.isCaseSensitive)
+         {
+            return this.literal.equals(str);
+         }
+         if (this.literal.length() != str.length())
+         {
+            return false;
+         }
+         for (int i = 0; i < str.length(); i++)
+         {
+            if (this.literal.charAt(i) != toLowerAscii(str.charAt(i)))
+            {
+               return false;
+            }
+         }
+         return true;
+      }
+
+      /**
+       * @return the literal value of this segment (lower case if not case
+       *         sensitive), or null if it is a regular expression.
+       */
+      String getLiteral()
+      {
+         return this.literal;
+      }
+
+      static char toLowerAscii(final char c)
+      {
+         return ((c >= 'A') && (c <= 'Z')) ? (char) (c + ('a' - 'A')) : c;
+      }
+
+      static String toLowerAscii(final String source)
+      {
+         final char[] chars = source.toCharArray();
+         for (int i = 0; i < chars.length; i++)
+         {
+            chars[i] = toLowerAscii(chars[i]);
+         }
+         return new String(chars);
+      }
+
+      private static boolean isLiteral(final String source,
+            final boolean isCaseSensitive)
+      {
+         for (int i = 0; i < source.length(); i++)
+         {
+            final char c = source.charAt(i);
+
+            // Case insensitive regular expressions only fold ASCII letters
+            if ((REGEX_CHARACTERS.indexOf(c) >= 0)
+                  || (!isCaseSensitive && (c > 0x7F)))
+            {
+               return false;
+            }
+         }
+         return true;
+      }
+   }
+}
@@ -0,0 +1,403 @@
+/**
+ * Copyright The Codehaus Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.plexus.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.codehaus.plexus.util.MatchPattern.Segment;
+
+/**
+ * A set of patterns compiled once into a single matcher.
+ * <p>
+ * The segments of the path patterns are merged into a trie: patterns sharing
+ * leading segments share nodes, literal segments are looked up by name and
+ * only the regular expression segments are tried one by one. A path is then
+ * matched in a single pass over its segments, following every branch of the
+ * trie it matches at once (a "**" node matching any number of segments).
+ * The same trie, cut at the first "**" of each pattern, tells whether a
+ * directory could hold matching paths.
+ * <p>
+ * <code>%regex[...]</code> patterns match whole paths and are tried one by
+ * one.
+ */
+public class MatchPatterns
+{
+   private final MatchPattern[] patterns;
+
+   /** Whole path regular expressions. */
+   private final Pattern[] regexPatterns;
+
+   /** Patterns not starting with a separator, for path matching. */
+   private final Node relative;
+
+   /** Patterns starting with a separator, for path matching. */
+   private final Node absolute;
+
+   /** Patterns not starting with '/', for pattern start matching. */
+   private final Node startRelative;
+
+   /** Patterns starting with '/', for pattern start matching. */
+   private final Node startAbsolute;
+
+   private MatchPatterns(final MatchPattern[] patterns,
+         final boolean isCaseSensitive)
+   {
+      this.patterns = patterns;
+      this.relative = new Node(false, isCaseSensitive);
+      this.absolute = new Node(false, isCaseSensitive);
+      this.startRelative = new Node(false, isCaseSensitive);
+      this.startAbsolute = new Node(false, isCaseSensitive);
+
+      final List<Pattern> regexes = new ArrayList<Pattern>();
+
+      for (int i = 0; i < patterns.length; i++)
+      {
+         final MatchPattern pattern = patterns[i];
+
+         if (pattern.getRegexPattern() != null)
+         {
+            regexes.add(pattern.getRegexPattern());
+            continue;
+         }
+
+         (pattern.isAbsolute(false) ? this.absolute : this.relative)
+               .add(pattern.getSegments(false), 0);
+         (pattern.isAbsolute(true) ? this.startAbsolute : this.startRelative)
+               .add(pattern.getSegments(true), 0);
+      }
+
+      this.regexPatterns = regexes.toArray(new Pattern[regexes.size()]);
+   }
+
+   /**
+    * Compiles a set of patterns.
+    * 
+    * @param sources The patterns. Must not be <code>null</code>.
+    * @param isCaseSensitive Whether or not matching should be performed case
+    *           sensitively.
+    * @return the compiled patterns.
+    */
+   public static MatchPatterns from(final String[] sources,
+         final boolean isCaseSensitive)
+   {
+      final MatchPattern[] patterns = new MatchPattern[sources.length];
+      for (int i = 0; i < sources.length; i++)
+      {
+         patterns[i] = MatchPattern.fromString(sources[i], isCaseSensitive);
+      }
+      return new MatchPatterns(patterns, isCaseSensitive);
+   }
+
+   /**
+    * @return the compiled patterns of this set.
+    */
+   public MatchPattern[] getPatterns()
+   {
+      return this.patterns.clone();
+   }
+
+   /**
+    * Tests whether or not a name matches against at least one pattern.
+    * 
+    * @param name The name to match. Must not be <code>null</code>.
+    * @return <code>true</code> when the name matches against at least one
+    *         pattern, or <code>false</code> otherwise.
+    */
+   public boolean matches(final String name)
+   {
+      for (int i = 0; i < this.regexPatterns.length; i++)
+      {
+         if (this.regexPatterns[i].matcher(name).matches())
+         {
+            return true;
+         }
+      }
+
+      final Node root =
+         name.startsWith(File.separator) ? this.absolute : this.relative;
+
+      return !root.isEmpty()
+            && root.matches(MatchPattern.tokenize(name, File.separator));
+   }
+
+   /**
+    * Tests whether or not a name matches the start of at least one pattern.
+    * 
+    * @param name The name to match. Must not be <code>null</code>.
+    * @return <code>true</code> when the name matches against the start of at
+    *         least one pattern, or <code>false</code> otherwise.
+    */
+   public boolean matchesPatternStart(final String name)
+   {
+      // Regular expressions cannot be partially matched: reserve judgement
+      // until we have a file to deal with
+      if (this.regexPatterns.length > 0)
+      {
+         return true;
+      }
+
+      if (this.matchesPatternStart(name, name))
+      {
+         return true;
+      }
+
+      // Also try with a backslash separated name
+      final String altName = name.replace('\\', '/');
+      return (altName != name) && this.matchesPatternStart(altName, altName);
+   }
+
+   private boolean matchesPatternStart(final String name, final String path)
+   {
+      final Node root =
+         path.startsWith("/") ? this.startAbsolute : this.startRelative;
+
+      return !root.isEmpty()
+            && root.matchesStart(MatchPattern.tokenize(path, "/"));
+   }
+
+   /**
+    * A node of the pattern trie, reached by matching a pattern segment.
+    */
+   private static final class Node
+   {
+      /** Whether or not this node is reached by a "**" segment. */
+      private final boolean deepTree;
+
+      private final boolean isCaseSensitive;
+
+      /** Whether or not a pattern ends at this node. */
+      private boolean accepting = false;
+
+      /** Child reached by a "**" segment, if any. */
+      private Node deepTreeChild = null;
+
+      /** Children reached by a literal segment, by literal. */
+      private final Map<String, Node> literalChildren =
+         new HashMap<String, Node>();
+
+      /** Regular expression segments and the children they lead to. */
+      private final List<Segment> regexSegments = new ArrayList<Segment>();
+
+      private final List<Node> regexChildren = new ArrayList<Node>();
+
+      Node(final boolean deepTree, final boolean isCaseSensitive)
+      {
+         this.deepTree = deepTree;
+         this.isCaseSensitive = isCaseSensitive;
+      }
+
+      boolean isEmpty()
+      {
+         return !this.accepting && (this.deepTreeChild == null)
+               && this.literalChildren.isEmpty()
+               && this.regexChildren.isEmpty();
+      }
+
+      /**
+       * Adds the segments of a pattern below this node, from the given
+       * index.
+       */
+      void add(final Segment[] segments, final int index)
+      {
+         if (index == segments.length)
+         {
+            this.accepting = true;
+            return;
+         }
+
+         final Segment segment = segments[index];
+         Node child;
+
+         if (segment.deepTree)
+         {
+            if (this.deepTreeChild == null)
+            {
+               this.deepTreeChild = new Node(true, this.isCaseSensitive);
+            }
+            child = this.deepTreeChild;
+         }
+         else if (segment.getLiteral() != null)
+         {
+            child = this.literalChildren.get(segment.getLiteral());
+            if (child == null)
+            {
+               child = new Node(false, this.isCaseSensitive);
+               this.literalChildren.put(segment.getLiteral(), child);
+            }
+         }
+         else
+         {
+            child = null;
+            for (int i = 0; i < this.regexSegments.size(); i++)
+            {
+               if (this.regexSegments.get(i).source.equals(segment.source))
+               {
+                  child = this.regexChildren.get(i);
+                  break;
+               }
+            }
+            if (child == null)
+            {
+               child = new Node(false, this.isCaseSensitive);
+               this.regexSegments.add(segment);
+               this.regexChildren.add(child);
+            }
+         }
+
+         child.add(segments, index + 1);
+      }
+
+      /**
+       * Tests whether or not the path segments match a pattern of the trie
+       * rooted at this node.
+       */
+      boolean matches(final String[] strDirs)
+      {
+         List<Node> states = new ArrayList<Node>();
+         this.enter(states);
+
+         for (int i = 0; (i < strDirs.length) && !states.isEmpty(); i++)
+         {
+            final String key = this.key(strDirs[i]);
+            final List<Node> next = new ArrayList<Node>();
+
+            for (int j = 0; j < states.size(); j++)
+            {
+               states.get(j).step(strDirs[i], key, next, true);
+            }
+            states = next;
+         }
+
+         for (int j = 0; j < states.size(); j++)
+         {
+            if (states.get(j).accepting)
+            {
+               return true;
+            }
+         }
+         return false;
+      }
+
+      /**
+       * Tests whether or not the path segments match the start of a pattern
+       * of the trie rooted at this node, up to its first "**".
+       */
+      boolean matchesStart(final String[] strDirs)
+      {
+         List<Node> states = new ArrayList<Node>();
+         states.add(this);
+
+         for (int i = 0; i < strDirs.length; i++)
+         {
+            final String key = this.key(strDirs[i]);
+            final List<Node> next = new ArrayList<Node>();
+
+            for (int j = 0; j < states.size(); j++)
+            {
+               final Node state = states.get(j);
+
+               // The pattern now holds "**" while the path is not
+               // exhausted: this may be a false positive, but we can live
+               // with that
+               if (state.deepTreeChild != null)
+               {
+                  return true;
+               }
+               state.step(strDirs[i], key, next, false);
+            }
+
+            // Every pattern start failed or was exhausted before the path
+            if (next.isEmpty())
+            {
+               return false;
+            }
+            states = next;
+         }
+
+         // The path is exhausted
+         return true;
+      }
+
+      /**
+       * Adds this node and the nodes reached from it by "**" segments
+       * matching zero path segments.
+       */
+      private void enter(final List<Node> states)
+      {
+         if (!states.contains(this))
+         {
+            states.add(this);
+            if (this.deepTreeChild != null)
+            {
+               this.deepTreeChild.enter(states);
+            }
+         }
+      }
+
+      /**
+       * Adds the nodes reached from this one by matching a path segment.
+       */
+      private void step(final String str, final String key,
+            final List<Node> next, final boolean deep)
+      {
+         // "**" matches one more segment
+         if (deep && this.deepTree)
+         {
+            this.enter(next);
+         }
+
+         final Node literal = this.literalChildren.get(key);
+         if (literal != null)
+         {
+            add(literal, next, deep);
+         }
+
+         for (int i = 0; i < this.regexSegments.size(); i++)
+         {
+            if (this.regexSegments.get(i).matches(str))
+            {
+               add(this.regexChildren.get(i), next, deep);
+            }
+         }
+      }
+
+      private static void add(final Node node, final List<Node> next,
+            final boolean deep)
+      {
+         if (deep)
+         {
+            node.enter(next);
+         }
+         else if (!next.contains(node))
+         {
+            next.add(node);
+         }
+      }
+
+      /**
+       * @return the literal children key of a path segment.
+       */
+      private String key(final String str)
+      {
+         return this.isCaseSensitive ? str : Segment.toLowerAscii(str);
+      }
+   }
+}
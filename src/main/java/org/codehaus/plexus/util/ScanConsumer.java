@@ -0,0 +1,51 @@
+/**
+ * Copyright The Codehaus Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.plexus.util;
+
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Receives the files and directories included by a {@link DirectoryScanner}
+ * as they are found, instead of having them accumulated into the scanner
+ * results (see {@link DirectoryScanner#setConsumer(ScanConsumer)}).
+ * <p>
+ * The entries are delivered one at a time, in the order of the scan
+ * results.
+ */
+public interface ScanConsumer
+{
+   /**
+    * Receives an included file or directory.
+    * 
+    * @param name the path of the entry relative to the base directory.
+    * @param directory whether or not the entry is a directory.
+    * @param attributes the attributes of the entry read during the scan, or
+    *           <code>null</code> for the base directory.
+    */
+   void accept(String name, boolean directory, BasicFileAttributes attributes);
+
+   /**
+    * Receives a directory whose entries were listed by the scan, whether it
+    * is included or not. Since the included entries only depend on the
+    * listed directories, their modification times tell whether a later scan
+    * would give the same results.
+    * 
+    * @param name the path of the directory relative to the base directory
+    *           ("" for the base directory itself).
+    * @param attributes the attributes of the directory read during the scan.
+    */
+   void walked(String name, BasicFileAttributes attributes);
+}
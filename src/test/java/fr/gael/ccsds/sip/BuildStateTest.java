@@ -0,0 +1,102 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the state kept between incremental builds.
+ */
+public class BuildStateTest
+{
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @Test
+   public void testChangedObjects() throws IOException
+   {
+      final File data = this.folder.newFile("data.bin");
+      final File file = new File(this.folder.getRoot(), "state/build.state");
+
+      final ContentUnit transfer_object = newTransferObject(data);
+
+      BuildState state = new BuildState(file);
+      assertNull(state.getFingerprint(transfer_object));
+      assertTrue(state.isChanged(transfer_object));
+      state.putFingerprint(transfer_object);
+      state.save();
+
+      // Unchanged in the next build
+      state = new BuildState(file);
+      assertFalse(state.isChanged(newTransferObject(data)));
+
+      // Changed once its file is modified
+      assertTrue(data.setLastModified(data.lastModified() - 10000));
+      assertTrue(state.isChanged(newTransferObject(data)));
+   }
+
+   @Test
+   public void testIndexes() throws IOException
+   {
+      final File file = new File(this.folder.getRoot(), "build.state");
+
+      final IndexManager index_manager = new IndexManager();
+      index_manager.getNextId("PRODUCT");
+      index_manager.getNextId("PRODUCT");
+      index_manager.getNextId("DO-DATA");
+
+      BuildState state = new BuildState(file);
+      state.storeIndexes(index_manager);
+      state.save();
+
+      // The numbering continues in the next build
+      state = new BuildState(file);
+      final IndexManager next_manager = new IndexManager();
+      state.restoreIndexes(next_manager);
+      assertEquals("PRODUCT-0003", next_manager.getNextId("PRODUCT"));
+      assertEquals("DO-DATA-0002", next_manager.getNextId("DO-DATA"));
+   }
+
+   private static ContentUnit newTransferObject(final File data)
+   {
+      final ContentUnit transfer_object = new ContentUnit();
+      transfer_object.setId("PRODUCT");
+      transfer_object.setInstancePath("product");
+
+      final ContentUnit data_unit = new ContentUnit();
+      data_unit.setId("DATA");
+      data_unit.addDataObjectFile(new DataObjectFile(data, data.getName()));
+      transfer_object.add(data_unit);
+
+      return transfer_object;
+   }
+}
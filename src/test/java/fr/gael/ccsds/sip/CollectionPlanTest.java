@@ -0,0 +1,130 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.ccsds.pais.xml.DataObjectType;
+import org.ccsds.pais.xml.TransferObjectGroupType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the collection of nested group types in one walk.
+ */
+public class CollectionPlanTest
+{
+   /**
+    * Capacity of the collector caches, lower than the number of products.
+    */
+   private static final int CACHE_SIZE = 8;
+
+   private static final int PRODUCTS = 50;
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @Test
+   public void testWalkLargerThanCache() throws IOException
+   {
+      final File root = this.folder.getRoot();
+      for (int index = 0; index < PRODUCTS; index++)
+      {
+         final File product = this.folder.newFolder("p" + index);
+         new File(product, "a.dat").createNewFile();
+         new File(product, "b.dat").createNewFile();
+         new File(product, "c.txt").createNewFile();
+      }
+
+      final Collector products = newCollector("PRODUCT", "p[0-9]+");
+      final Collector data = newCollector("DATA", ".*[.]dat");
+
+      final Map<String, Collector> type_collectors =
+         new HashMap<String, Collector>();
+      type_collectors.put("PRODUCT", products);
+      type_collectors.put("DATA", data);
+
+      final Project project = new Project()
+      {
+         @Override
+         public Collector getCollector(final String type_id)
+         {
+            return type_collectors.get(type_id);
+         }
+      };
+
+      final DataObjectType data_type = new DataObjectType();
+      data_type.setDataObjectTypeID("DATA");
+      final TransferObjectGroupType group_type =
+         new TransferObjectGroupType();
+      group_type.setGroupTypeID("PRODUCT");
+      group_type.getDataObjectType().add(data_type);
+
+      CollectionPlan.collect(root, CollectionPlan.create(project,
+         Collections.singletonList(group_type), null));
+
+      // Every product collected by the walk is read from the cache, though
+      // the cache capacity is exceeded
+      assertEquals(PRODUCTS, products.getIncludedFiles(root).length);
+      for (int index = 0; index < PRODUCTS; index++)
+      {
+         final File product =
+            new File(root.getAbsolutePath() + File.separator + "p" + index);
+         assertArrayEquals(new String[] { "a.dat", "b.dat" },
+            sorted(data.getIncludedFiles(product)));
+      }
+
+      assertEquals(0, products.getResultCache().getMisses());
+      assertEquals(0, data.getResultCache().getMisses());
+      assertEquals(PRODUCTS, data.getResultCache().getHits());
+
+      // Once read, the entries are bounded again
+      assertEquals(CACHE_SIZE, data.getResultCache().getSize());
+   }
+
+   private static Collector newCollector(final String type_id,
+         final String include)
+   {
+      final fr.gael.ccsds.sip.xml.Collector xml_collector =
+         new fr.gael.ccsds.sip.xml.Collector();
+      xml_collector.setTypeId(type_id);
+      xml_collector.getInclude().add(include);
+      xml_collector.setResultCacheSize(CACHE_SIZE);
+      return new Collector(xml_collector);
+   }
+
+   private static String[] sorted(final String[] names)
+   {
+      final String[] copy = names.clone();
+      Arrays.sort(copy);
+      return copy;
+   }
+}
@@ -0,0 +1,99 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the bounds of the collector result cache.
+ */
+public class CollectorCacheTest
+{
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @Test
+   public void testEviction()
+   {
+      final CollectorCache cache = new CollectorCache(2);
+      for (int index = 0; index < 3; index++)
+      {
+         cache.put(this.directory(index), this.results(index), false);
+      }
+
+      assertEquals(2, cache.getSize());
+      assertEquals(1, cache.getEvictions());
+      assertNull(cache.get(this.directory(0)));
+      assertNotNull(cache.get(this.directory(2)));
+   }
+
+   @Test
+   public void testPinnedEntries()
+   {
+      final CollectorCache cache = new CollectorCache(2);
+      for (int index = 0; index < 10; index++)
+      {
+         cache.put(this.directory(index), this.results(index), true);
+      }
+
+      // Kept until read, whatever the capacity
+      assertEquals(10, cache.getSize());
+      for (int index = 0; index < 5; index++)
+      {
+         assertArrayEquals(new String[] { "file" + index },
+            cache.get(this.directory(index)));
+      }
+      assertEquals(0, cache.getMisses());
+
+      // Read entries are bounded again
+      assertEquals(5 + 2, cache.getSize());
+      assertEquals(3, cache.getEvictions());
+
+      // The entries never read are released by the next build
+      cache.revalidate();
+      assertEquals(2, cache.getSize());
+      assertNotNull(cache.get(this.directory(9)));
+   }
+
+   private File directory(final int index)
+   {
+      return new File(this.folder.getRoot(), "d" + index);
+   }
+
+   private CollectorCache.Results results(final int index)
+   {
+      return new CollectorCache.Results(new String[] { "file" + index },
+         Collections.<String, BasicFileAttributes> emptyMap(),
+         this.folder.getRoot(), new String[0], new long[0]);
+   }
+}
@@ -0,0 +1,109 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Checks the identifiers reserved for SIPs packaged concurrently.
+ */
+public class IndexManagerTest
+{
+   @Test
+   public void testCountIds()
+   {
+      final Map<String, Integer> counts = new HashMap<String, Integer>();
+      for (final ContentUnit unit : newSip(2, 3))
+      {
+         unit.countIds(counts);
+      }
+
+      final Map<String, Integer> expected = new HashMap<String, Integer>();
+      expected.put("PRODUCT", 2);
+      expected.put("DO-DATA", 6);
+      assertEquals(expected, counts);
+   }
+
+   @Test
+   public void testReservedIds()
+   {
+      final IndexManager index_manager = new IndexManager();
+
+      // Reserved in the order of the SIPs
+      final Sip first = newSip(1, 2);
+      final Sip second = newSip(2, 1);
+      assertEquals(1, first.allocateSequenceNumber(index_manager));
+      final IndexManager first_ids = first.reserveIds(index_manager);
+      assertEquals(2, second.allocateSequenceNumber(index_manager));
+      final IndexManager second_ids = second.reserveIds(index_manager);
+
+      // Consumed in any order: the second SIP first
+      assertEquals("PRODUCT-0002", second_ids.getNextId("PRODUCT"));
+      assertEquals("PRODUCT-0003", second_ids.getNextId("PRODUCT"));
+      assertEquals("DO-DATA-0003", second_ids.getNextId("DO-DATA"));
+      assertEquals("DO-DATA-0004", second_ids.getNextId("DO-DATA"));
+
+      assertEquals("PRODUCT-0001", first_ids.getNextId("PRODUCT"));
+      assertEquals("DO-DATA-0001", first_ids.getNextId("DO-DATA"));
+      assertEquals("DO-DATA-0002", first_ids.getNextId("DO-DATA"));
+
+      // Allocated from the shared manager once the reserved ones are used
+      assertEquals("DO-DATA-0005", first_ids.getNextId("DO-DATA"));
+      assertEquals(Integer.valueOf(5),
+         first_ids.getIndexes().get("DO-DATA"));
+      assertEquals(6, index_manager.getNextIndex("DO-DATA"));
+   }
+
+   /**
+    * Builds a SIP of transfer objects holding a data unit each.
+    */
+   private static Sip newSip(final int transfer_objects, final int files)
+   {
+      final Sip sip = new Sip();
+      sip.setId("PRODUCT");
+
+      for (int object = 0; object < transfer_objects; object++)
+      {
+         final ContentUnit transfer_object = new ContentUnit();
+         transfer_object.setId("PRODUCT");
+
+         final ContentUnit data = new ContentUnit();
+         data.setId("DATA");
+         for (int file = 0; file < files; file++)
+         {
+            data.addDataObjectFile(new DataObjectFile(
+               new File("file" + file), "file" + file));
+         }
+         transfer_object.add(data);
+
+         sip.add(transfer_object);
+      }
+
+      return sip;
+   }
+}
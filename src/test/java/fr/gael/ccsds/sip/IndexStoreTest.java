@@ -0,0 +1,140 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the allocation of indexes by ranges across store instances.
+ */
+public class IndexStoreTest
+{
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @Test
+   public void testReopen() throws IOException
+   {
+      final File file = new File(this.folder.getRoot(), "indexes");
+
+      IndexStore store = new IndexStore(file, 4);
+      for (int index = 1; index <= 6; index++)
+      {
+         assertEquals(index, store.next("sip"));
+      }
+      assertEquals(1, store.next("object"));
+      assertEquals(Integer.valueOf(6), store.getIndexes().get("sip"));
+      store.close();
+
+      // The unused end of the ranges is released at close
+      store = new IndexStore(file, 4);
+      assertEquals(Integer.valueOf(6), store.getIndexes().get("sip"));
+      assertEquals(7, store.next("sip"));
+      assertEquals(2, store.next("object"));
+      store.close();
+   }
+
+   @Test
+   public void testSharedStore() throws IOException
+   {
+      final File file = new File(this.folder.getRoot(), "indexes");
+
+      final IndexStore first = new IndexStore(file, 64);
+      final IndexStore second = new IndexStore(file, 64);
+
+      assertEquals(1, first.next("sip"));
+      assertEquals(2, first.next("sip"));
+
+      // The second store allocates after the range of the first one
+      assertEquals(65, second.next("sip"));
+      assertEquals(3, first.next("sip"));
+      assertEquals(Integer.valueOf(128), first.getIndexes().get("sip"));
+
+      // The range of the second store is kept when the first one closes
+      first.close();
+      assertEquals(66, second.next("sip"));
+      second.close();
+
+      final IndexStore third = new IndexStore(file, 64);
+      assertEquals(67, third.next("sip"));
+      third.close();
+   }
+
+   @Test
+   public void testRaiseAndReset() throws IOException
+   {
+      final File file = new File(this.folder.getRoot(), "indexes");
+
+      IndexStore store = new IndexStore(file, 8);
+      assertEquals(1, store.next("sip"));
+      store.raise("sip", 5);
+      assertEquals(6, store.next("sip"));
+      store.raise("sip", 20);
+      assertEquals(21, store.next("sip"));
+
+      // Never lowered
+      store.raise("sip", 3);
+      assertEquals(22, store.next("sip"));
+
+      store.reset("sip");
+      assertEquals(1, store.next("sip"));
+      store.close();
+
+      store = new IndexStore(file, 8);
+      assertEquals(2, store.next("sip"));
+      store.close();
+   }
+
+   @Test
+   public void testInvalidFile() throws IOException
+   {
+      final File file = new File(this.folder.getRoot(), "garbage");
+      final FileOutputStream output = new FileOutputStream(file);
+      try
+      {
+         output.write("This is not an index store.".getBytes("US-ASCII"));
+      }
+      finally
+      {
+         output.close();
+      }
+
+      try
+      {
+         new IndexStore(file).close();
+         fail("Invalid store opened.");
+      }
+      catch (final IOException exception)
+      {
+         // Expected
+      }
+   }
+}
@@ -0,0 +1,205 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip.archive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import org.apache.commons.compress.utils.IOUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Measures the throughput of the ways a data file can be copied into a
+ * directory packaging: heap buffer stream copy (former implementation),
+ * kernel transfer, direct buffer copy with digest, and copy pipeline with
+ * digest.
+ * <p>
+ * Not part of the packaged builder. Usage, once the tests are compiled:
+ * java -cp target/test-classes:target/classes:&lt;dependencies&gt;
+ * fr.gael.ccsds.sip.archive.CopyBenchmark [size-in-MB [directory
+ * [repetitions]]]
+ */
+public class CopyBenchmark
+{
+   /**
+    * A logger for this class.
+    */
+   private static Logger logger = Logger.getLogger(CopyBenchmark.class);
+
+   /**
+    * Runs the benchmark.
+    *
+    * @param args the size of the copied file (MB, 256 by default), the
+    *    directory of the files (temporary directory by default) and the
+    *    number of repetitions of each copy (3 by default).
+    */
+   public static void main(String[] args) throws Exception
+   {
+      int size = (args.length > 0) ? Integer.parseInt(args[0]) : 256;
+      File directory = (args.length > 1) ? new File(args[1]) :
+         new File(System.getProperty("java.io.tmpdir"));
+      int repetitions = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+
+      File source = File.createTempFile("copy-benchmark", ".src", directory);
+      File destination =
+         File.createTempFile("copy-benchmark", ".dst", directory);
+
+      try
+      {
+         // Random content, written once
+         OutputStream output = new FileOutputStream(source);
+         try
+         {
+            byte [] block = new byte [1024 * 1024];
+            Random random = new Random(0);
+            for (int index = 0; index < size; index++)
+            {
+               random.nextBytes(block);
+               output.write(block);
+            }
+         }
+         finally
+         {
+            output.close();
+         }
+
+         logger.info("Copying " + size + " MB in \"" +
+            directory.getAbsolutePath() + "\" (" + repetitions +
+            " repetition(s), best run):");
+
+         CopyPipeline pipeline = new CopyPipeline(4, 16 * 1024 * 1024);
+
+         for (int method = 0; method < 5; method++)
+         {
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < repetitions; run++)
+            {
+               long start = System.nanoTime();
+               copy(method, source, destination, pipeline);
+               best = Math.min(best, System.nanoTime() - start);
+            }
+
+            logger.info(String.format("   %-32s %8.1f MB/s",
+               getName(method), (size * 1e9) / best));
+         }
+      }
+      finally
+      {
+         source.delete();
+         destination.delete();
+      }
+
+   } // End main(String[])
+
+   /**
+    * @return the name of a copy method.
+    */
+   private static String getName(int method)
+   {
+      switch (method)
+      {
+         case 0: return "stream copy";
+         case 1: return "kernel transfer";
+         case 2: return "stream copy with MD5";
+         case 3: return "direct buffer copy with MD5";
+         default: return "pipeline copy with MD5";
+      }
+   }
+
+   /**
+    * Copies a file with one of the methods.
+    */
+   private static void copy(int method, File source, File destination,
+         CopyPipeline pipeline) throws IOException
+   {
+      MessageDigest digest = null;
+      if (method >= 2)
+      {
+         try
+         {
+            digest = MessageDigest.getInstance("MD5");
+         }
+         catch (NoSuchAlgorithmException exception)
+         {
+            throw new IllegalStateException(exception);
+         }
+      }
+
+      switch (method)
+      {
+         case 0:
+         case 2:
+         {
+            InputStream input = new FileInputStream(source);
+            if (digest != null)
+            {
+               input = new DigestInputStream(input, digest);
+            }
+            try
+            {
+               OutputStream output = new FileOutputStream(destination);
+               try
+               {
+                  IOUtils.copy(input, output);
+               }
+               finally
+               {
+                  output.close();
+               }
+            }
+            finally
+            {
+               input.close();
+            }
+            break;
+         }
+         case 1:
+         case 3:
+         {
+            FileTransfer.copy(source, destination, digest);
+            break;
+         }
+         default:
+         {
+            OutputStream output = new FileOutputStream(destination);
+            try
+            {
+               pipeline.copy(source, output, digest);
+            }
+            finally
+            {
+               output.close();
+            }
+         }
+      }
+
+   } // End copy(int, File, File, CopyPipeline)
+
+} // End CopyBenchmark class
@@ -0,0 +1,130 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip.archive;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.Test;
+
+/**
+ * Decodes the streams written by {@link ParallelGzipOutputStream} with
+ * {@link GZIPInputStream}.
+ */
+public class ParallelGzipOutputStreamTest
+{
+   @Test
+   public void testEmpty() throws IOException
+   {
+      assertArrayEquals(new byte[0], roundTrip(new byte[0], 4, 0));
+   }
+
+   @Test
+   public void testSingleBlock() throws IOException
+   {
+      final byte[] data = "A single block.\n".getBytes("US-ASCII");
+      assertArrayEquals(data, roundTrip(data, 4, 0));
+   }
+
+   @Test
+   public void testCompressibleBlocks() throws IOException
+   {
+      // Many blocks referring to the dictionary of the previous one
+      final byte[] data = new byte[3000000];
+      final Random random = new Random(0);
+      for (int index = 0; index < data.length; index++)
+      {
+         data[index] = (byte) ("abcdefgh \n".charAt(random.nextInt(10)));
+      }
+      assertArrayEquals(data, roundTrip(data, 3, 32 * 1024));
+   }
+
+   @Test
+   public void testRandomBlocks() throws IOException
+   {
+      final byte[] data = new byte[1000001];
+      new Random(1).nextBytes(data);
+      assertArrayEquals(data, roundTrip(data, 2, 0));
+   }
+
+   @Test
+   public void testByteWrites() throws IOException
+   {
+      final byte[] data = new byte[100000];
+      new Random(2).nextBytes(data);
+
+      final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      final ParallelGzipOutputStream output =
+         new ParallelGzipOutputStream(compressed, 2, 32 * 1024);
+      for (int index = 0; index < data.length; index++)
+      {
+         output.write(data[index]);
+      }
+      output.close();
+
+      assertArrayEquals(data, decompress(compressed.toByteArray()));
+   }
+
+   private static byte[] roundTrip(final byte[] data, final int threads,
+         final int block_size) throws IOException
+   {
+      final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      final ParallelGzipOutputStream output =
+         new ParallelGzipOutputStream(compressed, threads, block_size);
+
+      // Uneven writes, crossing the block boundaries
+      int offset = 0;
+      int length = 1;
+      while (offset < data.length)
+      {
+         final int count = Math.min(length, data.length - offset);
+         output.write(data, offset, count);
+         offset += count;
+         length = (length * 3) + 7;
+      }
+      output.close();
+
+      return decompress(compressed.toByteArray());
+   }
+
+   private static byte[] decompress(final byte[] compressed)
+         throws IOException
+   {
+      final InputStream input =
+         new GZIPInputStream(new ByteArrayInputStream(compressed));
+      try
+      {
+         return IOUtils.toByteArray(input);
+      }
+      finally
+      {
+         input.close();
+      }
+   }
+}
@@ -0,0 +1,347 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip.archive;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Decodes the archives written by {@link ParallelZipArchiveSession} with
+ * {@link java.util.zip}.
+ * <p>
+ * The Zip64 entry test deflates more than 4 GB: it only runs when the
+ * {@value #LARGE_TESTS} system property is set to true (e.g.
+ * <code>mvn test -Dsip.test.large=true</code>).
+ */
+public class ParallelZipArchiveSessionTest
+{
+   /**
+    * System property enabling the tests writing large archives.
+    */
+   public static final String LARGE_TESTS = "sip.test.large";
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @Test
+   public void testRoundTrip() throws Exception
+   {
+      final File empty = this.write("empty", new byte[0]);
+      final File random = this.write("random", randomBytes(700000, 1));
+      final File text = this.write("text", textBytes(3000000));
+      final File directory = this.folder.newFolder("sub");
+
+      final File zip = new File(this.folder.getRoot(), "out.zip");
+      final ArchiveSession session = new ParallelZipArchiveSession(zip, 3,
+         64 * 1024);
+
+      final MessageDigest digest = MessageDigest.getInstance("MD5");
+      session.add(text, "d/text", digest);
+      assertArrayEquals(md5(text), digest.digest());
+
+      session.add(empty, "d/empty");
+      session.add(directory, "d/sub");
+      session.add(random, "d/héllo");
+      session.close();
+
+      final ZipFile zip_file = new ZipFile(zip);
+      try
+      {
+         assertEquals(Arrays.asList("d/text", "d/empty", "d/sub/",
+            "d/héllo"), names(zip_file));
+
+         assertContent(zip_file, "d/text", text);
+         assertContent(zip_file, "d/empty", empty);
+         assertContent(zip_file, "d/héllo", random);
+         assertTrue(zip_file.getEntry("d/sub/").isDirectory());
+      }
+      finally
+      {
+         zip_file.close();
+      }
+   }
+
+   @Test
+   public void testDeterministicOutput() throws Exception
+   {
+      final File text = this.write("text", textBytes(1000000));
+      final File random = this.write("random", randomBytes(300000, 2));
+
+      final File zip1 = new File(this.folder.getRoot(), "1.zip");
+      final File zip2 = new File(this.folder.getRoot(), "2.zip");
+
+      ArchiveSession session = new ParallelZipArchiveSession(zip1, 1, 0);
+      session.add(text, "text");
+      session.add(random, "random");
+      session.close();
+
+      // More workers, and files read by a copy pipeline
+      session = new ParallelZipArchiveSession(zip2, 4, 0);
+      session.setPipeline(new CopyPipeline(4, 1024 * 1024));
+      session.add(text, "text");
+      session.add(random, "random");
+      session.close();
+
+      assertArrayEquals(readAll(zip1), readAll(zip2));
+   }
+
+   @Test
+   public void testManyEntries() throws Exception
+   {
+      final File file = this.write("small", "small\n".getBytes("US-ASCII"));
+      final int count = 0xFFFF + 10;
+
+      final File zip = new File(this.folder.getRoot(), "many.zip");
+      final ArchiveSession session = new ParallelZipArchiveSession(zip, 2,
+         0);
+      for (int index = 0; index < count; index++)
+      {
+         session.add(file, "many/" + index);
+      }
+      session.close();
+
+      final ZipFile zip_file = new ZipFile(zip);
+      try
+      {
+         assertEquals(count, zip_file.size());
+         assertContent(zip_file, "many/0", file);
+         assertContent(zip_file, "many/" + (count - 1), file);
+      }
+      finally
+      {
+         zip_file.close();
+      }
+   }
+
+   @Test
+   public void testZip64Entry() throws Exception
+   {
+      assumeTrue(Boolean.getBoolean(LARGE_TESTS));
+
+      // A sparse file just over 4 GB, beyond the 32-bit size fields
+      final long size = 0x100000000L + 12345;
+      final File large = new File(this.folder.getRoot(), "large");
+      final RandomAccessFile access = new RandomAccessFile(large, "rw");
+      try
+      {
+         access.seek(size - 1);
+         access.write(1);
+      }
+      finally
+      {
+         access.close();
+      }
+
+      final File small = this.write("small", textBytes(1000));
+
+      final File zip = new File(this.folder.getRoot(), "large.zip");
+      final ArchiveSession session = new ParallelZipArchiveSession(zip, 0,
+         0, Deflater.BEST_SPEED);
+      session.add(large, "large");
+      session.add(small, "small");
+      session.close();
+
+      final ZipFile zip_file = new ZipFile(zip);
+      try
+      {
+         final ZipEntry entry = zip_file.getEntry("large");
+         assertEquals(size, entry.getSize());
+
+         final CRC32 crc = new CRC32();
+         long read = 0;
+         final InputStream input = zip_file.getInputStream(entry);
+         try
+         {
+            final byte[] buffer = new byte[1024 * 1024];
+            int count;
+            while ((count = input.read(buffer)) >= 0)
+            {
+               crc.update(buffer, 0, count);
+               read += count;
+            }
+         }
+         finally
+         {
+            input.close();
+         }
+         assertEquals(size, read);
+         assertEquals(entry.getCrc(), crc.getValue());
+
+         assertContent(zip_file, "small", small);
+      }
+      finally
+      {
+         zip_file.close();
+      }
+   }
+
+   @Test
+   public void testFailedEntry() throws Exception
+   {
+      final File text = this.write("text", textBytes(10000));
+      final File missing = new File(this.folder.getRoot(), "missing");
+
+      final File zip = new File(this.folder.getRoot(), "failed.zip");
+      final ArchiveSession session = new ParallelZipArchiveSession(zip, 2,
+         0);
+      session.add(text, "text");
+
+      try
+      {
+         session.add(missing, "missing");
+         fail("Missing file added.");
+      }
+      catch (final IOException exception)
+      {
+         // Expected
+      }
+
+      try
+      {
+         session.add(text, "again");
+         fail("Entry added to a failed archive.");
+      }
+      catch (final IOException exception)
+      {
+         assertNotNull(exception.getCause());
+      }
+
+      try
+      {
+         session.close();
+         fail("Failed archive finalized.");
+      }
+      catch (final IOException exception)
+      {
+         // Expected
+      }
+      assertFalse(zip.exists());
+   }
+
+   private File write(final String name, final byte[] content)
+         throws IOException
+   {
+      final File file = new File(this.folder.getRoot(), name);
+      final FileOutputStream output = new FileOutputStream(file);
+      try
+      {
+         output.write(content);
+      }
+      finally
+      {
+         output.close();
+      }
+      return file;
+   }
+
+   private static byte[] randomBytes(final int length, final long seed)
+   {
+      final byte[] bytes = new byte[length];
+      new Random(seed).nextBytes(bytes);
+      return bytes;
+   }
+
+   private static byte[] textBytes(final int length)
+   {
+      final byte[] bytes = new byte[length];
+      final Random random = new Random(0);
+      for (int index = 0; index < length; index++)
+      {
+         bytes[index] = (byte) ("abcdefgh \n".charAt(random.nextInt(10)));
+      }
+      return bytes;
+   }
+
+   private static byte[] readAll(final File file) throws IOException
+   {
+      final InputStream input = new FileInputStream(file);
+      try
+      {
+         return IOUtils.toByteArray(input);
+      }
+      finally
+      {
+         input.close();
+      }
+   }
+
+   private static byte[] md5(final File file) throws Exception
+   {
+      return MessageDigest.getInstance("MD5").digest(readAll(file));
+   }
+
+   private static List<String> names(final ZipFile zip_file)
+   {
+      final List<String> names = new ArrayList<String>();
+      final Enumeration<? extends ZipEntry> entries = zip_file.entries();
+      while (entries.hasMoreElements())
+      {
+         names.add(entries.nextElement().getName());
+      }
+      return names;
+   }
+
+   private static void assertContent(final ZipFile zip_file,
+         final String name, final File expected) throws IOException
+   {
+      final ZipEntry entry = zip_file.getEntry(name);
+      assertNotNull(name, entry);
+
+      final InputStream input = zip_file.getInputStream(entry);
+      try
+      {
+         assertArrayEquals(name, readAll(expected),
+            IOUtils.toByteArray(input));
+      }
+      finally
+      {
+         input.close();
+      }
+   }
+}
@@ -0,0 +1,160 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip.checksum;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the checksums returned by the cache across runs.
+ */
+public class ChecksumCacheTest
+{
+   private static final List<String> TYPES = Arrays.asList("MD5", "CRC32");
+
+   private static final String[] VALUES = {
+      "00112233445566778899aabbccddeeff", "89abcdef" };
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @Test
+   public void testReopen() throws IOException
+   {
+      final File data = this.write("data", "content");
+      final File file = new File(this.folder.getRoot(), "cache");
+
+      ChecksumCache cache = new ChecksumCache(file, 64);
+      assertNull(cache.get(data, attributes(data), TYPES));
+      cache.put(data, attributes(data), TYPES, VALUES);
+      cache.close();
+
+      cache = new ChecksumCache(file, 64);
+      assertArrayEquals(VALUES, cache.get(data, attributes(data), TYPES));
+
+      // Outdated once the file is modified
+      this.write("data", "modified content");
+      assertNull(cache.get(data, attributes(data), TYPES));
+      assertEquals(1, cache.getHits());
+      assertEquals(1, cache.getMisses());
+      cache.close();
+   }
+
+   @Test
+   public void testTornRecord() throws IOException
+   {
+      final File data = this.write("data", "content");
+      final File file = new File(this.folder.getRoot(), "cache");
+
+      ChecksumCache cache = new ChecksumCache(file, 64);
+      cache.put(data, attributes(data), TYPES, VALUES);
+      cache.close();
+
+      // Alter the first value byte of every record, as if the value was
+      // not written back while the rest of the record was
+      final byte[] value = { 0x00, 0x11, 0x22 };
+      int altered = 0;
+      final RandomAccessFile access = new RandomAccessFile(file, "rw");
+      try
+      {
+         final byte[] content = new byte[(int) access.length()];
+         access.readFully(content);
+         for (int offset = 0; offset < content.length - 2; offset++)
+         {
+            if ((content[offset] == value[0]) &&
+                (content[offset + 1] == value[1]) &&
+                (content[offset + 2] == value[2]))
+            {
+               access.seek(offset);
+               access.write(0x01);
+               altered += 1;
+            }
+         }
+      }
+      finally
+      {
+         access.close();
+      }
+
+      assertEquals(1, altered);
+
+      cache = new ChecksumCache(file, 64);
+      assertNull(cache.get(data, attributes(data), TYPES));
+
+      // Rewritten when computed again
+      cache.put(data, attributes(data), TYPES, VALUES);
+      assertArrayEquals(VALUES, cache.get(data, attributes(data), TYPES));
+      cache.close();
+   }
+
+   @Test(expected = IOException.class)
+   public void testLockedFile() throws IOException
+   {
+      final File file = new File(this.folder.getRoot(), "cache");
+
+      final ChecksumCache cache = new ChecksumCache(file, 64);
+      try
+      {
+         new ChecksumCache(file, 64).close();
+      }
+      finally
+      {
+         cache.close();
+      }
+   }
+
+   private File write(final String name, final String content)
+         throws IOException
+   {
+      final File file = new File(this.folder.getRoot(), name);
+      final FileOutputStream output = new FileOutputStream(file);
+      try
+      {
+         output.write(content.getBytes("US-ASCII"));
+      }
+      finally
+      {
+         output.close();
+      }
+      return file;
+   }
+
+   private static BasicFileAttributes attributes(final File file)
+         throws IOException
+   {
+      return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+   }
+}
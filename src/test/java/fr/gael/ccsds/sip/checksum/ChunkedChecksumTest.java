@@ -0,0 +1,174 @@
+/**
+ * SIP Builder
+ * Copyright (C) 2012, 2013 GAEL Systems
+ * Copyright (C) 2012, 2013 European Space Agency (ESA)
+ * GNU Lesser General Public License (LGPL)
+ * 
+ * This file is part of SIP Builder software.
+ * 
+ * SIP Builder is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * SIP Builder is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.ccsds.sip.checksum;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the checksums computed by chunks against the sequential ones.
+ */
+public class ChunkedChecksumTest
+{
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @Test
+   public void testCombineCrc()
+   {
+      final byte[] data = new byte[100000];
+      final Random random = new Random(0);
+      random.nextBytes(data);
+
+      final CRC32 whole = new CRC32();
+      whole.update(data);
+
+      final int[] splits = { 0, 1, 7, 4096, 65535, data.length - 1,
+         data.length, random.nextInt(data.length) };
+
+      for (final int split : splits)
+      {
+         final CRC32 first = new CRC32();
+         first.update(data, 0, split);
+         final CRC32 second = new CRC32();
+         second.update(data, split, data.length - split);
+
+         assertEquals("Split at " + split, whole.getValue(),
+            ChunkedChecksum.combineCrc(first.getValue(), second.getValue(),
+               data.length - split, 0xEDB88320L));
+      }
+   }
+
+   @Test
+   public void testMergedValues() throws IOException
+   {
+      final List<String> types = Arrays.asList(
+         ChecksumFactory.CHECKSUM_CRC32, ChecksumFactory.CHECKSUM_CRC32C,
+         ChecksumFactory.CHECKSUM_SHA256);
+
+      // Several chunks, the last one shorter, and a single short chunk
+      final int chunk_size = 64 * 1024;
+      final int[] sizes = { 0, 1000, chunk_size, (5 * chunk_size) + 123 };
+
+      for (final int size : sizes)
+      {
+         final byte[] data = new byte[size];
+         new Random(size).nextBytes(data);
+         final File file = this.write("data" + size, data);
+
+         final String[] values =
+            new ChunkedChecksum(file, types, chunk_size).getValues();
+
+         final MultiDigest digest = ChecksumFactory.open(types);
+         digest.update(data);
+         final String[] expected = digest.digestAll();
+
+         assertEquals("CRC32 of " + size, expected[0], values[0]);
+         assertEquals("CRC32C of " + size, expected[1], values[1]);
+         assertEquals("SHA-256 tree of " + size,
+            ChecksumFactory.toHexString(treeHash("SHA-256", data,
+               chunk_size)), values[2]);
+      }
+   }
+
+   @Test
+   public void testTypes()
+   {
+      assertEquals(Arrays.asList("CRC32", "SHA-256-TREE-64M", "CRC32C"),
+         ChunkedChecksum.getTypes(Arrays.asList("CRC32", "SHA-256",
+            "CRC32C"), ChunkedChecksum.DEFAULT_CHUNK_SIZE));
+
+      assertEquals("32K", ChunkedChecksum.formatChunkSize(32 * 1024));
+      assertEquals("1000", ChunkedChecksum.formatChunkSize(1000));
+   }
+
+   /**
+    * Computes a tree hash sequentially: leaves prefixed by 0, nodes by 1,
+    * the last node of an odd level promoted unchanged.
+    */
+   private static byte[] treeHash(final String type, final byte[] data,
+         final int chunk_size)
+   {
+      List<byte[]> level = new ArrayList<byte[]>();
+      int offset = 0;
+      do
+      {
+         final int length = Math.min(chunk_size, data.length - offset);
+         final MessageDigest digest = ChecksumFactory.open(type);
+         digest.update((byte) 0);
+         digest.update(data, offset, length);
+         level.add(digest.digest());
+         offset += length;
+      }
+      while (offset < data.length);
+
+      while (level.size() > 1)
+      {
+         final List<byte[]> upper = new ArrayList<byte[]>();
+         for (int node = 0; node < level.size(); node += 2)
+         {
+            if (node + 1 == level.size())
+            {
+               upper.add(level.get(node));
+               continue;
+            }
+            final MessageDigest digest = ChecksumFactory.open(type);
+            digest.update((byte) 1);
+            digest.update(level.get(node));
+            digest.update(level.get(node + 1));
+            upper.add(digest.digest());
+         }
+         level = upper;
+      }
+
+      return level.get(0);
+   }
+
+   private File write(final String name, final byte[] content)
+         throws IOException
+   {
+      final File file = new File(this.folder.getRoot(), name);
+      final FileOutputStream output = new FileOutputStream(file);
+      try
+      {
+         output.write(content);
+      }
+      finally
+      {
+         output.close();
+      }
+      return file;
+   }
+}
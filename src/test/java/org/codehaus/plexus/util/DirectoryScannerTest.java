@@ -0,0 +1,200 @@
+/**
+ * Copyright The Codehaus Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.plexus.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the scan results are delivered in the same order whatever the
+ * number of threads.
+ */
+public class DirectoryScannerTest
+{
+   private static final String[] INCLUDES = { "**/.*[.]dat", "**/d[0-9]+" };
+
+   private static final String[] EXCLUDES = { "**/d3/**" };
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @Before
+   public void createTree() throws IOException
+   {
+      // More directories than the walk lists ahead of the delivery
+      for (int i = 0; i < 10; i++)
+      {
+         for (int j = 0; j < 12; j++)
+         {
+            final File directory =
+               this.folder.newFolder("d" + i, "e" + j, "d" + j);
+            new File(directory, "a.dat").createNewFile();
+            new File(directory, "b.txt").createNewFile();
+            new File(directory.getParentFile(), "c.dat").createNewFile();
+         }
+      }
+   }
+
+   @Test
+   public void testOrderedDelivery()
+   {
+      final DirectoryScanner serial = this.newScanner(1);
+      serial.scan();
+
+      final List<String> expected = new ArrayList<String>();
+      for (final String name : serial.getIncludedFiles())
+      {
+         expected.add(name);
+      }
+      for (final String name : serial.getIncludedDirectories())
+      {
+         expected.add(name + "/");
+      }
+
+      for (final int parallelism : new int[] { 1, 2, 4, 8 })
+      {
+         final DirectoryScanner scanner = this.newScanner(parallelism);
+         final RecordingConsumer consumer = new RecordingConsumer();
+         scanner.setConsumer(consumer);
+         scanner.scan();
+
+         assertEquals("Parallelism " + parallelism, this.delivered(1),
+            consumer.accepted);
+      }
+
+      // The consumer receives the same entries as the results, in the
+      // order of the walk
+      final List<String> delivered = this.delivered(4);
+      assertEquals(expected.size(), delivered.size());
+      assertEquals(new HashSet<String>(expected),
+         new HashSet<String>(delivered));
+   }
+
+   @Test
+   public void testParallelResults()
+   {
+      final DirectoryScanner serial = this.newScanner(1);
+      serial.scan();
+
+      final DirectoryScanner parallel = this.newScanner(4);
+      parallel.scan();
+
+      assertArrayEquals(serial.getIncludedFiles(),
+         parallel.getIncludedFiles());
+      assertArrayEquals(serial.getIncludedDirectories(),
+         parallel.getIncludedDirectories());
+      assertArrayEquals(serial.getExcludedDirectories(),
+         parallel.getExcludedDirectories());
+      assertArrayEquals(serial.getNotIncludedFiles(),
+         parallel.getNotIncludedFiles());
+
+      for (final String name : parallel.getIncludedFiles())
+      {
+         assertNotNull(name, parallel.getIncludedAttributes(name));
+      }
+   }
+
+   @Test
+   public void testSharedWalk()
+   {
+      final String[][] includes = {
+         INCLUDES, { "d1/**/.*[.]dat" }, { "**/e[0-9]" }, { "**" } };
+      final DirectoryScanner[] shared = new DirectoryScanner[includes.length];
+      for (int i = 0; i < includes.length; i++)
+      {
+         shared[i] = this.newScanner(i + 1);
+         shared[i].setIncludes(includes[i]);
+      }
+      DirectoryScanner.scan(shared);
+
+      // Each scanner gets the results of its own walk
+      for (int i = 0; i < includes.length; i++)
+      {
+         final DirectoryScanner own = this.newScanner(1);
+         own.setIncludes(includes[i]);
+         own.scan();
+
+         assertArrayEquals(own.getIncludedFiles(),
+            shared[i].getIncludedFiles());
+         assertTrue(own.getIncludedFiles().length
+            + own.getIncludedDirectories().length > 0);
+         assertArrayEquals(own.getIncludedDirectories(),
+            shared[i].getIncludedDirectories());
+         assertArrayEquals(own.getExcludedFiles(),
+            shared[i].getExcludedFiles());
+      }
+   }
+
+   private DirectoryScanner newScanner(final int parallelism)
+   {
+      final DirectoryScanner scanner = new DirectoryScanner();
+      scanner.setBasedir(this.folder.getRoot());
+      scanner.setIncludes(INCLUDES);
+      scanner.setExcludes(EXCLUDES);
+      scanner.setParallelism(parallelism);
+      return scanner;
+   }
+
+   /**
+    * @return the entries delivered by a scan with the given parallelism.
+    */
+   private List<String> delivered(final int parallelism)
+   {
+      final DirectoryScanner scanner = this.newScanner(parallelism);
+      final RecordingConsumer consumer = new RecordingConsumer();
+      scanner.setConsumer(consumer);
+      scanner.scan();
+      return consumer.accepted;
+   }
+
+   /**
+    * Records the delivered entries, directories ending with '/'.
+    */
+   private static class RecordingConsumer implements ScanConsumer
+   {
+      final List<String> accepted = new ArrayList<String>();
+
+      final List<String> walked = new ArrayList<String>();
+
+      @Override
+      public void accept(final String name, final boolean directory,
+            final BasicFileAttributes attributes)
+      {
+         this.accepted.add(directory ? name + "/" : name);
+      }
+
+      @Override
+      public void walked(final String name,
+            final BasicFileAttributes attributes)
+      {
+         this.walked.add(name);
+      }
+   }
+}
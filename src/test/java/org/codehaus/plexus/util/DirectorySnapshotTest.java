@@ -0,0 +1,118 @@
+/**
+ * Copyright The Codehaus Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.plexus.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the scans reusing the directories of a snapshot.
+ */
+public class DirectorySnapshotTest
+{
+   private static final int DIRECTORIES = 20;
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @Test
+   public void testUnchangedTree() throws IOException
+   {
+      final File root = this.createTree();
+      final File file = new File(this.folder.getRoot(), "snapshot");
+
+      final String[] expected = this.scan(root, null).getIncludedFiles();
+
+      DirectorySnapshot snapshot = new DirectorySnapshot(file);
+      assertArrayEquals(expected, this.scan(root, snapshot).getIncludedFiles());
+      assertEquals(DIRECTORIES + 1, snapshot.getListedDirectories());
+      snapshot.save();
+
+      // Every directory is taken from the snapshot
+      snapshot = new DirectorySnapshot(file);
+      assertArrayEquals(expected, this.scan(root, snapshot).getIncludedFiles());
+      assertEquals(0, snapshot.getListedDirectories());
+      assertEquals(DIRECTORIES + 1, snapshot.getReusedDirectories());
+      assertTrue(snapshot.getAdded().isEmpty());
+      assertTrue(snapshot.getRemoved().isEmpty());
+   }
+
+   @Test
+   public void testChangedDirectories() throws IOException
+   {
+      final File root = this.createTree();
+      final File file = new File(this.folder.getRoot(), "snapshot");
+
+      DirectorySnapshot snapshot = new DirectorySnapshot(file);
+      this.scan(root, snapshot);
+      snapshot.save();
+
+      final File added = new File(root, "d3" + File.separator + "new.dat");
+      assertTrue(added.createNewFile());
+      final File removed = new File(root, "d7" + File.separator + "a.dat");
+      assertTrue(removed.delete());
+
+      // Only the changed directories are listed again
+      snapshot = new DirectorySnapshot(file);
+      final DirectoryScanner scanner = this.scan(root, snapshot);
+      assertArrayEquals(this.scan(root, null).getIncludedFiles(),
+         scanner.getIncludedFiles());
+      assertEquals(2, snapshot.getListedDirectories());
+      assertEquals(Collections.singletonList(added.getAbsolutePath()),
+         snapshot.getAdded());
+      assertEquals(Collections.singletonList(removed.getAbsolutePath()),
+         snapshot.getRemoved());
+   }
+
+   /**
+    * Creates directories old enough to be told apart from their snapshot.
+    */
+   private File createTree() throws IOException
+   {
+      final File root = this.folder.newFolder("root");
+      final long time = System.currentTimeMillis() - 60000;
+      for (int index = 0; index < DIRECTORIES; index++)
+      {
+         final File directory = new File(root, "d" + index);
+         assertTrue(directory.mkdir());
+         new File(directory, "a.dat").createNewFile();
+         new File(directory, "b.txt").createNewFile();
+         assertTrue(directory.setLastModified(time));
+      }
+      assertTrue(root.setLastModified(time));
+      return root;
+   }
+
+   private DirectoryScanner scan(final File root,
+         final DirectorySnapshot snapshot)
+   {
+      final DirectoryScanner scanner = new DirectoryScanner();
+      scanner.setBasedir(root);
+      scanner.setIncludes(new String[] { "**/.*[.]dat" });
+      scanner.setSnapshot(snapshot);
+      scanner.scan();
+      return scanner;
+   }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright The Codehaus Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.plexus.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that the pattern trie matches the same paths as the patterns
+ * matched one by one with {@link SelectorUtils}.
+ */
+public class MatchPatternsTest
+{
+   /** Pattern segments: literals, regular expressions and "**". */
+   private static final String[] PATTERN_SEGMENTS = { "a", "b", "data", "Data",
+      "f.dat", "**", "**", ".*", "d.*", "[a-c]", "x[0-9]+", ".*[.]dat" };
+
+   /** Path segments. */
+   private static final String[] PATH_SEGMENTS = { "a", "b", "c", "data",
+      "DATA", "f.dat", "G.DAT", "x1", "x42", "d" };
+
+   @Test
+   public void testRandomSets()
+   {
+      final Random random = new Random(0);
+      int matched = 0;
+      int tried = 0;
+
+      for (int set = 0; set < 2000; set++)
+      {
+         final String[] patterns = new String[1 + random.nextInt(6)];
+         for (int i = 0; i < patterns.length; i++)
+         {
+            patterns[i] = path(random, PATTERN_SEGMENTS, 1 + random.nextInt(4));
+         }
+
+         final boolean isCaseSensitive = random.nextBoolean();
+         final MatchPatterns trie =
+            MatchPatterns.from(patterns, isCaseSensitive);
+
+         for (int p = 0; p < 50; p++)
+         {
+            final String name =
+               path(random, PATH_SEGMENTS, random.nextInt(5));
+            if (assertEquivalent(patterns, isCaseSensitive, trie, name))
+            {
+               matched++;
+            }
+            tried++;
+         }
+      }
+
+      // Both outcomes are exercised
+      assertTrue((matched > tried / 10) && (matched < tried - tried / 10));
+   }
+
+   @Test
+   public void testSpecialPatterns()
+   {
+      final String[] patterns = { "/abs/**", "dir/", "%ant[**/.*[.]txt]",
+         "%regex[.*[.]xml]" };
+      final String[] names = { "/abs", "/abs/a/b", "abs/a", "dir", "dir/a",
+         "a.txt", "a/b.txt", "a/b.xml", "b.xml", "" };
+
+      for (final boolean isCaseSensitive : new boolean[] { true, false })
+      {
+         final MatchPatterns trie =
+            MatchPatterns.from(normalize(patterns), isCaseSensitive);
+         for (final String name : names)
+         {
+            assertEquivalent(normalize(patterns), isCaseSensitive, trie,
+               name);
+         }
+      }
+   }
+
+   private static boolean assertEquivalent(final String[] patterns,
+         final boolean isCaseSensitive, final MatchPatterns trie,
+         final String name)
+   {
+      boolean matches = false;
+      boolean matchesStart = false;
+      for (int i = 0; i < patterns.length; i++)
+      {
+         matches |= SelectorUtils.matchPath(patterns[i], name,
+            isCaseSensitive);
+         matchesStart |= SelectorUtils.matchPatternStart(patterns[i], name,
+            isCaseSensitive);
+      }
+
+      final String message = Arrays.toString(patterns) + " "
+         + (isCaseSensitive ? "" : "(case insensitive) ") + "\"" + name
+         + "\"";
+      assertEquals("matches " + message, matches, trie.matches(name));
+      assertEquals("matchesPatternStart " + message, matchesStart,
+         trie.matchesPatternStart(name));
+      return matches;
+   }
+
+   private static String path(final Random random, final String[] segments,
+         final int length)
+   {
+      final StringBuilder path = new StringBuilder();
+      for (int i = 0; i < length; i++)
+      {
+         if (i > 0)
+         {
+            path.append('/');
+         }
+         path.append(segments[random.nextInt(segments.length)]);
+      }
+      return path.toString();
+   }
+
+   /**
+    * Normalizes patterns as the scanners do: a trailing separator stands
+    * for "**".
+    */
+   private static String[] normalize(final String[] patterns)
+   {
+      final String[] normalized = new String[patterns.length];
+      for (int i = 0; i < patterns.length; i++)
+      {
+         normalized[i] = patterns[i].endsWith("/") ? patterns[i] + "**"
+               : patterns[i];
+      }
+      return normalized;
+   }
+}